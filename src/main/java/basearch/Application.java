@@ -1,50 +1,112 @@
 package basearch;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.actuate.autoconfigure.ManagementWebSecurityAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.security.SecurityAutoConfiguration;
 import org.springframework.boot.context.embedded.EmbeddedServletContainerFactory;
-import org.springframework.boot.context.embedded.undertow.UndertowBuilderCustomizer;
 import org.springframework.boot.context.embedded.undertow.UndertowEmbeddedServletContainerFactory;
 import org.springframework.boot.web.servlet.ServletComponentScan;
 import org.springframework.context.annotation.Bean;
-import org.springframework.web.servlet.LocaleResolver;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+import org.springframework.web.servlet.i18n.LocaleChangeInterceptor;
 
+import basearch.cache.NaturalKeyIndex;
+import basearch.cache.UserLocaleCache;
 import basearch.dao.MetadataDao;
 import basearch.dao.UserDao;
-import io.undertow.Undertow.Builder;
+import basearch.service.UserService;
 
 @SpringBootApplication(exclude={SecurityAutoConfiguration.class,ManagementWebSecurityAutoConfiguration.class})
 @ServletComponentScan
-public class Application {
+public class Application extends WebMvcConfigurerAdapter {
 
 	@Autowired
 	private MetadataDao metadataDao;
 	@Autowired
 	private UserDao userDao;
+	@Autowired
+	private UserService userService;
+	@Autowired
+	private UserLocaleCache userLocaleCache;
+	@Autowired
+	private NaturalKeyIndex naturalKeyIndex;
+	@Autowired
+	private UndertowSettings undertowSettings;
+	@Value("${basearch.persistence.lazy-transactions:true}")
+	private boolean lazyTransactions;
+	@Value("${basearch.web.async.threads:16}")
+	private int asyncThreads;
+	@Value("${basearch.web.async.queue-capacity:100}")
+	private int asyncQueueCapacity;
+	@Value("${basearch.web.async.timeout-millis:30000}")
+	private long asyncTimeoutMillis;
 
     public static void main(String[] args) {
         SpringApplication.run(Application.class, args);
     }
 
 	@Bean
-	public LocaleResolver localeResolver() {
-		return new CustomLocaleResolver(metadataDao, userDao);
+	public CustomLocaleResolver localeResolver() {
+		return new CustomLocaleResolver(metadataDao, userDao, userService, userLocaleCache, naturalKeyIndex);
 	}
 
-    @Bean
-    public EmbeddedServletContainerFactory servletContainer() {
-    	final UndertowEmbeddedServletContainerFactory containerFactory = new UndertowEmbeddedServletContainerFactory();
-    	containerFactory.addBuilderCustomizers(new UndertowBuilderCustomizer() {
-			@Override
-			public void customize(Builder builder) {
-				String address = containerFactory.getAddress() == null ? "0.0.0.0" : containerFactory.getAddress().getHostAddress();
-				builder.addHttpListener(8080, address);
-			}
-    	});
-    	return containerFactory;
-    }
+	/**
+	 * Runs the Callables controllers return, the request's transaction and persistence context follow them here
+	 */
+	@Bean
+	public ThreadPoolTaskExecutor asyncRequestExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setThreadNamePrefix("async-request-");
+		executor.setCorePoolSize(asyncThreads);
+		executor.setMaxPoolSize(asyncThreads);
+		// bounded, a full queue rejects the request instead of piling up connections to wait for
+		executor.setQueueCapacity(asyncQueueCapacity);
+		return executor;
+	}
+
+	@Override
+	public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+		configurer.setTaskExecutor(asyncRequestExecutor());
+		configurer.setDefaultTimeout(asyncTimeoutMillis);
+		AsyncTransactionInterceptor asyncTransactionInterceptor = new AsyncTransactionInterceptor();
+		configurer.registerCallableInterceptors(asyncTransactionInterceptor);
+		configurer.registerDeferredResultInterceptors(asyncTransactionInterceptor);
+	}
+
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		LocaleChangeInterceptor localeChangeInterceptor = new LocaleChangeInterceptor();
+		localeChangeInterceptor.setParamName(Constants.LOCALE_CHANGE_PARAM_NAME);
+		localeChangeInterceptor.setLanguageTagCompliant(true);
+		localeChangeInterceptor.setIgnoreInvalidLocale(true);
+		registry.addInterceptor(localeChangeInterceptor);
+		if (lazyTransactions) {
+			// the request's connection is given back before the view is rendered
+			registry.addInterceptor(new HandlerInterceptorAdapter() {
+				@Override
+				public void postHandle(HttpServletRequest request, HttpServletResponse response, Object handler, ModelAndView modelAndView) {
+					TransactionFilter.completeTransaction(request);
+				}
+			});
+		}
+	}
+
+	@Bean
+	public EmbeddedServletContainerFactory servletContainer() {
+		UndertowEmbeddedServletContainerFactory containerFactory = new UndertowEmbeddedServletContainerFactory();
+		undertowSettings.applyTo(containerFactory);
+		return containerFactory;
+	}
 
 }
\ No newline at end of file
@@ -6,15 +6,30 @@ import java.util.Map;
 import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
 
+import org.springframework.aop.Advisor;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.context.annotation.Role;
 import org.springframework.dao.annotation.PersistenceExceptionTranslationPostProcessor;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.orm.jpa.vendor.EclipseLinkJpaVendorAdapter;
+import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
+import org.springframework.util.ObjectUtils;
+
+import basearch.metrics.DaoMetrics;
+import basearch.metrics.DaoMetricsInterceptor;
+import basearch.persistence.ReadReplicas;
+import basearch.persistence.TransactionIsolationDataSource;
 
 @Configuration
 @EnableTransactionManagement
@@ -23,18 +38,37 @@ public class ApplicationPersistence {
 	@Autowired
 	private DataSource dataSource;
 
+	@Autowired
+	private ReadReplicas readReplicas;
+
+	@Value("${basearch.persistence.lazy-transactions:true}")
+	private boolean lazyTransactions;
+
 	@Bean
 	@Profile("default")
 	public LocalContainerEntityManagerFactoryBean developmentEntityManagerFactory() {
 		LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
-		factory.setDataSource(dataSource);
-		factory.setJpaVendorAdapter(new EclipseLinkJpaVendorAdapter());
+		factory.setDataSource(dataSource());
+		factory.setJpaVendorAdapter(jpaVendorAdapter());
 
 		// jpa settings
 		Map<String,String> properties = new HashMap<>();
 		properties.put("eclipselink.weaving", "static");
+		// eclipselink hands every factory of the same unit the first one's session, and data source, unless named apart
+		properties.put("eclipselink.session-name", "basearch-" + ObjectUtils.getIdentityHexString(this));
 		properties.put("eclipselink.logging.level", "FINE");
 		properties.put("eclipselink.cache.shared.default", "false");
+		// languages are read-only reference data, caching them can't hide changes
+		properties.put("eclipselink.cache.shared.Language", "true");
+		// users are only written through their daos, which evict the rows they change, so the username lookups skip the
+		// database in later transactions too, unless replicas could hand their rows to read-write transactions
+		if (!readReplicas.isEnabled()) {
+			properties.put("eclipselink.cache.shared.User", "true");
+			properties.put("eclipselink.cache.shared.Principal", "true");
+			properties.put("eclipselink.cache.shared.Authority", "true");
+		}
+		properties.put("eclipselink.jdbc.batch-writing", "JDBC");
+		properties.put("eclipselink.jdbc.batch-writing.size", "100");
 		factory.setJpaPropertyMap(properties);
 
 		return factory;
@@ -44,18 +78,49 @@ public class ApplicationPersistence {
 	@Profile("production")
 	public LocalContainerEntityManagerFactoryBean productionEntityManagerFactory() {
 		LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
-		factory.setDataSource(dataSource);
-		factory.setJpaVendorAdapter(new EclipseLinkJpaVendorAdapter());
+		factory.setDataSource(dataSource());
+		factory.setJpaVendorAdapter(jpaVendorAdapter());
 
 		// jpa settings
 		Map<String,String> properties = new HashMap<>();
 		properties.put("eclipselink.weaving", "static");
+		// eclipselink hands every factory of the same unit the first one's session, and data source, unless named apart
+		properties.put("eclipselink.session-name", "basearch-" + ObjectUtils.getIdentityHexString(this));
 		properties.put("eclipselink.logging.level", "OFF");
+		if (readReplicas.isEnabled()) {
+			// rows read from a lagging replica would land in the shared cache, where read-write transactions on the primary
+			// would find them, so what replicas serve stays in the reading persistence context
+			properties.put("eclipselink.cache.shared.User", "false");
+			properties.put("eclipselink.cache.shared.Principal", "false");
+			properties.put("eclipselink.cache.shared.Authority", "false");
+		}
+		properties.put("eclipselink.jdbc.batch-writing", "JDBC");
+		properties.put("eclipselink.jdbc.batch-writing.size", "100");
 		factory.setJpaPropertyMap(properties);
 
 		return factory;
 	}
 
+	// read-only transactions go to the read replicas, if any, connections get the isolation level of their transaction,
+	// and lazy transactions take no connection until the first statement
+	private DataSource dataSource() {
+		DataSource isolated = new TransactionIsolationDataSource(readReplicas.route(dataSource));
+		return lazyTransactions ? new LazyConnectionDataSourceProxy(isolated) : isolated;
+	}
+
+	// eclipselink begins read-write transactions on the database right away unless told to wait for the first write
+	private EclipseLinkJpaVendorAdapter jpaVendorAdapter() {
+		EclipseLinkJpaVendorAdapter adapter = new EclipseLinkJpaVendorAdapter() {
+			private final TransactionIsolationDataSource.JpaDialect jpaDialect = new TransactionIsolationDataSource.JpaDialect();
+			@Override
+			public TransactionIsolationDataSource.JpaDialect getJpaDialect() {
+				return jpaDialect;
+			}
+		};
+		adapter.getJpaDialect().setLazyDatabaseTransaction(lazyTransactions);
+		return adapter;
+	}
+
 	@Bean
 	public JpaTransactionManager transactionManager(EntityManagerFactory entityManagerFactory) {
 		JpaTransactionManager manager = new JpaTransactionManager();
@@ -68,4 +133,12 @@ public class ApplicationPersistence {
 		return new PersistenceExceptionTranslationPostProcessor();
 	}
 
+	// infrastructure role, so the auto proxy creator behind @EnableTransactionManagement applies it to the daos
+	@Bean
+	@Role(BeanDefinition.ROLE_INFRASTRUCTURE)
+	@ConditionalOnProperty(name="basearch.metrics.dao.enabled", matchIfMissing=true)
+	public Advisor daoMetricsAdvisor(DaoMetrics daoMetrics) {
+		return new DefaultPointcutAdvisor(new AnnotationMatchingPointcut(Repository.class), new DaoMetricsInterceptor(daoMetrics));
+	}
+
 }
\ No newline at end of file
@@ -1,16 +1,36 @@
 package basearch;
 
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.security.SecurityProperties;
 import org.springframework.boot.autoconfigure.security.SecurityProperties.Headers;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.web.authentication.AuthenticationFailureHandler;
+import org.springframework.security.web.authentication.DelegatingAuthenticationFailureHandler;
+import org.springframework.security.web.authentication.SimpleUrlAuthenticationFailureHandler;
 
+import basearch.security.BoundedPasswordEncoder;
+import basearch.security.ClaimsSigner;
+import basearch.security.BoundedPasswordEncoder.PasswordHashingRejectedException;
+import basearch.security.LocaleAwareAuthenticationSuccessHandler;
+import basearch.security.ServiceUnavailableFailureHandler;
+import basearch.security.SignedCookieSecurityContextRepository;
 import basearch.service.AuthService;
 
 @Configuration
@@ -18,7 +38,10 @@ import basearch.service.AuthService;
 @EnableConfigurationProperties(SecurityProperties.class)
 public class ApplicationSecurity extends WebSecurityConfigurerAdapter {
 
-	private static final String[] MANAGEMENT_ENDPOINTS = {"/management/dump","/management/health","/management/metrics","/management/trace","/management/loggers"};
+	private static final Logger logger = LoggerFactory.getLogger(ApplicationSecurity.class);
+
+	private static final int LOGIN_RETRY_AFTER_SECONDS = 5;
+	private static final String[] MANAGEMENT_ENDPOINTS = {"/management/dump","/management/health","/management/metrics","/management/trace","/management/loggers","/management/rehash/**","/management/languages/**"};
 
 	@Autowired
 	private AuthService authService;
@@ -26,6 +49,23 @@ public class ApplicationSecurity extends WebSecurityConfigurerAdapter {
 	@Autowired
 	private SecurityProperties securityProperties;
 
+	@Autowired
+	private CustomLocaleResolver localeResolver;
+
+	@Value("${basearch.security.password-hashing.bcrypt-strength:10}")
+	private int bcryptStrength;
+	@Value("${basearch.security.password-hashing.threads:0}")
+	private int passwordHashingThreads;
+	@Value("${basearch.security.password-hashing.queue-capacity:100}")
+	private int passwordHashingQueueCapacity;
+
+	@Value("${basearch.security.stateless.enabled:false}")
+	private boolean stateless;
+	@Value("${basearch.security.stateless.secret:}")
+	private String statelessSecret;
+	@Value("${basearch.security.stateless.ttl-seconds:1800}")
+	private long statelessTtlSeconds;
+
 	@Override
 	protected void configure(HttpSecurity http) throws Exception {
 		// general properties
@@ -35,9 +75,15 @@ public class ApplicationSecurity extends WebSecurityConfigurerAdapter {
 		if (!securityProperties.getHeaders().isContentType()) http.headers().contentTypeOptions().disable();
 		if (!securityProperties.getHeaders().isXss()) http.headers().xssProtection().disable();
 		if (securityProperties.getHeaders().getHsts() != Headers.HSTS.NONE) http.headers().httpStrictTransportSecurity().includeSubDomains(securityProperties.getHeaders().getHsts() == Headers.HSTS.ALL);
-		http.sessionManagement().sessionCreationPolicy(securityProperties.getSessions());
+		if (stateless) {
+			// authentication travels in a signed cookie, no node needs to remember anything
+			http.sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS);
+			http.securityContext().securityContextRepository(new SignedCookieSecurityContextRepository(new ClaimsSigner(statelessSigningKey()), Constants.AUTH_TOKEN_COOKIE_NAME, statelessTtlSeconds));
+		} else {
+			http.sessionManagement().sessionCreationPolicy(securityProperties.getSessions());
+		}
 		// login config
-		http.formLogin().loginPage("/login.page").loginProcessingUrl("/login").defaultSuccessUrl("/secured.page").failureUrl("/login.page?error");
+		http.formLogin().loginPage("/login.page").loginProcessingUrl("/login").successHandler(new LocaleAwareAuthenticationSuccessHandler(localeResolver, "/secured.page")).failureHandler(loginFailureHandler());
 		http.exceptionHandling().accessDeniedPage("/unauthorized.page");
 		http.logout().logoutUrl("/logout").logoutSuccessUrl("/index.page");
 		// management access rules
@@ -52,7 +98,27 @@ public class ApplicationSecurity extends WebSecurityConfigurerAdapter {
 
 	@Override
 	protected void configure(AuthenticationManagerBuilder auth) throws Exception {
-		auth.userDetailsService(authService).passwordEncoder(new BCryptPasswordEncoder());
+		auth.userDetailsService(authService).passwordEncoder(passwordEncoder());
+	}
+
+	@Bean
+	public BoundedPasswordEncoder passwordEncoder() {
+		return new BoundedPasswordEncoder(new BCryptPasswordEncoder(bcryptStrength), passwordHashingThreads, passwordHashingQueueCapacity);
+	}
+
+	private byte[] statelessSigningKey() {
+		if (statelessSecret != null && !statelessSecret.isEmpty()) return statelessSecret.getBytes(StandardCharsets.UTF_8);
+		logger.warn("No basearch.security.stateless.secret configured, using a random one. Authentication cookies won't be valid on other nodes or after a restart.");
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		return key;
+	}
+
+	private AuthenticationFailureHandler loginFailureHandler() {
+		// a saturated hashing pool is not a failed login, tell the client to come back later
+		LinkedHashMap<Class<? extends AuthenticationException>,AuthenticationFailureHandler> handlers = new LinkedHashMap<>();
+		handlers.put(PasswordHashingRejectedException.class, new ServiceUnavailableFailureHandler(LOGIN_RETRY_AFTER_SECONDS));
+		return new DelegatingAuthenticationFailureHandler(handlers, new SimpleUrlAuthenticationFailureHandler("/login.page?error"));
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,118 @@
+package basearch;
+
+import java.util.concurrent.Callable;
+
+import javax.servlet.ServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+
+/**
+ * Makes the transaction of a request follow it when a controller goes async. Callables take the transaction over on
+ * the executor thread and complete it as soon as they return, rolling back if they failed. DeferredResults are produced
+ * by code running its own transactions, so the request's one waits unbound and is completed once the request is.
+ * A request that times out is rolled back, by the thread holding its transaction or, if none took it, on completion.
+ */
+public class AsyncTransactionInterceptor implements CallableProcessingInterceptor, DeferredResultProcessingInterceptor {
+
+	private static final Logger logger = LoggerFactory.getLogger(AsyncTransactionInterceptor.class);
+
+	/*
+	 * callables
+	 */
+
+	@Override
+	public <T> void beforeConcurrentHandling(NativeWebRequest request, Callable<T> task) {
+		handOff(request);
+	}
+
+	@Override
+	public <T> void preProcess(NativeWebRequest request, Callable<T> task) {
+		RequestTransaction rt = of(request);
+		if (rt == null) return;
+		if (!rt.takeOver()) throw new IllegalStateException("The request completed before its work could start");
+		rt.started();
+	}
+
+	@Override
+	public <T> void postProcess(NativeWebRequest request, Callable<T> task, Object concurrentResult) {
+		RequestTransaction rt = of(request);
+		if (rt != null) rt.complete(concurrentResult instanceof Throwable ? (Throwable)concurrentResult : null);
+	}
+
+	@Override
+	public <T> Object handleTimeout(NativeWebRequest request, Callable<T> task) {
+		timedOut(request);
+		return CallableProcessingInterceptor.RESULT_NONE;
+	}
+
+	@Override
+	public <T> void afterCompletion(NativeWebRequest request, Callable<T> task) {
+		RequestTransaction rt = of(request);
+		// a callable that never started was rejected by the saturated executor, or timed out waiting for it, and its
+		// post-processing, which completes the transaction, never ran
+		release(request, rt == null || rt.isStarted() ? null : new IllegalStateException("The async work of the request never started"));
+	}
+
+	/*
+	 * deferred results
+	 */
+
+	@Override
+	public <T> void beforeConcurrentHandling(NativeWebRequest request, DeferredResult<T> deferredResult) {
+		handOff(request);
+	}
+
+	@Override
+	public <T> void preProcess(NativeWebRequest request, DeferredResult<T> deferredResult) {
+	}
+
+	@Override
+	public <T> void postProcess(NativeWebRequest request, DeferredResult<T> deferredResult, Object concurrentResult) {
+	}
+
+	@Override
+	public <T> boolean handleTimeout(NativeWebRequest request, DeferredResult<T> deferredResult) {
+		timedOut(request);
+		return true;
+	}
+
+	@Override
+	public <T> void afterCompletion(NativeWebRequest request, DeferredResult<T> deferredResult) {
+		Object result = deferredResult.getResult();
+		release(request, result instanceof Throwable ? (Throwable)result : null);
+	}
+
+	// shared
+
+	private static RequestTransaction of(NativeWebRequest request) {
+		Object servletRequest = request.getNativeRequest();
+		return servletRequest instanceof ServletRequest ? RequestTransaction.of((ServletRequest)servletRequest) : null;
+	}
+
+	private static void handOff(NativeWebRequest request) {
+		RequestTransaction rt = of(request);
+		if (rt != null) rt.handOff();
+	}
+
+	private static void timedOut(NativeWebRequest request) {
+		RequestTransaction rt = of(request);
+		if (rt != null) rt.timedOut();
+	}
+
+	// completes the transaction here unless some thread holds it, which then completes it itself
+	private static void release(NativeWebRequest request, Throwable failure) {
+		RequestTransaction rt = of(request);
+		if (rt == null || !rt.takeOver()) return;
+		try {
+			rt.complete(failure);
+		} catch(RuntimeException re) {
+			logger.error("Exception occurred completing the transaction of an async request: " + re.getMessage());
+		}
+	}
+
+}
@@ -8,5 +8,7 @@ public final class Constants {
 	// system wide settings
 	public static final String APP_NAME = "Basearch";
 	public static final String LOCALE_RESOLVER_COOKIE_NAME = "basearch_language";
+	public static final String LOCALE_CHANGE_PARAM_NAME = "lang";
+	public static final String AUTH_TOKEN_COOKIE_NAME = "basearch_auth";
 
 }
@@ -3,6 +3,8 @@ package basearch;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Locale;
+import java.util.Locale.LanguageRange;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.servlet.http.Cookie;
@@ -11,34 +13,65 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.context.i18n.LocaleContext;
-import org.springframework.context.i18n.SimpleLocaleContext;
+import org.springframework.security.authentication.AbstractAuthenticationToken;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 import org.springframework.web.servlet.LocaleContextResolver;
 import org.springframework.web.util.CookieGenerator;
 import org.springframework.web.util.WebUtils;
 
+import basearch.cache.LruCache;
+import basearch.cache.NaturalKeyIndex;
+import basearch.cache.UserLocaleCache;
 import basearch.dao.MetadataDao;
 import basearch.dao.UserDao;
 import basearch.model.Language;
 import basearch.model.User;
+import basearch.security.LocaleAuthenticationDetails;
+import basearch.service.UserService;
 
-public class CustomLocaleResolver extends CookieGenerator implements LocaleContextResolver {
+public class CustomLocaleResolver extends CookieGenerator implements LocaleContextResolver, ApplicationListener<ContextRefreshedEvent> {
 
 	private static final Logger logger = LoggerFactory.getLogger(CustomLocaleResolver.class);
 
 	private static final String STORED_LOCALE_KEY = "CustomLocaleResolver.STORED_LOCALE";
+	private static final String ACCEPT_LANGUAGE_HEADER = "Accept-Language";
+	private static final int RAW_VALUE_CACHE_SIZE = 512;
+	// an empty languages table is read again after this long, not on every request
+	private static final long EMPTY_INDEX_RETRY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	// cached marker for raw values that don't match any app language, never handed out
+	private static final Locale NO_MATCH = Locale.ROOT;
 
 	private MetadataDao metadataDao;
 	private UserDao userDao;
+	private UserService userService;
+	private UserLocaleCache userLocaleCache;
+	private NaturalKeyIndex naturalKeyIndex;
+
+	// swapped as a whole whenever the languages are reloaded, never modified
+	private volatile LocaleIndex localeIndex;
+	private volatile long localeIndexLoadedAt;
+
+	// raw Accept-Language header and language cookie values, mapped to the app locale they resolve to
+	private final LruCache<String,Locale> headerLocales = new LruCache<>(RAW_VALUE_CACHE_SIZE);
+	private final LruCache<String,Locale> cookieLocales = new LruCache<>(RAW_VALUE_CACHE_SIZE);
 
 	@Inject
-	public CustomLocaleResolver(MetadataDao metadataDao, UserDao userDao) {
+	public CustomLocaleResolver(MetadataDao metadataDao, UserDao userDao, UserService userService, UserLocaleCache userLocaleCache, NaturalKeyIndex naturalKeyIndex) {
 		this.metadataDao = metadataDao;
 		this.userDao = userDao;
+		this.userService = userService;
+		this.userLocaleCache = userLocaleCache;
+		this.naturalKeyIndex = naturalKeyIndex;
 		setCookieName(Constants.LOCALE_RESOLVER_COOKIE_NAME);
 	}
 
@@ -56,43 +89,62 @@ public class CustomLocaleResolver extends CookieGenerator implements LocaleConte
 		if (sc != null) {
 			Authentication auth = sc.getAuthentication();
 			if (auth != null && !(auth instanceof AnonymousAuthenticationToken) && auth.getPrincipal() != null) {
-				User u = userDao.getByUsername(auth.getName());
-				Locale l = u.getLanguage().toLocale();
-				logger.debug("Found authenticated user with locale '{}'", l);
-				request.setAttribute(STORED_LOCALE_KEY, l);
-				return l;			
+				// the cache first, language changes evict it, and the locale resolved at login only if the user can't be read
+				Locale l = resolveUserLocale(auth.getName());
+				if (l == null && auth.getDetails() instanceof LocaleAuthenticationDetails) l = ((LocaleAuthenticationDetails)auth.getDetails()).getLocale();
+				if (l != null) {
+					logger.debug("Found authenticated user with locale '{}'", l);
+					request.setAttribute(STORED_LOCALE_KEY, l);
+					return l;
+				}
+				logger.debug("Authenticated user {} has no stored locale", auth.getName());
 			}
 		}
 		// we'll need this
-		List<Language> supportedLanguages = metadataDao.findAllLanguages();
+		LocaleIndex supportedLocales = getLocaleIndex();
 		// no authenticated user, lets try with cookies
 		Cookie cookie = WebUtils.getCookie(request, getCookieName());
 		if (cookie != null && cookie.getValue() != null && cookie.getValue().length() != 0) {
-			Locale cl = Locale.forLanguageTag(cookie.getValue());
-			logger.debug("Parsed cookie value [{}] into locale '{}'", cookie, cl);
-			if (isLocaleSupported(supportedLanguages, cl)) {
-				logger.debug("Found language cookie with locale '{}'", cl);
-				request.setAttribute(STORED_LOCALE_KEY, cl);
-				return cl;
+			Locale matched = cookieLocales.get(cookie.getValue());
+			if (matched == null) {
+				Locale cl = Locale.forLanguageTag(cookie.getValue());
+				logger.debug("Parsed cookie value [{}] into locale '{}'", cookie.getValue(), cl);
+				matched = supportedLocales.match(cl);
+				if (matched == null) matched = NO_MATCH;
+				cookieLocales.put(cookie.getValue(), matched);
+			}
+			if (matched != NO_MATCH) {
+				logger.debug("Found language cookie [{}] matching app language '{}'", cookie.getValue(), matched);
+				request.setAttribute(STORED_LOCALE_KEY, matched);
+				return matched;
 			} else {
 				logger.debug("Found language cookie but did not match any app language, ignoring cookie");
 			}
 		}
 		// resort to Accept-Language header
-		Enumeration<Locale> browserLocales = request.getLocales();
-		while (browserLocales.hasMoreElements()) {
-			Locale browserLocale = browserLocales.nextElement();
-			if (isLocaleSupported(supportedLanguages, browserLocale)) {
-				logger.debug("Found app language matching Accept-Language header '{}'", browserLocale);
-				request.setAttribute(STORED_LOCALE_KEY, browserLocale);
-				return browserLocale;
-			} else {
-				logger.debug("Passed on Accept-Language header '{}' beacuse no app language matched", browserLocale);
+		Locale matched = null;
+		String acceptLanguage = request.getHeader(ACCEPT_LANGUAGE_HEADER);
+		if (acceptLanguage != null) {
+			matched = headerLocales.get(acceptLanguage);
+			if (matched == null) {
+				matched = matchAcceptLanguage(acceptLanguage, request, supportedLocales);
+				headerLocales.put(acceptLanguage, matched == null ? NO_MATCH : matched);
 			}
+		} else {
+			// no header, the container will provide its own default
+			matched = matchBrowserLocales(request, supportedLocales);
+		}
+		if (matched != null && matched != NO_MATCH) {
+			logger.debug("Found app language '{}' matching Accept-Language header [{}]", matched, acceptLanguage);
+			// remember the choice so the next request takes the cookie path, without a header there was none to remember
+			HttpServletResponse response = acceptLanguage == null ? null : currentResponse();
+			if (response != null) addCookie(response, matched.toLanguageTag());
+			request.setAttribute(STORED_LOCALE_KEY, matched);
+			return matched;
 		}
 		// no match found, return the default
 		logger.debug("No language match, resorting to app default");
-		Locale defaultLocale = metadataDao.getDefaultLanguage().toLocale();
+		Locale defaultLocale = supportedLocales.getDefaultLocale();
 		request.setAttribute(STORED_LOCALE_KEY, defaultLocale);
 		return defaultLocale;
 	}
@@ -100,14 +152,37 @@ public class CustomLocaleResolver extends CookieGenerator implements LocaleConte
 	@Override
 	public void setLocale(HttpServletRequest request, HttpServletResponse response,	Locale l) {
 		logger.debug("setLocale()");
-		throw new UnsupportedOperationException("setLocale() not yet implemented");
+		Locale matched = l == null ? null : getLocaleIndex().match(l);
+		if (matched == null) {
+			logger.debug("Ignoring locale '{}', it doesn't match any app language", l);
+			return;
+		}
+		request.setAttribute(STORED_LOCALE_KEY, matched);
+		if (response != null) addCookie(response, matched.toLanguageTag());
+		SecurityContext sc = SecurityContextHolder.getContext();
+		if (sc == null) return;
+		Authentication auth = sc.getAuthentication();
+		if (auth != null && !(auth instanceof AnonymousAuthenticationToken) && auth.getPrincipal() != null) {
+			logger.debug("Changing locale of authenticated user {} to '{}'", auth.getName(), matched);
+			// memory first, the database write happens in the background
+			userLocaleCache.put(auth.getName(), matched);
+			if (auth.getDetails() instanceof LocaleAuthenticationDetails && auth instanceof AbstractAuthenticationToken) {
+				((AbstractAuthenticationToken)auth).setDetails(new LocaleAuthenticationDetails(request, matched));
+			}
+			userService.changeLanguage(auth.getName(), matched);
+		}
 	}
 
 	@Override
-	public LocaleContext resolveLocaleContext(HttpServletRequest request) {
+	public LocaleContext resolveLocaleContext(final HttpServletRequest request) {
 		// currently, timezone is not persisted
-		Locale locale = resolveLocale(request);
-		return new SimpleLocaleContext(locale);
+		// resolved lazily, the dispatcher asks for the context before the locale change interceptor runs
+		return new LocaleContext() {
+			@Override
+			public Locale getLocale() {
+				return resolveLocale(request);
+			}
+		};
 	}
 
 	@Override
@@ -116,16 +191,109 @@ public class CustomLocaleResolver extends CookieGenerator implements LocaleConte
 		setLocale(request, response, lc.getLocale());
 	}
 
+	/**
+	 * Returns the stored locale of the user, from cache if possible. May return null if the user doesn't exist.
+	 */
+	public Locale resolveUserLocale(String username) {
+		Locale l = userLocaleCache.get(username);
+		if (l != null) return l;
+		// only the language id is read, the locale comes from the index of app languages
+		Long languageId = userDao.getLanguageId(username);
+		if (languageId == null) return null;
+		l = getLocaleIndex().forLanguageId(languageId);
+		if (l == null) {
+			// a language the index doesn't know yet, read it with the user
+			User u = userDao.getByUsernameWithLanguage(username);
+			if (u == null || u.getLanguage() == null) return null;
+			l = u.getLanguage().toLocale();
+		}
+		userLocaleCache.put(username, l);
+		return l;
+	}
+
+	/*
+	 * Supported languages
+	 */
+
+	@Override
+	public void onApplicationEvent(ContextRefreshedEvent event) {
+		reloadLanguages();
+	}
+
+	/**
+	 * Rebuilds the index of supported locales from the languages table and swaps it in one go, returns the count of languages.
+	 * Must be called whenever the languages table changes, nothing else notices. Changes made outside the app do so
+	 * through POST /management/languages/reload.
+	 */
+	public int reloadLanguages() {
+		// codes may have been indexed against the old languages
+		naturalKeyIndex.evictLanguages();
+		List<Language> languages = metadataDao.findAllLanguages();
+		LocaleIndex index = LocaleIndex.of(languages, metadataDao.getDefaultLanguage());
+		logger.debug("Loaded locale index, empty: {}", index.isEmpty());
+		this.localeIndexLoadedAt = System.nanoTime();
+		this.localeIndex = index;
+		// previous matches may no longer hold
+		headerLocales.invalidateAll();
+		cookieLocales.invalidateAll();
+		return languages.size();
+	}
+
+	public LruCache<String,Locale> getHeaderLocaleCache() {
+		return headerLocales;
+	}
+
+	public LruCache<String,Locale> getCookieLocaleCache() {
+		return cookieLocales;
+	}
+
 	/*
 	 * Utility methods
 	 */
 
-	private boolean isLocaleSupported(List<Language> supportedLanguages, Locale locale) {
-		if (supportedLanguages == null || supportedLanguages.size() == 0) return false;
-		for (Language lang : supportedLanguages) {
-			if (lang.toLocale().equals(locale)) return true;
+	private Locale matchBrowserLocales(HttpServletRequest request, LocaleIndex supportedLocales) {
+		Enumeration<Locale> browserLocales = request.getLocales();
+		while (browserLocales.hasMoreElements()) {
+			Locale browserLocale = browserLocales.nextElement();
+			Locale matched = supportedLocales.match(browserLocale);
+			if (matched != null) return matched;
+			logger.debug("Passed on Accept-Language header '{}' beacuse no app language matched", browserLocale);
+		}
+		return null;
+	}
+
+	private Locale matchAcceptLanguage(String acceptLanguage, HttpServletRequest request, LocaleIndex supportedLocales) {
+		List<LanguageRange> ranges;
+		try {
+			ranges = LanguageRange.parse(acceptLanguage);
+		} catch(IllegalArgumentException iae) {
+			logger.debug("Could not parse Accept-Language header [{}], using the container locales", acceptLanguage);
+			return matchBrowserLocales(request, supportedLocales);
+		}
+		// ranges come sorted by weight
+		for (LanguageRange range : ranges) {
+			if (range.getWeight() == 0 || range.getRange().indexOf('*') >= 0) continue;
+			Locale matched = supportedLocales.match(Locale.forLanguageTag(range.getRange()));
+			if (matched != null) return matched;
+			logger.debug("Passed on Accept-Language range '{}' beacuse no app language matched", range.getRange());
+		}
+		return null;
+	}
+
+	private HttpServletResponse currentResponse() {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		if (attributes instanceof ServletRequestAttributes) return ((ServletRequestAttributes)attributes).getResponse();
+		return null;
+	}
+
+	private LocaleIndex getLocaleIndex() {
+		LocaleIndex index = localeIndex;
+		// requests served before the context finished refreshing, or while there are no languages yet
+		if (index == null || (index.isEmpty() && System.nanoTime() - localeIndexLoadedAt > EMPTY_INDEX_RETRY_NANOS)) {
+			reloadLanguages();
+			index = localeIndex;
 		}
-		return false;
+		return index;
 	}
 
 }
@@ -0,0 +1,105 @@
+package basearch;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import basearch.model.Language;
+
+/**
+ * Immutable lookup table over the configured app languages. Besides exact matches, it precomputes
+ * the fallbacks for a requested locale: same language and region ignoring the variant, and then
+ * same language ignoring the region (es-MX -> es). Lookups are plain hash lookups keyed by the
+ * requested locale or its (already interned) language and country strings, so they don't allocate.
+ * Also maps language ids to their locale, so callers holding an id don't need to load the language.
+ */
+public final class LocaleIndex {
+
+	private static final LocaleIndex EMPTY = new LocaleIndex(Collections.<Long,Locale>emptyMap(), Collections.<Locale,Locale>emptyMap(), Collections.<String,Map<String,Locale>>emptyMap(), Collections.<String,Locale>emptyMap(), null);
+
+	private final Map<Long,Locale> byId;
+	private final Map<Locale,Locale> exact;
+	private final Map<String,Map<String,Locale>> byRegion;
+	private final Map<String,Locale> byLanguage;
+	private final Locale defaultLocale;
+
+	private LocaleIndex(Map<Long,Locale> byId, Map<Locale,Locale> exact, Map<String,Map<String,Locale>> byRegion, Map<String,Locale> byLanguage, Locale defaultLocale) {
+		this.byId = byId;
+		this.exact = exact;
+		this.byRegion = byRegion;
+		this.byLanguage = byLanguage;
+		this.defaultLocale = defaultLocale;
+	}
+
+	/**
+	 * Builds the index. Languages are expected in a stable order (by id), as the first candidate
+	 * wins whenever a fallback is ambiguous and there is no language-only or region-only entry.
+	 */
+	public static LocaleIndex of(List<Language> languages, Language defaultLanguage) {
+		if (languages == null || languages.isEmpty()) return EMPTY;
+		Map<Long,Locale> byId = new HashMap<>();
+		Map<Locale,Locale> exact = new HashMap<>();
+		Map<String,Map<String,Locale>> byRegion = new HashMap<>();
+		Map<String,Locale> byLanguage = new HashMap<>();
+		for (Language lang : languages) {
+			Locale l = lang.toLocale();
+			if (l == null) continue;
+			byId.put(lang.getId(), l);
+			exact.put(l, l);
+			// language-only entries always win the language fallback
+			Locale currentLanguageMatch = byLanguage.get(l.getLanguage());
+			if (currentLanguageMatch == null || (l.getCountry().isEmpty() && !currentLanguageMatch.getCountry().isEmpty())) {
+				byLanguage.put(l.getLanguage(), l);
+			}
+			if (l.getCountry().isEmpty()) continue;
+			// region entries without variant always win the region fallback
+			Map<String,Locale> regions = byRegion.get(l.getLanguage());
+			if (regions == null) {
+				regions = new HashMap<>();
+				byRegion.put(l.getLanguage(), regions);
+			}
+			Locale currentRegionMatch = regions.get(l.getCountry());
+			if (currentRegionMatch == null || (l.getVariant().isEmpty() && !currentRegionMatch.getVariant().isEmpty())) {
+				regions.put(l.getCountry(), l);
+			}
+		}
+		Locale defaultLocale = defaultLanguage == null ? null : defaultLanguage.toLocale();
+		return new LocaleIndex(byId, exact, byRegion, byLanguage, defaultLocale);
+	}
+
+	/**
+	 * Returns the app locale that best serves the requested one, or null if no app language shares its language code
+	 */
+	public Locale match(Locale requested) {
+		if (requested == null) return null;
+		Locale l = exact.get(requested);
+		if (l != null) return l;
+		if (!requested.getCountry().isEmpty()) {
+			Map<String,Locale> regions = byRegion.get(requested.getLanguage());
+			if (regions != null) {
+				l = regions.get(requested.getCountry());
+				if (l != null) return l;
+			}
+		}
+		return byLanguage.get(requested.getLanguage());
+	}
+
+	/**
+	 * Returns the locale of the language with that id, or null if there is none
+	 */
+	public Locale forLanguageId(Long id) {
+		if (id == null) return null;
+		return byId.get(id);
+	}
+
+	public Locale getDefaultLocale() {
+		return defaultLocale;
+	}
+
+	public boolean isEmpty() {
+		return exact.isEmpty();
+	}
+
+}
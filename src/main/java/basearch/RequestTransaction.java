@@ -0,0 +1,154 @@
+package basearch;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletRequest;
+
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import basearch.persistence.TransactionPolicies;
+import basearch.persistence.TransactionPolicies.RollbackCause;
+
+/**
+ * The transaction TransactionFilter began for a request, kept as a request attribute. When the request goes async
+ * the transaction, its persistence context and synchronizations included, is handed off: unbound from the request
+ * thread, bound again on whichever thread takes it over, and completed there. Only one thread holds it at a time.
+ */
+final class RequestTransaction {
+
+	private static final String ATTRIBUTE = "requestContextTransaction";
+
+	private static final int ON_REQUEST_THREAD = 0;
+	private static final int HANDED_OFF = 1;
+	private static final int TAKEN_OVER = 2;
+	private static final int RELEASED = 3;
+
+	private final PlatformTransactionManager manager;
+	private final TransactionStatus status;
+	private final TransactionPolicies.Transaction transaction;
+	private final AtomicInteger state = new AtomicInteger(ON_REQUEST_THREAD);
+	private volatile boolean timedOut;
+	private volatile boolean started;
+
+	// thread state while handed off
+	private Map<Object,Object> resources;
+	private List<TransactionSynchronization> synchronizations;
+	private String name;
+	private boolean readOnly;
+	private Integer isolationLevel;
+
+	private RequestTransaction(PlatformTransactionManager manager, TransactionStatus status, TransactionPolicies.Transaction transaction) {
+		this.manager = manager;
+		this.status = status;
+		this.transaction = transaction;
+	}
+
+	static RequestTransaction begun(ServletRequest request, PlatformTransactionManager manager, TransactionStatus status, TransactionPolicies.Transaction transaction) {
+		RequestTransaction rt = new RequestTransaction(manager, status, transaction);
+		request.setAttribute(ATTRIBUTE, rt);
+		return rt;
+	}
+
+	static RequestTransaction of(ServletRequest request) {
+		return (RequestTransaction)request.getAttribute(ATTRIBUTE);
+	}
+
+	TransactionStatus getStatus() {
+		return status;
+	}
+
+	boolean isHandedOff() {
+		return state.get() != ON_REQUEST_THREAD;
+	}
+
+	/**
+	 * Commits, or rolls back if the async request timed out or the work failed (failure not null), and releases the
+	 * transaction. Must be called on the thread holding it.
+	 */
+	void complete(Throwable failure) throws TransactionException {
+		if (status.isCompleted()) return;
+		state.set(RELEASED);
+		if (timedOut) rollback(RollbackCause.TIMED_OUT);
+		else if (failure != null) rollback(RollbackCause.of(failure));
+		else commit();
+	}
+
+	/**
+	 * Commits, which rolls back instead if the work marked it rollback-only
+	 */
+	void commit() throws TransactionException {
+		if (status.isRollbackOnly()) transaction.rollingBack(RollbackCause.ROLLBACK_ONLY);
+		manager.commit(status);
+	}
+
+	void rollback(RollbackCause cause) throws TransactionException {
+		transaction.rollingBack(cause);
+		manager.rollback(status);
+	}
+
+	/**
+	 * Tells the async work holding the transaction has started running
+	 */
+	void started() {
+		started = true;
+	}
+
+	boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * Tells the async request timed out, the transaction rolls back instead of committing once the thread holding it,
+	 * if any, is done
+	 */
+	void timedOut() {
+		timedOut = true;
+	}
+
+	/**
+	 * Unbinds the transaction from the request thread, which is about to be given back to the container
+	 */
+	void handOff() {
+		if (state.get() != ON_REQUEST_THREAD) throw new IllegalStateException("The transaction of the request was already handed off");
+		resources = new LinkedHashMap<>(TransactionSynchronizationManager.getResourceMap());
+		for (Object key : resources.keySet()) TransactionSynchronizationManager.unbindResource(key);
+		synchronizations = TransactionSynchronizationManager.getSynchronizations();
+		name = TransactionSynchronizationManager.getCurrentTransactionName();
+		readOnly = TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+		isolationLevel = TransactionSynchronizationManager.getCurrentTransactionIsolationLevel();
+		TransactionSynchronizationManager.clear();
+		transaction.movedTo(null);
+		// publishes the thread state to the taking thread
+		state.set(HANDED_OFF);
+	}
+
+	/**
+	 * Binds the handed off transaction to the current thread, returns false if it was already taken over or released
+	 */
+	boolean takeOver() {
+		if (!state.compareAndSet(HANDED_OFF, TAKEN_OVER)) return false;
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			state.set(HANDED_OFF);
+			throw new IllegalStateException("Can't take over the transaction of the request, this thread already has one");
+		}
+		for (Map.Entry<Object,Object> resource : resources.entrySet()) TransactionSynchronizationManager.bindResource(resource.getKey(), resource.getValue());
+		TransactionSynchronizationManager.initSynchronization();
+		for (TransactionSynchronization synchronization : synchronizations) TransactionSynchronizationManager.registerSynchronization(synchronization);
+		TransactionSynchronizationManager.setCurrentTransactionName(name);
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(readOnly);
+		TransactionSynchronizationManager.setCurrentTransactionIsolationLevel(isolationLevel);
+		TransactionSynchronizationManager.setActualTransactionActive(true);
+		transaction.movedTo(Thread.currentThread());
+		resources = null;
+		synchronizations = null;
+		return true;
+	}
+
+}
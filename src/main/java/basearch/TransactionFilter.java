@@ -2,6 +2,7 @@ package basearch;
 
 import java.io.IOException;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -9,24 +10,31 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.transaction.PlatformTransactionManager;
-import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionException;
 import org.springframework.transaction.TransactionStatus;
-import org.springframework.transaction.interceptor.DefaultTransactionAttribute;
-import org.springframework.transaction.interceptor.TransactionAttribute;
 import org.springframework.web.context.support.WebApplicationContextUtils;
 
-@WebFilter(urlPatterns={"*.page","*.action","/login","/logout"})
+import basearch.metrics.SqlStatementCounter;
+import basearch.persistence.TransactionPolicies;
+import basearch.persistence.TransactionPolicies.RollbackCause;
+
+@WebFilter(urlPatterns={"*.page","*.action","/login","/logout"}, asyncSupported=true, dispatcherTypes={DispatcherType.REQUEST,DispatcherType.ASYNC})
 public class TransactionFilter implements Filter {
 
 	private static final Logger logger = LoggerFactory.getLogger(TransactionFilter.class);
 
 	private static final String TRANSACTION_FILTER_MARKER_ATTRIBUTE = "requestContextTransactionMarker";
+
+	// looked up on the first request, the context may not be fully started when the filter is
+	private volatile PlatformTransactionManager txManager;
+	private volatile SqlStatementCounter sqlStatementCounter;
+	private volatile TransactionPolicies policies;
 	
     public TransactionFilter() {
     }
@@ -43,36 +51,60 @@ public class TransactionFilter implements Filter {
 		if (request.getAttribute(TRANSACTION_FILTER_MARKER_ATTRIBUTE) != null) {
 			doRecurringFilter(request, response, chain);
 		} else {
-			doFirstTimeFilter(request, response, chain);
+			lookUpBeans(request);
+			if (!sqlStatementCounter.isEnabled()) {
+				doFirstTimeFilter(request, response, chain);
+				return;
+			}
+			// statements of the whole request, commit included
+			String name = request instanceof HttpServletRequest ? ((HttpServletRequest)request).getRequestURI() : "Request";
+			try (SqlStatementCounter.Scope sql = sqlStatementCounter.open(name)) {
+				doFirstTimeFilter(request, response, chain);
+			}
 		}
 	}
 
 	private void doFirstTimeFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
 		request.setAttribute(TRANSACTION_FILTER_MARKER_ATTRIBUTE, TRANSACTION_FILTER_MARKER_ATTRIBUTE);
-		ApplicationContext ctx = WebApplicationContextUtils.getWebApplicationContext(request.getServletContext());
-		PlatformTransactionManager txManager = (PlatformTransactionManager)ctx.getBean("transactionManager");
-		TransactionAttribute def = new DefaultTransactionAttribute(TransactionDefinition.PROPAGATION_REQUIRED);
+		// isolation, read-only flag and deadline of the route
+		TransactionPolicies.Policy policy = policies.policyFor((HttpServletRequest)request);
+		HttpServletRequest httpRequest = (HttpServletRequest)request;
 		TransactionStatus tx = null;
+		TransactionPolicies.Transaction transaction = null;
 		try {
-			tx = txManager.getTransaction(def);
+			tx = txManager.getTransaction(policy.definitionFor(httpRequest));
+			transaction = policy.begun(httpRequest.getMethod() + " " + httpRequest.getRequestURI());
 		} catch(TransactionException txe) {
 			logger.error("FATAL: not able to start a transaction to service this request.");
 			throw new ServletException(txe);
 		}
+		RequestTransaction rt = RequestTransaction.begun(request, txManager, tx, transaction);
 		try {
 			chain.doFilter(request, response);
 		} catch(Exception e) {
-			logger.error("Exception occurred servicing this request, rolling back the current transaction...");
-			try {
-				txManager.rollback(tx);
-			} catch(TransactionException txe) {
-				logger.error("Exception occurred rolling back the current transaction: " + txe.getMessage());
+			// it may have been completed before the view was rendered, or handed off to async work
+			if (!tx.isCompleted() && !rt.isHandedOff()) {
+				logger.error("Exception occurred servicing this request, rolling back the current transaction...");
+				try {
+					rt.rollback(RollbackCause.of(e));
+				} catch(TransactionException txe) {
+					logger.error("Exception occurred rolling back the current transaction: " + txe.getMessage());
+				}
+			} else if (rt.isHandedOff() && rt.takeOver()) {
+				// handed off to async work that never got to take it, the executor rejected it
+				logger.error("Exception occurred starting the async work of this request, rolling back its transaction...");
+				try {
+					rt.complete(e);
+				} catch(TransactionException txe) {
+					logger.error("Exception occurred rolling back the current transaction: " + txe.getMessage());
+				}
 			}
 			throw new ServletException(e);
 		} finally {
-			if (!tx.isCompleted()) {
+			// async work completes the transaction itself
+			if (!tx.isCompleted() && !rt.isHandedOff()) {
 				try {
-					txManager.commit(tx);
+					rt.commit();
 				} catch(TransactionException txe) {
 					logger.error("Exception occurred committing the current transaction: " + txe.getMessage());
 					throw new ServletException(txe);
@@ -80,6 +112,26 @@ public class TransactionFilter implements Filter {
 			}
 		}
 	}
+	/**
+	 * Commits the transaction of the request, if it's still running, so its connection is given back before
+	 * the view is rendered. Lazy relationships touched while rendering are still loaded, outside the transaction.
+	 */
+	public static void completeTransaction(ServletRequest request) throws TransactionException {
+		RequestTransaction rt = RequestTransaction.of(request);
+		if (rt == null || rt.isHandedOff() || rt.getStatus().isCompleted()) return;
+		rt.commit();
+	}
+
+	private void lookUpBeans(ServletRequest request) {
+		if (policies != null) return;
+		ApplicationContext ctx = WebApplicationContextUtils.getWebApplicationContext(request.getServletContext());
+		txManager = (PlatformTransactionManager)ctx.getBean("transactionManager");
+		sqlStatementCounter = ctx.getBean(SqlStatementCounter.class);
+		// last, it tells the others are set
+		policies = ctx.getBean(TransactionPolicies.class);
+	}
+
+	// forwards, and async dispatches rendering what async work produced, which has completed the transaction by then
 	private void doRecurringFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
 		chain.doFilter(request, response);
 	}
@@ -0,0 +1,134 @@
+package basearch;
+
+import org.springframework.boot.context.embedded.undertow.UndertowBuilderCustomizer;
+import org.springframework.boot.context.embedded.undertow.UndertowEmbeddedServletContainerFactory;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.xnio.Options;
+
+import io.undertow.Undertow.Builder;
+import io.undertow.UndertowOptions;
+
+/**
+ * Tuning of the embedded Undertow, bound from basearch.undertow.* Zero, or unset, leaves Undertow's own default: an IO
+ * thread per core (two at least), eight worker threads per IO thread, and buffers sized after the available memory.
+ * Requests are served by the worker threads, so they bound how many requests block on the database at once. HTTP/2 is
+ * negotiated on the TLS listener of server.port (ALPN) and offered as an upgrade on the plain one.
+ */
+@Component
+@ConfigurationProperties(prefix="basearch.undertow")
+public class UndertowSettings {
+
+	// plain http listener next to the TLS one, negative turns it off
+	private int httpPort = 8080;
+	private int ioThreads;
+	private int workerThreads;
+	private int bufferSize;
+	private Boolean directBuffers;
+	// HTTP/2 streams, or pipelined HTTP/1.1 requests, served at once for one connection
+	private int maxConcurrentRequestsPerConnection;
+	// how long a kept-alive connection may sit idle waiting for its next request
+	private long keepAliveTimeoutMillis;
+	// connections waiting to be accepted
+	private int backlog;
+	private boolean http2 = true;
+
+	/**
+	 * Applies the settings to the container, and adds the plain http listener
+	 */
+	public void applyTo(final UndertowEmbeddedServletContainerFactory factory) {
+		if (ioThreads < 0 || workerThreads < 0 || bufferSize < 0 || maxConcurrentRequestsPerConnection < 0 || keepAliveTimeoutMillis < 0 || backlog < 0) {
+			throw new IllegalStateException("Undertow settings can't be negative, except the http port");
+		}
+		if (ioThreads > 0) factory.setIoThreads(ioThreads);
+		if (workerThreads > 0) factory.setWorkerThreads(workerThreads);
+		if (bufferSize > 0) factory.setBufferSize(bufferSize);
+		if (directBuffers != null) factory.setDirectBuffers(directBuffers);
+		factory.addBuilderCustomizers(new UndertowBuilderCustomizer() {
+			@Override
+			public void customize(Builder builder) {
+				if (httpPort >= 0) {
+					String address = factory.getAddress() == null ? "0.0.0.0" : factory.getAddress().getHostAddress();
+					builder.addHttpListener(httpPort, address);
+				}
+				builder.setServerOption(UndertowOptions.ENABLE_HTTP2, http2);
+				if (maxConcurrentRequestsPerConnection > 0) builder.setServerOption(UndertowOptions.MAX_CONCURRENT_REQUESTS_PER_CONNECTION, maxConcurrentRequestsPerConnection);
+				if (keepAliveTimeoutMillis > 0) builder.setServerOption(UndertowOptions.NO_REQUEST_TIMEOUT, (int)Math.min(keepAliveTimeoutMillis, Integer.MAX_VALUE));
+				if (backlog > 0) builder.setSocketOption(Options.BACKLOG, backlog);
+			}
+		});
+	}
+
+	public int getHttpPort() {
+		return httpPort;
+	}
+
+	public void setHttpPort(int httpPort) {
+		this.httpPort = httpPort;
+	}
+
+	public int getIoThreads() {
+		return ioThreads;
+	}
+
+	public void setIoThreads(int ioThreads) {
+		this.ioThreads = ioThreads;
+	}
+
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public Boolean getDirectBuffers() {
+		return directBuffers;
+	}
+
+	public void setDirectBuffers(Boolean directBuffers) {
+		this.directBuffers = directBuffers;
+	}
+
+	public int getMaxConcurrentRequestsPerConnection() {
+		return maxConcurrentRequestsPerConnection;
+	}
+
+	public void setMaxConcurrentRequestsPerConnection(int maxConcurrentRequestsPerConnection) {
+		this.maxConcurrentRequestsPerConnection = maxConcurrentRequestsPerConnection;
+	}
+
+	public long getKeepAliveTimeoutMillis() {
+		return keepAliveTimeoutMillis;
+	}
+
+	public void setKeepAliveTimeoutMillis(long keepAliveTimeoutMillis) {
+		this.keepAliveTimeoutMillis = keepAliveTimeoutMillis;
+	}
+
+	public int getBacklog() {
+		return backlog;
+	}
+
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+
+	public boolean isHttp2() {
+		return http2;
+	}
+
+	public void setHttp2(boolean http2) {
+		this.http2 = http2;
+	}
+
+}
@@ -0,0 +1,49 @@
+package basearch.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.inject.Inject;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import basearch.CustomLocaleResolver;
+
+/**
+ * Publishes size, hits, misses and evictions of the app caches through the metrics endpoint
+ */
+@Component
+public class CacheMetrics implements PublicMetrics {
+
+	private final Map<String,LruCache<?,?>> caches = new LinkedHashMap<>();
+
+	@Inject
+	public CacheMetrics(UserDetailsCache userDetailsCache, UserLocaleCache userLocaleCache, NaturalKeyIndex naturalKeyIndex, CustomLocaleResolver localeResolver) {
+		caches.put("user-details", userDetailsCache.getCache());
+		caches.put("user-locale", userLocaleCache.getCache());
+		caches.put("natural-key.username", naturalKeyIndex.getUsernameCache());
+		caches.put("natural-key.language", naturalKeyIndex.getLanguageCache());
+		caches.put("accept-language", localeResolver.getHeaderLocaleCache());
+		caches.put("language-cookie", localeResolver.getCookieLocaleCache());
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>(caches.size() * 4);
+		for (Entry<String,LruCache<?,?>> entry : caches.entrySet()) {
+			String prefix = "cache." + entry.getKey();
+			LruCache<?,?> cache = entry.getValue();
+			metrics.add(new Metric<Integer>(prefix + ".size", cache.size()));
+			metrics.add(new Metric<Long>(prefix + ".hits", cache.getHits()));
+			metrics.add(new Metric<Long>(prefix + ".misses", cache.getMisses()));
+			metrics.add(new Metric<Long>(prefix + ".evictions", cache.getEvictions()));
+		}
+		return metrics;
+	}
+
+}
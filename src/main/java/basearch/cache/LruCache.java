@@ -0,0 +1,173 @@
+package basearch.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Small bounded cache with least-recently-used eviction and optional time-to-live, safe for concurrent use.
+ * Meant for hot, low-cardinality lookups; every operation takes a short lock on the backing map.
+ * Null keys and values are not allowed.
+ */
+public final class LruCache<K,V> {
+
+	private final int maxSize;
+	private final long ttlNanos;
+	private final Map<K,CacheEntry<V>> entries;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public LruCache(int maxSize) {
+		this(maxSize, 0, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * A ttl of zero means entries never expire, they're only evicted when the cache is full
+	 */
+	public LruCache(final int maxSize, long ttl, TimeUnit unit) {
+		if (maxSize < 1) throw new IllegalArgumentException("Parameter maxSize must be greater than zero");
+		if (ttl < 0) throw new IllegalArgumentException("Parameter ttl can't be negative");
+		this.maxSize = maxSize;
+		this.ttlNanos = unit.toNanos(ttl);
+		this.entries = new LinkedHashMap<K,CacheEntry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K,CacheEntry<V>> eldest) {
+				if (size() <= maxSize) return false;
+				evictions.increment();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached value, or null if the key is not cached or has expired
+	 */
+	public V get(K key) {
+		assert(key != null);
+		CacheEntry<V> entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && entry.isExpired()) {
+				entries.remove(key);
+				evictions.increment();
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return entry.value;
+	}
+
+	public void put(K key, V value) {
+		assert(key != null && value != null);
+		CacheEntry<V> entry = new CacheEntry<V>(value, ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos);
+		synchronized (entries) {
+			entries.put(key, entry);
+		}
+	}
+
+	public void invalidate(K key) {
+		assert(key != null);
+		synchronized (entries) {
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * Invalidates the key now and, if there is a transaction in progress, once again when it completes.
+	 * Keeps concurrent readers from caching data the transaction is about to change.
+	 */
+	public void invalidateOnCompletion(final K key) {
+		invalidate(key);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					invalidate(key);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Same as invalidateOnCompletion(), for many keys at once with a single synchronization
+	 */
+	public void invalidateAllOnCompletion(Collection<? extends K> keys) {
+		assert(keys != null);
+		final List<K> invalidated = new ArrayList<K>(keys);
+		synchronized (entries) {
+			for (K key : invalidated) entries.remove(key);
+		}
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					synchronized (entries) {
+						for (K key : invalidated) entries.remove(key);
+					}
+				}
+			});
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	// stats
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Entries dropped because the cache was full or they expired, explicit invalidations are not counted
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	// holder
+
+	private static final class CacheEntry<V> {
+		private final V value;
+		private final long expiresAt;
+		private CacheEntry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+		private boolean isExpired() {
+			return expiresAt != 0 && System.nanoTime() - expiresAt > 0;
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package basearch.cache;
+
+import javax.inject.Inject;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Natural key to id index, so lookups by username or language codes can be served by id from the persistence
+ * context or the shared cache. EclipseLink's own cache indexes are only used by jpql queries and need the shared
+ * cache, this one works for every kind of query in every profile.
+ * Only ids of rows that were found are stored, and a stale id is harmless: lookups load the entity by id and check
+ * the key again, falling back to the query when it doesn't match.
+ */
+@Component
+public class NaturalKeyIndex {
+
+	private final LruCache<String,Long> usernames;
+	private final LruCache<String,Long> languages;
+
+	@Inject
+	public NaturalKeyIndex(@Value("${basearch.cache.natural-keys.username-size:10000}") int usernameSize, @Value("${basearch.cache.natural-keys.language-size:256}") int languageSize) {
+		this.usernames = new LruCache<>(usernameSize);
+		this.languages = new LruCache<>(languageSize);
+	}
+
+	/*
+	 * usernames, shared by users and principals as they map the same table
+	 */
+
+	/**
+	 * Id of the user with that username, or null if it's not indexed
+	 */
+	public Long getUserId(String username) {
+		return usernames.get(username);
+	}
+
+	public void putUserId(String username, Long id) {
+		usernames.put(username, id);
+	}
+
+	/**
+	 * Evicts the username, again after the current transaction completes if there is one
+	 */
+	public void evictUsername(String username) {
+		usernames.invalidateOnCompletion(username);
+	}
+
+	/**
+	 * Evicts every username, for users written without going through the daos
+	 */
+	public void evictUsernames() {
+		usernames.invalidateAll();
+	}
+
+	/*
+	 * languages, a null region or variant matches any
+	 */
+
+	/**
+	 * Id of the only language matching the codes, or null if it's not indexed
+	 */
+	public Long getLanguageId(String langCode, String region, String variant) {
+		return languages.get(languageKey(langCode, region, variant));
+	}
+
+	public void putLanguageId(String langCode, String region, String variant, Long id) {
+		languages.put(languageKey(langCode, region, variant), id);
+	}
+
+	/**
+	 * Must be called whenever the languages table changes, a new language can make a partial key ambiguous.
+	 * CustomLocaleResolver.reloadLanguages() calls it, and POST /management/languages/reload calls that.
+	 */
+	public void evictLanguages() {
+		languages.invalidateAll();
+	}
+
+	public LruCache<String,Long> getUsernameCache() {
+		return usernames;
+	}
+
+	public LruCache<String,Long> getLanguageCache() {
+		return languages;
+	}
+
+	// codes never contain '_', and null and empty are told apart
+	private static String languageKey(String langCode, String region, String variant) {
+		StringBuilder key = new StringBuilder(16).append(langCode);
+		if (region != null) key.append('_').append(region);
+		else key.append("_*");
+		if (variant != null) key.append('_').append(variant);
+		else key.append("_*");
+		return key.toString();
+	}
+
+}
@@ -0,0 +1,59 @@
+package basearch.cache;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.stereotype.Component;
+
+import basearch.security.UserDetailsSnapshot;
+
+/**
+ * Username to user details cache, keeps logins and re-authentications away from the database.
+ * Only immutable snapshots are stored, never entities.
+ */
+@Component
+public class UserDetailsCache {
+
+	private final LruCache<String,UserDetails> details;
+
+	@Inject
+	public UserDetailsCache(@Value("${basearch.cache.user-details.size:1000}") int size, @Value("${basearch.cache.user-details.ttl-seconds:300}") long ttlSeconds) {
+		this.details = new LruCache<>(size, ttlSeconds, TimeUnit.SECONDS);
+	}
+
+	public UserDetails get(String username) {
+		return details.get(username);
+	}
+
+	/**
+	 * Stores a snapshot of the user details and returns it
+	 */
+	public UserDetails put(UserDetails user) {
+		UserDetails snapshot = UserDetailsSnapshot.of(user);
+		details.put(snapshot.getUsername(), snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Evicts the user, again after the current transaction completes if there is one
+	 */
+	public void evict(String username) {
+		details.invalidateOnCompletion(username);
+	}
+
+	/**
+	 * Same as evict(), for many users at once
+	 */
+	public void evict(Collection<String> usernames) {
+		details.invalidateAllOnCompletion(usernames);
+	}
+
+	public LruCache<String,UserDetails> getCache() {
+		return details;
+	}
+
+}
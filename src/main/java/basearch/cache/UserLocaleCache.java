@@ -0,0 +1,43 @@
+package basearch.cache;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Username to locale cache, saves authenticated requests the user and language lookups
+ */
+@Component
+public class UserLocaleCache {
+
+	private final LruCache<String,Locale> locales;
+
+	@Inject
+	public UserLocaleCache(@Value("${basearch.cache.user-locale.size:1000}") int size, @Value("${basearch.cache.user-locale.ttl-seconds:600}") long ttlSeconds) {
+		this.locales = new LruCache<>(size, ttlSeconds, TimeUnit.SECONDS);
+	}
+
+	public Locale get(String username) {
+		return locales.get(username);
+	}
+
+	public void put(String username, Locale locale) {
+		locales.put(username, locale);
+	}
+
+	/**
+	 * Evicts the user, again after the current transaction completes if there is one
+	 */
+	public void evict(String username) {
+		locales.invalidateOnCompletion(username);
+	}
+
+	public LruCache<String,Locale> getCache() {
+		return locales;
+	}
+
+}
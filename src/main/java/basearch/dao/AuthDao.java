@@ -1,6 +1,8 @@
 package basearch.dao;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
 
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
@@ -8,24 +10,81 @@ import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import basearch.model.Language;
 import basearch.model.auth.Authority;
 import basearch.model.auth.Principal;
+import basearch.model.auth.PrincipalSpec;
+import basearch.model.auth.PrincipalSummary;
+import basearch.model.auth.StoredCredentials;
 
 public interface AuthDao {
 
 	Principal getByUsername(String username);
+
+	/**
+	 * Principals with the given ids, in the same order, skipping ids that don't exist. Authorities are batch read.
+	 */
+	List<Principal> getPrincipals(Collection<Long> ids);
 	
 	/**
-	 * Implementation of Spring Security's UserDetailsService
+	 * Implementation of Spring Security's UserDetailsService. The principal comes with its authorities and language loaded.
 	 */
 	UserDetails loadUserByUsername(String username) throws UsernameNotFoundException;
 	
 	Authority getAuthority(String username, String authority);
 
+	/**
+	 * Reads up to maxResults user summaries with an id greater than lastId, ordered by id. No entity is loaded.
+	 */
+	List<PrincipalSummary> findPrincipalSummaries(long lastId, int maxResults);
+
+	/**
+	 * Reads up to maxResults grants of the authority with an id greater than lastId, ordered by id
+	 */
+	List<Authority> findAuthorities(String authority, long lastId, int maxResults);
+
+	/**
+	 * All grants of the authority, ordered by id, read through a database cursor in bounded memory.
+	 * Needs an active transaction, and the stream must be closed.
+	 */
+	Stream<Authority> streamAuthorities(String authority);
+
+	/**
+	 * The language is only read for its id, read-only instances from MetadataDao are fine
+	 */
 	Principal createPrincipal(String username, String password, boolean enabled, Language language, Collection<String> authorities);
 
+	/**
+	 * Creates principals and their authorities in bulk, flushing and clearing the persistence context
+	 * every few principals. Managed entities of the caller are detached along the way.
+	 * Returns the count of inserted rows, principals and authorities.
+	 */
+	int createPrincipals(Collection<PrincipalSpec> principals);
+
 	void deletePrincipal(Principal principal);
 
+	/**
+	 * The language is only read for its id, read-only instances from MetadataDao are fine.
+	 * Evicts the user's cached locale, so a logged in user gets the new one from the next request on.
+	 */
+	void setLanguage(Principal principal, Language language);
+
 	Authority assignAuthority(Principal principal, String authority);
 
 	void unassignAuthority(Principal principal, String authority);
 
+	/*
+	 * Maintenance
+	 */
+
+	/**
+	 * Reads up to maxResults users with an id greater than lastId, ordered by id.
+	 * Doesn't go through the persistence context, it's meant for walking the whole table in chunks.
+	 */
+	List<StoredCredentials> findCredentialsAfter(long lastId, int maxResults);
+
+	/**
+	 * Stores the password of each user, matched by id, in a single batch.
+	 * A user is only updated if its stored password is still the one the credentials were read with.
+	 * Returns the count of updated users.
+	 */
+	int updatePasswords(List<StoredCredentials> credentials);
+
 }
@@ -0,0 +1,20 @@
+package basearch.dao;
+
+/**
+ * Checkpoints of the long-running maintenance jobs, so they can resume where they stopped
+ */
+public interface JobCheckpointDao {
+
+	/**
+	 * Returns the last id processed by the job, or null if it has no checkpoint
+	 */
+	Long getCheckpoint(String job);
+
+	/**
+	 * Creates or moves the checkpoint of the job
+	 */
+	void saveCheckpoint(String job, long lastId);
+
+	void clearCheckpoint(String job);
+
+}
@@ -12,6 +12,8 @@ public interface MetadataDao {
 	 *  Language
 	 */
 
+	// languages are reference data, they're handed out as shared, read-only instances that must not be modified
+
 	/**
 	 * Returns the list of all configured languages
 	 */
@@ -29,5 +31,5 @@ public interface MetadataDao {
 	 * If more than one is found, exception is thrown.
 	 */
 	Language getLanguageBy(String langCode, String region, String variant) throws NonUniqueResultException;
-	
+
 }
@@ -1,16 +1,57 @@
 package basearch.dao;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
 
+import basearch.model.Language;
 import basearch.model.User;
 
 public interface UserDao {
 
 	List<User> findAllUsers();
 
+	/**
+	 * All users, ordered by id, read through a database cursor in bounded memory. Users get detached as the stream advances.
+	 * Needs an active transaction, and the stream must be closed.
+	 */
+	Stream<User> streamUsers();
+
+	/**
+	 * Reads up to maxResults users with an id greater than lastId, ordered by id
+	 */
+	List<User> findUsersAfter(long lastId, int maxResults);
+
+	/**
+	 * Page of the users with any of the languages, ordered by username
+	 */
+	List<User> findUsersByLanguage(Collection<Language> languages, int firstResult, int maxResults);
+
+	/**
+	 * The user is a shared, read-only instance, it must not be modified
+	 */
 	User getByUsername(String username);
+
+	/**
+	 * Same as getByUsername(), but loads the language in the same query
+	 */
+	User getByUsernameWithLanguage(String username);
+
+	/**
+	 * Id of the user's language, read from the users table alone, on the primary. May return null if the user doesn't exist.
+	 */
+	Long getLanguageId(String username);
 	
+	/**
+	 * Stores the locale as the user's language. Locales that don't match an app language are ignored.
+	 */
 	void setLocaleFromLocaleResolver(String username, Locale locale);
 
+	/**
+	 * Batch version of setLocaleFromLocaleResolver(), running a single JDBC batch. Returns the count of updated users.
+	 */
+	int setLocalesFromLocaleResolver(Map<String,Locale> localesByUsername);
+
 }
@@ -1,33 +1,76 @@
 package basearch.dao.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
+import javax.inject.Inject;
 import javax.persistence.EntityNotFoundException;
+import javax.persistence.Query;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
+import basearch.cache.NaturalKeyIndex;
+import basearch.cache.UserDetailsCache;
+import basearch.cache.UserLocaleCache;
 import basearch.dao.AuthDao;
 import basearch.model.Language;
+import basearch.model.PersistentObject_;
+import basearch.model.User;
 import basearch.model.auth.Authority;
 import basearch.model.auth.Authority_;
 import basearch.model.auth.Principal;
+import basearch.model.auth.PrincipalSpec;
+import basearch.model.auth.PrincipalSummary;
 import basearch.model.auth.Principal_;
+import basearch.model.auth.StoredCredentials;
 
 @Repository
 public class AuthDaoImpl extends BaseDao implements AuthDao {
 
+	private UserLocaleCache userLocaleCache;
+	private UserDetailsCache userDetailsCache;
+	private NaturalKeyIndex naturalKeyIndex;
+	private int bulkFlushSize;
+
+	@Inject
+	public AuthDaoImpl(UserLocaleCache userLocaleCache, UserDetailsCache userDetailsCache, NaturalKeyIndex naturalKeyIndex, @Value("${basearch.persistence.bulk-flush-size:500}") int bulkFlushSize) {
+		if (bulkFlushSize < 1) throw new IllegalArgumentException("Bulk flush size must be greater than zero");
+		this.userLocaleCache = userLocaleCache;
+		this.userDetailsCache = userDetailsCache;
+		this.naturalKeyIndex = naturalKeyIndex;
+		this.bulkFlushSize = bulkFlushSize;
+	}
+
 	@Override
 	public Principal getByUsername(String username) {
-		return entity(Principal.class).with(Principal_.username, username).find();
+		// by id once the username has been seen, from the persistence context or the shared cache
+		Long id = username == null ? null : naturalKeyIndex.getUserId(username);
+		if (id != null) {
+			Principal p = entityFor(Principal.class, id);
+			if (p != null && username.equals(p.getUsername())) return p;
+			naturalKeyIndex.evictUsername(username);
+		}
+		Principal p = entity(Principal.class).with(Principal_.username, username).find();
+		if (p != null) naturalKeyIndex.putUserId(username, p.getId());
+		return p;
 	}
 
 	@Override
 	public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
 		if (username == null || username.isEmpty()) throw new UsernameNotFoundException("Username is null or empty");
-		Principal p = getByUsername(username);
+		// authorities and language in the same round trip
+		Principal p = entity(Principal.class).fetching(Principal_.authorities).fetching(Principal_.language).with(Principal_.username, username).find();
 		if (p == null) throw new UsernameNotFoundException("Username not found in db");
+		naturalKeyIndex.putUserId(username, p.getId());
 		return p;
 	}
 	
@@ -36,17 +79,48 @@ public class AuthDaoImpl extends BaseDao implements AuthDao {
 		return entity(Authority.class).with(Authority_.username, username).and(Authority_.authority, authority).find();
 	}
 
+	@Override
+	public List<Principal> getPrincipals(Collection<Long> ids) {
+		if (ids == null) throw new IllegalArgumentException("Parameter ids can't be null");
+		return entitiesFor(Principal.class, ids);
+	}
+
+	@Override
+	@Transactional(readOnly=true, propagation=Propagation.SUPPORTS)
+	public List<PrincipalSummary> findPrincipalSummaries(long lastId, int maxResults) {
+		if (maxResults < 1) throw new IllegalArgumentException("Parameter maxResults must be greater than zero");
+		return select(PrincipalSummary.class).from(Principal.class).column(PersistentObject_.id).column(Principal_.username).column(Principal_.enabled).after(lastId).limit(maxResults).list();
+	}
+
+	@Override
+	@Transactional(readOnly=true, propagation=Propagation.SUPPORTS)
+	public List<Authority> findAuthorities(String authority, long lastId, int maxResults) {
+		if (authority == null || authority.isEmpty()) throw new IllegalArgumentException("Parameter authority can't be null or empty");
+		if (maxResults < 1) throw new IllegalArgumentException("Parameter maxResults must be greater than zero");
+		return entities(Authority.class).with(Authority_.authority, authority).after(lastId).limit(maxResults).list();
+	}
+
+	@Override
+	public Stream<Authority> streamAuthorities(String authority) {
+		if (authority == null || authority.isEmpty()) throw new IllegalArgumentException("Parameter authority can't be null or empty");
+		return entities(Authority.class).with(Authority_.authority, authority).stream();
+	}
+
 	@Override
 	public Principal createPrincipal(String username, String password, boolean enabled, Language language, Collection<String> authorities) {
 		if (username == null || username.isEmpty()) throw new IllegalArgumentException("Parameter username can't be null or empty");
 		if (password == null || password.isEmpty()) throw new IllegalArgumentException("Parameter password can't be null or empty");
-		if (language == null) throw new IllegalArgumentException("Parameter language can't be null");
+		if (language == null || language.getId() == null) throw new IllegalArgumentException("Parameter language can't be null or unsaved");
 		Principal p = new Principal();
 		p.setEnabled(enabled);
-		p.setLanguage(language);
+		// languages are handed out read-only from the shared cache, the principal gets this context's own
+		p.setLanguage(referenceFor(Language.class, language.getId()));
 		p.setPassword(password);
 		p.setUsername(username);
+		userDetailsCache.evict(username);
 		persist(p);
+		// ids come from the sequence on persist
+		naturalKeyIndex.putUserId(username, p.getId());
 		if (authorities != null && authorities.size() > 0) {
 			for (String authority : authorities) {
 				Authority a = new Authority(p, authority);
@@ -57,16 +131,81 @@ public class AuthDaoImpl extends BaseDao implements AuthDao {
 		return p;
 	}
 
+	@Override
+	public int createPrincipals(Collection<PrincipalSpec> principals) {
+		if (principals == null) throw new IllegalArgumentException("Parameter principals can't be null");
+		if (principals.isEmpty()) return 0;
+		// references are only good until the next clear
+		Map<Long,Language> languages = new HashMap<>();
+		// evicted once per flush, each eviction stays registered with the transaction until it completes
+		List<String> usernames = new ArrayList<>(Math.min(principals.size(), bulkFlushSize));
+		int rows = 0, pending = 0;
+		for (PrincipalSpec spec : principals) {
+			Language language = languages.get(spec.getLanguageId());
+			if (language == null) {
+				language = referenceFor(Language.class, spec.getLanguageId());
+				languages.put(spec.getLanguageId(), language);
+			}
+			Principal p = new Principal();
+			p.setEnabled(spec.isEnabled());
+			p.setLanguage(language);
+			p.setPassword(spec.getPassword());
+			p.setUsername(spec.getUsername());
+			usernames.add(spec.getUsername());
+			persist(p);
+			naturalKeyIndex.putUserId(spec.getUsername(), p.getId());
+			rows++;
+			for (String authority : spec.getAuthorities()) {
+				Authority a = new Authority(p, authority);
+				p.addAuthority(a);
+				persist(a);
+				rows++;
+			}
+			if (++pending == bulkFlushSize) {
+				// inserts go out as jdbc batches, then the context starts over empty
+				userDetailsCache.evict(usernames);
+				flush();
+				clear();
+				languages.clear();
+				usernames.clear();
+				pending = 0;
+			}
+		}
+		if (pending > 0) {
+			userDetailsCache.evict(usernames);
+			flush();
+		}
+		return rows;
+	}
+
 	@Override
 	public void deletePrincipal(Principal principal) {
 		if (principal == null) throw new IllegalArgumentException("Parameter principal can't be null");
+		if (principal.getUsername() != null) evictCachedUser(principal.getUsername());
 		if (isPersistent(principal)) remove(principal);
 		else if (principal.getId() == null || principal.getId().longValue() < 1) throw new IllegalArgumentException("Can't remove entity, it's not persistent and has no valid id");
 		else {
 			Principal p = entityFor(Principal.class, principal.getId());
 			if (p == null) throw new EntityNotFoundException("Tried to remove entity with id " + principal.getId() + " but it doesn't exist");
-			else remove(p);
+			else {
+				evictCachedUser(p.getUsername());
+				remove(p);
+			}
+		}
+	}
+
+	@Override
+	public void setLanguage(Principal principal, Language language) {
+		if (principal == null) throw new IllegalArgumentException("Parameter principal can't be null");
+		if (language == null || language.getId() == null) throw new IllegalArgumentException("Parameter language can't be null or unsaved");
+		if (!isPersistent(principal)) {
+			if (principal.getId() == null) throw new IllegalArgumentException("Can't update entity, it's not persistent and has no valid id");
+			Principal p = entityFor(Principal.class, principal.getId());
+			if (p == null) throw new EntityNotFoundException("Tried to update entity with id " + principal.getId() + " but it doesn't exist");
+			principal = p;
 		}
+		principal.setLanguage(referenceFor(Language.class, language.getId()));
+		userLocaleCache.evict(principal.getUsername());
 	}
 
 	@Override
@@ -74,6 +213,7 @@ public class AuthDaoImpl extends BaseDao implements AuthDao {
 		if (authority == null || authority.isEmpty()) throw new IllegalArgumentException("Parameter authority can't be null or empty");
 		if (principal == null) throw new IllegalArgumentException("Parameter principal can't be null");
 		if (!isPersistent(principal)) principal = refresh(principal);
+		userDetailsCache.evict(principal.getUsername());
 		Authority a = new Authority(principal, authority);
 		principal.addAuthority(a);
 		persist(a);
@@ -83,6 +223,7 @@ public class AuthDaoImpl extends BaseDao implements AuthDao {
 	@Override
 	public void unassignAuthority(Principal principal, String authority) {
 		Authority a = new Authority(principal, authority);
+		userDetailsCache.evict(principal.getUsername());
 		if (isPersistent(principal)) {
 			if (principal.getAuthorities() != null && principal.getAuthorities().contains(a)) {
 				principal.getAuthorities().remove(a);
@@ -97,4 +238,53 @@ public class AuthDaoImpl extends BaseDao implements AuthDao {
 		}
 	}
 
+	@Override
+	public List<StoredCredentials> findCredentialsAfter(long lastId, int maxResults) {
+		if (maxResults < 1) throw new IllegalArgumentException("Parameter maxResults must be greater than zero");
+		Query q = nativeQueryFor("select id, username, password from users where id > ? order by id");
+		q.setParameter(1, lastId);
+		q.setMaxResults(maxResults);
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = q.getResultList();
+		List<StoredCredentials> results = new ArrayList<>(rows.size());
+		for (Object[] row : rows) {
+			results.add(new StoredCredentials(((Number)row[0]).longValue(), (String)row[1], (String)row[2]));
+		}
+		return results;
+	}
+
+	@Override
+	public int updatePasswords(List<StoredCredentials> credentials) {
+		if (credentials == null) throw new IllegalArgumentException("Parameter credentials can't be null");
+		if (credentials.isEmpty()) return 0;
+		List<Object[]> rows = new ArrayList<>(credentials.size());
+		for (StoredCredentials c : credentials) {
+			if (c.getId() == null || c.getPassword() == null || c.getPassword().isEmpty() || c.getReadPassword() == null) throw new IllegalArgumentException("Credentials need an id, a password and the password they were read with");
+			rows.add(new Object[] { c.getPassword(), c.getId(), c.getReadPassword() });
+		}
+		// a password changed since it was read is left alone, the new one wins over the job
+		int[] counts = batchUpdateCounts("update users set password = ? where id = ? and password = ?", rows);
+		List<Long> ids = new ArrayList<>(counts.length);
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0) continue;
+			StoredCredentials c = credentials.get(i);
+			ids.add(c.getId());
+			if (c.getUsername() != null) userDetailsCache.evict(c.getUsername());
+		}
+		// only the updated rows leave the shared cache, users and principals map the same table
+		evictFromSharedCache(Principal.class, ids);
+		evictFromSharedCache(User.class, ids);
+		return ids.size();
+	}
+
+	/*
+	 * Utility methods
+	 */
+
+	private void evictCachedUser(String username) {
+		userLocaleCache.evict(username);
+		userDetailsCache.evict(username);
+		naturalKeyIndex.evictUsername(username);
+	}
+
 }
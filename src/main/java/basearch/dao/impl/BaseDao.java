@@ -1,95 +1,650 @@
 package basearch.dao.impl;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import javax.inject.Inject;
+import javax.persistence.Cache;
 import javax.persistence.EntityGraph;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityNotFoundException;
 import javax.persistence.NoResultException;
 import javax.persistence.NonUniqueResultException;
 import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
 import javax.persistence.Query;
+import javax.persistence.TransactionRequiredException;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Order;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
 import javax.persistence.metamodel.SingularAttribute;
 
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.config.ResultSetType;
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+import org.eclipse.persistence.jpa.JpaEntityManagerFactory;
+import org.eclipse.persistence.queries.ScrollableCursor;
+import org.eclipse.persistence.sessions.UnitOfWork;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.ClassUtils;
+
+import basearch.metrics.DaoMetrics;
+import basearch.metrics.DaoMetrics.Operation;
 import basearch.model.PersistentObject;
 import basearch.model.PersistentObject_;
 
 
 public abstract class BaseDao {
 
+	private static final String TEMPLATE_PREFIX = "BaseDao.entity:";
+	private static final String LIST_TEMPLATE_PREFIX = "BaseDao.entities:";
+	private static final String PROJECTION_TEMPLATE_PREFIX = "BaseDao.select:";
+
+	private static final Map<String,Object> READ_ONLY_HINTS = Collections.<String,Object>singletonMap(QueryHints.READ_ONLY, HintValues.TRUE);
+
 	@PersistenceContext
 	private EntityManager em;
 
+	// rows the driver fetches per round trip, and rows read between persistence context clears, when streaming
+	private int streamFetchSize = 500;
+	private int streamClearInterval = 1000;
+	// ids per IN list when loading entities in bulk, hsqldb copes well with a few hundred parameters
+	private int inListChunkSize = 500;
+
+	// null leaves the operations unrecorded
+	private DaoMetrics daoMetrics;
+
 	public void setEm(EntityManager em) {
 		this.em = em;
 	}
 
+	@Inject
+	public void setDaoMetrics(DaoMetrics daoMetrics) {
+		this.daoMetrics = daoMetrics;
+	}
+
+	@Value("${basearch.persistence.stream-fetch-size:500}")
+	public void setStreamFetchSize(int streamFetchSize) {
+		if (streamFetchSize < 1) throw new IllegalArgumentException("Parameter streamFetchSize must be greater than zero");
+		this.streamFetchSize = streamFetchSize;
+	}
+
+	@Value("${basearch.persistence.stream-clear-interval:1000}")
+	public void setStreamClearInterval(int streamClearInterval) {
+		if (streamClearInterval < 1) throw new IllegalArgumentException("Parameter streamClearInterval must be greater than zero");
+		this.streamClearInterval = streamClearInterval;
+	}
+
+	@Value("${basearch.persistence.in-list-chunk-size:500}")
+	public void setInListChunkSize(int inListChunkSize) {
+		if (inListChunkSize < 1) throw new IllegalArgumentException("Parameter inListChunkSize must be greater than zero");
+		this.inListChunkSize = inListChunkSize;
+	}
+
 	/*
 	 * fluent accessors
 	 */
 
 	/**
-	 * Fluent accessor for a single entity, by id or with property restrictions
+	 * Fluent accessor for a single entity, by id or with property restrictions.
+	 * Each distinct shape of query is compiled once into a parameterized named query, later calls only bind values.
 	 */
 	protected final <E extends PersistentObject> EntityAccessor<E> entity(Class<E> type) {
 		return new EntityAccessorImpl<E>(type);
 	}
 	protected interface EntityAccessor<E extends PersistentObject> {
+		/**
+		 * Loads the relationship in the same query, with a left join fetch. May be called more than once.
+		 */
+		public EntityAccessor<E> fetching(Attribute<? super E, ?> relationship);
+		/**
+		 * The entity is read from the shared cache and not registered in the persistence context, so there is nothing
+		 * to check for changes at commit. It's shared with other readers, it must never be modified.
+		 */
+		public EntityAccessor<E> readOnly();
 		public E by(Long id);
-		public <T> PropertyBoundEntityAccessor<E> with(SingularAttribute<E, T> propertyName, T propertyValue);
+		public <T> PropertyBoundEntityAccessor<E> with(SingularAttribute<? super E, T> propertyName, T propertyValue);
 	}
 	protected interface PropertyBoundEntityAccessor<E extends PersistentObject> {
-		public <T> PropertyBoundEntityAccessor<E> and(SingularAttribute<E, T> propertyName, T propertyValue);
+		public <T> PropertyBoundEntityAccessor<E> and(SingularAttribute<? super E, T> propertyName, T propertyValue);
 		public E find();
 	}
 	private class EntityAccessorImpl<E extends PersistentObject> implements EntityAccessor<E>,PropertyBoundEntityAccessor<E> {
 		private final Class<E> type;
-		private CriteriaBuilder builder;
-		private CriteriaQuery<E> q;
-		private Root<E> r;
-		private Map<Path<?>,Object> parameters;
+		private List<Attribute<? super E, ?>> fetches;
+		private final List<SingularAttribute<? super E, ?>> properties = new ArrayList<SingularAttribute<? super E, ?>>(2);
+		private final List<Object> values = new ArrayList<Object>(2);
+		private boolean readOnly;
+		// positions of the properties sorted by name, the order of the parameters of the template
+		private int[] parameterOrder;
 		public EntityAccessorImpl(Class<E> type) { this.type = type; }
+		@Override public EntityAccessor<E> fetching(Attribute<? super E, ?> relationship) {
+			assert(relationship != null && relationship.isAssociation());
+			if (fetches == null) fetches = new ArrayList<Attribute<? super E, ?>>(2);
+			fetches.add(relationship);
+			return this;
+		}
+		@Override public EntityAccessor<E> readOnly() {
+			readOnly = true;
+			return this;
+		}
 		@Override public E by(Long id) {
 			assert(id != null);
-			return em.find(type, id);
+			if (fetches == null) {
+				long started = System.nanoTime();
+				E entity;
+				try { entity = readOnly ? em.find(type, id, READ_ONLY_HINTS) : em.find(type, id); } catch(RuntimeException re) { failed(Operation.FIND, type); throw re; }
+				record(Operation.FIND, type, started, entity == null ? 0 : 1);
+				return entity;
+			}
+			return with(PersistentObject_.id, id).find();
 		}
-		@Override public <T> PropertyBoundEntityAccessor<E> with(SingularAttribute<E, T> propertyName, T propertyValue) {
-			assert(propertyName != null && propertyValue != null);
-			builder = em.getCriteriaBuilder();
-			q = builder.createQuery(type);
-			r = q.from(type);
-			parameters = new HashMap<Path<?>,Object>();
-			parameters.put(r.get(propertyName), propertyValue);
-			return this;
+		@Override public <T> PropertyBoundEntityAccessor<E> with(SingularAttribute<? super E, T> propertyName, T propertyValue) {
+			return and(propertyName, propertyValue);
 		}
-		@Override public <T> PropertyBoundEntityAccessor<E> and(SingularAttribute<E, T> propertyName, T propertyValue) {
+		@Override public <T> PropertyBoundEntityAccessor<E> and(SingularAttribute<? super E, T> propertyName, T propertyValue) {
 			assert(propertyName != null && propertyValue != null);
-			parameters.put(r.get(propertyName), propertyValue);
+			properties.add(propertyName);
+			values.add(propertyValue);
 			return this;
 		}
 		@Override public E find() throws NonUniqueResultException {
-			Iterator<Entry<Path<?>,Object>> eit = parameters.entrySet().iterator();
-			Entry<Path<?>,Object> entry = eit.next();
-			Predicate conditions = builder.equal(entry.getKey(), entry.getValue());
-			while (eit.hasNext()) {
-				entry = eit.next();
-				conditions = builder.and(conditions,builder.equal(entry.getKey(), entry.getValue()));
+			TypedQuery<E> q = em.createNamedQuery(template(), type);
+			for (int i = 0; i < parameterOrder.length; i++) q.setParameter("p" + (i + 1), values.get(parameterOrder[i]));
+			if (readOnly) q.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+			if (fetches != null) {
+				// join fetches only fill in the entities the query builds, already managed ones get their relationships loaded afterwards
+				for (Attribute<? super E, ?> relationship : fetches) q.setHint(QueryHints.LOAD_GROUP_ATTRIBUTE, relationship.getName());
+			}
+			long started = System.nanoTime();
+			E entity;
+			try { entity = q.getSingleResult(); } catch(NoResultException nre) { entity = null; } catch(RuntimeException re) { failed(Operation.FIND, type); throw re; }
+			record(Operation.FIND, type, started, entity == null ? 0 : 1);
+			return entity;
+		}
+		/**
+		 * Name of the named query for this shape (type, fetches and properties, both by name), compiling it the first time
+		 */
+		private String template() {
+			StringBuilder name = new StringBuilder(64).append(TEMPLATE_PREFIX).append(type.getName());
+			if (fetches != null) {
+				List<String> fetched = new ArrayList<String>(fetches.size());
+				for (Attribute<? super E, ?> relationship : fetches) fetched.add(relationship.getName());
+				Collections.sort(fetched);
+				for (String relationship : fetched) name.append("+").append(relationship);
+			}
+			List<String> names = new ArrayList<String>(properties.size());
+			for (SingularAttribute<? super E, ?> property : properties) names.add(property.getName());
+			parameterOrder = sortedPositions(names);
+			for (int position : parameterOrder) name.append(":").append(names.get(position));
+			String templateName = name.toString();
+			if (!isTemplateRegistered(templateName)) compileTemplate(templateName);
+			return templateName;
+		}
+		private void compileTemplate(String templateName) {
+			CriteriaBuilder builder = em.getCriteriaBuilder();
+			CriteriaQuery<E> q = builder.createQuery(type);
+			Root<E> r = q.from(type);
+			if (fetches != null) {
+				for (Attribute<? super E, ?> relationship : fetches) {
+					r.fetch(relationship.getName(), JoinType.LEFT);
+					// collection joins repeat the root once per element
+					if (relationship.isCollection()) q.distinct(true);
+				}
+			}
+			Predicate conditions = null;
+			for (int i = 0; i < parameterOrder.length; i++) {
+				SingularAttribute<? super E, ?> property = properties.get(parameterOrder[i]);
+				Predicate condition = builder.equal(r.get(property), builder.parameter(ClassUtils.resolvePrimitiveIfNecessary(property.getJavaType()), "p" + (i + 1)));
+				conditions = conditions == null ? condition : builder.and(conditions, condition);
 			}
 			q.where(conditions);
-			try { return em.createQuery(q).getSingleResult(); } catch(NoResultException nre) { return null; }
+			registerTemplate(templateName, q);
+		}
+	}
+
+	/**
+	 * Fluent accessor for lists of entities, with equality, IN and range restrictions, ordering and paging.
+	 * Like entity(), each distinct shape of query is compiled once into a parameterized named query.
+	 */
+	protected final <E extends PersistentObject> EntityLister<E> entities(Class<E> type) {
+		return new EntityListerImpl<E>(type);
+	}
+	protected interface EntityLister<E extends PersistentObject> {
+		public <T> EntityLister<E> with(SingularAttribute<? super E, T> property, T value);
+		/**
+		 * An empty collection of values matches nothing, list() returns an empty list without querying
+		 */
+		public <T> EntityLister<E> in(SingularAttribute<? super E, T> property, Collection<? extends T> values);
+		/**
+		 * Inclusive on both ends, a null bound leaves that end open
+		 */
+		public <T extends Comparable<? super T>> EntityLister<E> between(SingularAttribute<? super E, T> property, T from, T to);
+		/**
+		 * May be called more than once, the id is always added as the last criterion so pages are stable
+		 */
+		public EntityLister<E> orderBy(SingularAttribute<? super E, ?> property, boolean ascending);
+		/**
+		 * Keyset pagination: only entities with an id greater than lastId, ordered by id.
+		 * Can't be combined with orderBy(), pass the id of the last entity of the previous page.
+		 */
+		public EntityLister<E> after(Long lastId);
+		public EntityLister<E> offset(int firstResult);
+		public EntityLister<E> limit(int maxResults);
+		public List<E> list();
+		/**
+		 * Same results as list(), read through a database cursor instead of loaded at once. See BaseDao.stream().
+		 */
+		public Stream<E> stream();
+	}
+	private enum Operator {
+		EQ("="), IN(" in"), GE(">="), LE("<=");
+		private final String symbol;
+		private Operator(String symbol) { this.symbol = symbol; }
+	}
+	/**
+	 * Restrictions, keyset and ordering of entities() and select() queries, and their part of the template. Restrictions
+	 * are sorted by property and operator, so the same ones given in any order make the same template. Ordering is kept
+	 * in call order, it's part of what the query means.
+	 */
+	private static final class Restrictions<E extends PersistentObject> {
+		private final List<SingularAttribute<? super E, ?>> properties = new ArrayList<SingularAttribute<? super E, ?>>(2);
+		private final List<Operator> operators = new ArrayList<Operator>(2);
+		private final List<Object> values = new ArrayList<Object>(2);
+		private List<SingularAttribute<? super E, ?>> orders;
+		private List<Boolean> directions;
+		private Long lastId;
+		// an empty IN matches nothing, no need to query
+		private boolean empty;
+		// positions of the restrictions sorted, the order of the parameters of the template
+		private int[] parameterOrder;
+		private void add(SingularAttribute<? super E, ?> property, Operator operator, Object value) {
+			if (operator == Operator.IN && ((Collection<?>)value).isEmpty()) empty = true;
+			properties.add(property);
+			operators.add(operator);
+			values.add(value);
+		}
+		private void orderBy(SingularAttribute<? super E, ?> property, boolean ascending) {
+			if (lastId != null) throw new IllegalStateException("Keyset pagination is always ordered by id");
+			if (orders == null) {
+				orders = new ArrayList<SingularAttribute<? super E, ?>>(2);
+				directions = new ArrayList<Boolean>(2);
+			}
+			orders.add(property);
+			directions.add(ascending);
+		}
+		private void after(Long lastId) {
+			if (orders != null) throw new IllegalStateException("Keyset pagination is always ordered by id");
+			this.lastId = lastId;
+		}
+		private void appendTo(StringBuilder name) {
+			List<String> keys = new ArrayList<String>(properties.size());
+			for (int i = 0; i < properties.size(); i++) keys.add(properties.get(i).getName() + operators.get(i).symbol);
+			parameterOrder = sortedPositions(keys);
+			for (int position : parameterOrder) name.append(":").append(keys.get(position));
+			if (lastId != null) name.append(":after");
+			if (orders != null) {
+				for (int i = 0; i < orders.size(); i++) name.append(directions.get(i) ? "^" : "v").append(orders.get(i).getName());
+			}
+		}
+		/**
+		 * Binds the values to a query of the template, appendTo() must have been called
+		 */
+		private void bind(TypedQuery<?> q) {
+			for (int i = 0; i < parameterOrder.length; i++) q.setParameter("p" + (i + 1), values.get(parameterOrder[i]));
+			if (lastId != null) q.setParameter("lastId", lastId);
+		}
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private void applyTo(CriteriaBuilder builder, CriteriaQuery<?> q, Root<E> r) {
+			List<Predicate> conditions = new ArrayList<Predicate>(parameterOrder.length + 1);
+			for (int i = 0; i < parameterOrder.length; i++) {
+				SingularAttribute<? super E, ?> property = properties.get(parameterOrder[i]);
+				Operator operator = operators.get(parameterOrder[i]);
+				Expression path = r.get(property);
+				// IN binds the whole collection to a single parameter, expanded when the query runs
+				Class<?> parameterType = operator == Operator.IN ? Collection.class : ClassUtils.resolvePrimitiveIfNecessary(property.getJavaType());
+				Expression parameter = builder.parameter(parameterType, "p" + (i + 1));
+				switch (operator) {
+					case EQ: conditions.add(builder.equal(path, parameter)); break;
+					case IN: conditions.add(path.in(parameter)); break;
+					case GE: conditions.add(builder.greaterThanOrEqualTo(path, parameter)); break;
+					case LE: conditions.add(builder.lessThanOrEqualTo(path, parameter)); break;
+				}
+			}
+			if (lastId != null) conditions.add(builder.greaterThan(r.get(PersistentObject_.id), builder.parameter(Long.class, "lastId")));
+			q.where(conditions.toArray(new Predicate[conditions.size()]));
+			List<Order> order = new ArrayList<Order>(orders == null ? 1 : orders.size() + 1);
+			if (orders != null) {
+				for (int i = 0; i < orders.size(); i++) order.add(directions.get(i) ? builder.asc(r.get(orders.get(i))) : builder.desc(r.get(orders.get(i))));
+			}
+			order.add(builder.asc(r.get(PersistentObject_.id)));
+			q.orderBy(order);
+		}
+	}
+	private class EntityListerImpl<E extends PersistentObject> implements EntityLister<E> {
+		private final Class<E> type;
+		private final Restrictions<E> restrictions = new Restrictions<E>();
+		private int firstResult;
+		private int maxResults = -1;
+		public EntityListerImpl(Class<E> type) { this.type = type; }
+		@Override public <T> EntityLister<E> with(SingularAttribute<? super E, T> property, T value) {
+			assert(property != null && value != null);
+			restrictions.add(property, Operator.EQ, value);
+			return this;
+		}
+		@Override public <T> EntityLister<E> in(SingularAttribute<? super E, T> property, Collection<? extends T> values) {
+			assert(property != null && values != null);
+			restrictions.add(property, Operator.IN, values);
+			return this;
+		}
+		@Override public <T extends Comparable<? super T>> EntityLister<E> between(SingularAttribute<? super E, T> property, T from, T to) {
+			assert(property != null);
+			if (from != null) restrictions.add(property, Operator.GE, from);
+			if (to != null) restrictions.add(property, Operator.LE, to);
+			return this;
+		}
+		@Override public EntityLister<E> orderBy(SingularAttribute<? super E, ?> property, boolean ascending) {
+			assert(property != null);
+			restrictions.orderBy(property, ascending);
+			return this;
+		}
+		@Override public EntityLister<E> after(Long lastId) {
+			assert(lastId != null);
+			restrictions.after(lastId);
+			return this;
+		}
+		@Override public EntityLister<E> offset(int firstResult) {
+			assert(firstResult >= 0);
+			this.firstResult = firstResult;
+			return this;
+		}
+		@Override public EntityLister<E> limit(int maxResults) {
+			assert(maxResults > 0);
+			this.maxResults = maxResults;
+			return this;
+		}
+		@Override public List<E> list() {
+			if (restrictions.empty) return Collections.emptyList();
+			TypedQuery<E> q = prepare();
+			long started = System.nanoTime();
+			List<E> results;
+			try { results = q.getResultList(); } catch(RuntimeException re) { failed(Operation.QUERY, type); throw re; }
+			record(Operation.QUERY, type, started, results.size());
+			return results;
+		}
+		@Override public Stream<E> stream() {
+			if (restrictions.empty) return Stream.empty();
+			return cursorStream(prepare());
+		}
+		private TypedQuery<E> prepare() {
+			TypedQuery<E> q = em.createNamedQuery(template(), type);
+			restrictions.bind(q);
+			if (firstResult > 0) q.setFirstResult(firstResult);
+			if (maxResults > 0) q.setMaxResults(maxResults);
+			return q;
+		}
+		/**
+		 * Name of the named query for this shape (type, restrictions and ordering), compiling it the first time
+		 */
+		private String template() {
+			StringBuilder name = new StringBuilder(64).append(LIST_TEMPLATE_PREFIX).append(type.getName());
+			restrictions.appendTo(name);
+			String templateName = name.toString();
+			if (!isTemplateRegistered(templateName)) {
+				CriteriaQuery<E> q = em.getCriteriaBuilder().createQuery(type);
+				restrictions.applyTo(em.getCriteriaBuilder(), q, q.from(type));
+				registerTemplate(templateName, q);
+			}
+			return templateName;
+		}
+	}
+
+	/**
+	 * Fluent accessor for projections: only the given columns are read, and each row is handed out as a new instance of the
+	 * result type built through the constructor taking the columns in order. A single column of the result type is returned as is.
+	 * Nothing gets registered in the persistence context or change tracked. Compiled into named queries, like entity().
+	 */
+	protected final <R> ProjectionSource<R> select(Class<R> resultType) {
+		return new ProjectionSource<R>() {
+			@Override public <E extends PersistentObject> ProjectionQuery<R,E> from(Class<E> type) {
+				assert(type != null);
+				return new ProjectionQueryImpl<R,E>(resultType, type);
+			}
+		};
+	}
+	protected interface ProjectionSource<R> {
+		public <E extends PersistentObject> ProjectionQuery<R,E> from(Class<E> type);
+	}
+	protected interface ProjectionQuery<R, E extends PersistentObject> {
+		public ProjectionQuery<R,E> column(SingularAttribute<? super E, ?> attribute);
+		/**
+		 * Column of a to-one relationship, joined in the query
+		 */
+		public <X> ProjectionQuery<R,E> column(SingularAttribute<? super E, X> relationship, SingularAttribute<? super X, ?> attribute);
+		public <T> ProjectionQuery<R,E> with(SingularAttribute<? super E, T> property, T value);
+		/**
+		 * An empty collection matches nothing
+		 */
+		public <T> ProjectionQuery<R,E> in(SingularAttribute<? super E, T> property, Collection<? extends T> values);
+		/**
+		 * The id is always added as the last criterion
+		 */
+		public ProjectionQuery<R,E> orderBy(SingularAttribute<? super E, ?> property, boolean ascending);
+		/**
+		 * Keyset pagination, see EntityLister.after()
+		 */
+		public ProjectionQuery<R,E> after(Long lastId);
+		public ProjectionQuery<R,E> limit(int maxResults);
+		public R find() throws NonUniqueResultException;
+		public List<R> list();
+	}
+	private class ProjectionQueryImpl<R, E extends PersistentObject> implements ProjectionQuery<R,E> {
+		private final Class<R> resultType;
+		private final Class<E> type;
+		// relationship of each column, null for the entity's own attributes
+		private final List<SingularAttribute<?, ?>> relationships = new ArrayList<SingularAttribute<?, ?>>(4);
+		private final List<SingularAttribute<?, ?>> columns = new ArrayList<SingularAttribute<?, ?>>(4);
+		private final Restrictions<E> restrictions = new Restrictions<E>();
+		private int maxResults = -1;
+		public ProjectionQueryImpl(Class<R> resultType, Class<E> type) {
+			this.resultType = resultType;
+			this.type = type;
+		}
+		@Override public ProjectionQuery<R,E> column(SingularAttribute<? super E, ?> attribute) {
+			assert(attribute != null);
+			relationships.add(null);
+			columns.add(attribute);
+			return this;
+		}
+		@Override public <X> ProjectionQuery<R,E> column(SingularAttribute<? super E, X> relationship, SingularAttribute<? super X, ?> attribute) {
+			assert(relationship != null && relationship.isAssociation() && attribute != null);
+			relationships.add(relationship);
+			columns.add(attribute);
+			return this;
+		}
+		@Override public <T> ProjectionQuery<R,E> with(SingularAttribute<? super E, T> property, T value) {
+			assert(property != null && value != null);
+			restrictions.add(property, Operator.EQ, value);
+			return this;
+		}
+		@Override public <T> ProjectionQuery<R,E> in(SingularAttribute<? super E, T> property, Collection<? extends T> values) {
+			assert(property != null && values != null);
+			restrictions.add(property, Operator.IN, values);
+			return this;
+		}
+		@Override public ProjectionQuery<R,E> orderBy(SingularAttribute<? super E, ?> property, boolean ascending) {
+			assert(property != null);
+			restrictions.orderBy(property, ascending);
+			return this;
+		}
+		@Override public ProjectionQuery<R,E> after(Long lastId) {
+			assert(lastId != null);
+			restrictions.after(lastId);
+			return this;
+		}
+		@Override public ProjectionQuery<R,E> limit(int maxResults) {
+			assert(maxResults > 0);
+			this.maxResults = maxResults;
+			return this;
+		}
+		@Override public R find() throws NonUniqueResultException {
+			if (restrictions.empty) return null;
+			TypedQuery<R> q = prepare();
+			long started = System.nanoTime();
+			R result;
+			try { result = q.getSingleResult(); } catch(NoResultException nre) { result = null; } catch(RuntimeException re) { failed(Operation.FIND, type); throw re; }
+			record(Operation.FIND, type, started, result == null ? 0 : 1);
+			return result;
+		}
+		@Override public List<R> list() {
+			if (restrictions.empty) return Collections.emptyList();
+			TypedQuery<R> q = prepare();
+			long started = System.nanoTime();
+			List<R> results;
+			try { results = q.getResultList(); } catch(RuntimeException re) { failed(Operation.QUERY, type); throw re; }
+			record(Operation.QUERY, type, started, results.size());
+			return results;
+		}
+		private TypedQuery<R> prepare() {
+			if (columns.isEmpty()) throw new IllegalStateException("A projection needs at least one column");
+			TypedQuery<R> q = em.createNamedQuery(template(), resultType);
+			restrictions.bind(q);
+			if (maxResults > 0) q.setMaxResults(maxResults);
+			return q;
+		}
+		/**
+		 * Name of the named query for this shape (result type, columns, restrictions and ordering), compiling it the first time
+		 */
+		private String template() {
+			StringBuilder name = new StringBuilder(96).append(PROJECTION_TEMPLATE_PREFIX).append(resultType.getName()).append("<").append(type.getName());
+			for (int i = 0; i < columns.size(); i++) {
+				name.append(i == 0 ? "(" : ",");
+				if (relationships.get(i) != null) name.append(relationships.get(i).getName()).append(".");
+				name.append(columns.get(i).getName());
+			}
+			name.append(")");
+			restrictions.appendTo(name);
+			String templateName = name.toString();
+			if (!isTemplateRegistered(templateName)) compileTemplate(templateName);
+			return templateName;
+		}
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private void compileTemplate(String templateName) {
+			CriteriaBuilder builder = em.getCriteriaBuilder();
+			CriteriaQuery<R> q = builder.createQuery(resultType);
+			Root<E> r = q.from(type);
+			List<Path<?>> selections = new ArrayList<Path<?>>(columns.size());
+			for (int i = 0; i < columns.size(); i++) {
+				SingularAttribute relationship = relationships.get(i);
+				Path<?> owner = relationship == null ? r : r.get(relationship);
+				selections.add(owner.get((SingularAttribute)columns.get(i)));
+			}
+			if (selections.size() == 1 && ClassUtils.isAssignable(resultType, selections.get(0).getJavaType())) q.select((Path)selections.get(0));
+			else q.select(builder.construct(resultType, selections.toArray(new Path<?>[selections.size()])));
+			restrictions.applyTo(builder, q, r);
+			registerTemplate(templateName, q);
 		}
 	}
 
+	/**
+	 * Streams the query results through a forward-only cursor, fetching rows in chunks as the stream advances.
+	 * Every few entities the persistence context is flushed and the entities streamed since are detached, so memory
+	 * stays bounded however many rows there are. Entities the caller already held stay managed, even when streamed.
+	 * Results bypass the shared cache, a walk over a big table would otherwise fill it and evict the entries worth
+	 * keeping. Needs an active transaction, and the stream must be closed to release the cursor.
+	 */
+	private <T extends PersistentObject> Stream<T> cursorStream(TypedQuery<T> q) {
+		if (!TransactionSynchronizationManager.isActualTransactionActive()) throw new TransactionRequiredException("Cursors need an active transaction");
+		q.setHint(QueryHints.SCROLLABLE_CURSOR, HintValues.TRUE);
+		q.setHint(QueryHints.RESULT_SET_TYPE, ResultSetType.ForwardOnly);
+		q.setHint(QueryHints.JDBC_FETCH_SIZE, streamFetchSize);
+		q.setHint(QueryHints.MAINTAIN_CACHE, HintValues.FALSE);
+		// what the caller holds before the walk, streaming one of those must not detach it
+		final Set<Object> held = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+		held.addAll(em.unwrap(UnitOfWorkImpl.class).getCloneMapping().keySet());
+		final ScrollableCursor cursor = (ScrollableCursor)((Query)q).getSingleResult();
+		final int clearInterval = streamClearInterval;
+		Iterator<T> entities = new Iterator<T>() {
+			private final List<T> streamed = new ArrayList<T>(clearInterval);
+			@Override public boolean hasNext() {
+				return cursor.hasNext();
+			}
+			@SuppressWarnings("unchecked")
+			@Override public T next() {
+				if (streamed.size() == clearInterval) {
+					// changes made to them are kept
+					em.flush();
+					for (T entity : streamed) em.detach(entity);
+					streamed.clear();
+					cursor.clear();
+				}
+				T entity = (T)cursor.next();
+				if (!held.contains(entity)) streamed.add(entity);
+				return entity;
+			}
+		};
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(entities, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(cursor::close);
+	}
+
+	private void registerTemplate(String templateName, CriteriaQuery<?> q) {
+		// named queries are translated once and then only cloned, and always bind their parameters
+		em.getEntityManagerFactory().addNamedQuery(templateName, em.createQuery(q));
+	}
+
+	// the named queries of the entity manager factory are the one registry of templates, shared by every dao
+	private boolean isTemplateRegistered(String templateName) {
+		return em.getEntityManagerFactory().unwrap(JpaEntityManagerFactory.class).getServerSession().getQuery(templateName) != null;
+	}
+
+	/**
+	 * Positions of the keys in ascending order, so restrictions given in any order make the same template
+	 */
+	private static int[] sortedPositions(final List<String> keys) {
+		Integer[] positions = new Integer[keys.size()];
+		for (int i = 0; i < positions.length; i++) positions[i] = i;
+		Arrays.sort(positions, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return keys.get(a).compareTo(keys.get(b));
+			}
+		});
+		int[] sorted = new int[positions.length];
+		for (int i = 0; i < positions.length; i++) sorted[i] = positions[i];
+		return sorted;
+	}
+
 	/**
 	 * Fluent accessor for querying a single entity, by named query or by jpql
 	 */
@@ -97,6 +652,10 @@ public abstract class BaseDao {
 		return new EntityQuerierImpl<E>(type);
 	}
 	protected interface EntityQuerier<E extends PersistentObject> {
+		/**
+		 * Results are shared, read-only instances, see EntityAccessor.readOnly()
+		 */
+		public EntityQuerier<E> readOnly();
 		public EntityNamedQuerier<E> named(String queryName);
 	}
 	protected interface EntityNamedQuerier<E extends PersistentObject> {
@@ -105,13 +664,25 @@ public abstract class BaseDao {
 	private class EntityQuerierImpl<E extends PersistentObject> implements EntityQuerier<E>, EntityNamedQuerier<E> {
 		private final Class<E> type;
 		private TypedQuery<E> query;
+		private boolean readOnly;
 		public EntityQuerierImpl(Class<E> type) { this.type = type; }
+		@Override public EntityQuerier<E> readOnly() {
+			readOnly = true;
+			return this;
+		}
 		@Override public EntityNamedQuerier<E> named(String queryName) {
 			assert(queryName != null && queryName.length() > 0);
 			this.query = em.createNamedQuery(queryName, type);
+			if (readOnly) query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
 			return this;
 		}
-		@Override public List<E> list() { return this.query.getResultList(); }
+		@Override public List<E> list() {
+			long started = System.nanoTime();
+			List<E> results;
+			try { results = this.query.getResultList(); } catch(RuntimeException re) { failed(Operation.QUERY, type); throw re; }
+			record(Operation.QUERY, type, started, results.size());
+			return results;
+		}
 	}
 
 	/*
@@ -123,9 +694,51 @@ public abstract class BaseDao {
 	 */
 	protected final <T extends PersistentObject> T entityFor(Class<T> type, Long id) {
 		assert(type != null && id != null);
-		return em.find(type, id);
+		long started = System.nanoTime();
+		T entity;
+		try { entity = em.find(type, id); } catch(RuntimeException re) { failed(Operation.FIND, type); throw re; }
+		record(Operation.FIND, type, started, entity == null ? 0 : 1);
+		return entity;
 	}
 	
+	/**
+	 * Gets the entities with the given ids, in the order requested. Ids that don't exist are skipped.
+	 * Entities already in the persistence context or the shared cache are served from memory, the rest are read
+	 * with as few IN queries as the chunk size allows, instead of one query per id.
+	 */
+	protected final <T extends PersistentObject> List<T> entitiesFor(Class<T> type, Collection<Long> ids) {
+		assert(type != null && ids != null);
+		if (ids.isEmpty()) return Collections.emptyList();
+		Map<Long,T> found = new HashMap<>(ids.size() * 2);
+		Set<Long> missing = new LinkedHashSet<>();
+		// outside a transaction every call gets a new persistence context, so there is nothing to look into
+		UnitOfWork uow = TransactionSynchronizationManager.isActualTransactionActive() ? em.unwrap(UnitOfWork.class) : null;
+		Cache cache = em.getEntityManagerFactory().getCache();
+		for (Long id : ids) {
+			assert(id != null);
+			if (found.containsKey(id) || missing.contains(id)) continue;
+			if ((uow != null && uow.getIdentityMapAccessor().containsObjectInIdentityMap(id, type)) || cache.contains(type, id)) {
+				T entity = em.find(type, id);
+				if (entity != null) {
+					found.put(id, entity);
+					continue;
+				}
+			}
+			missing.add(id);
+		}
+		List<Long> pending = new ArrayList<>(missing);
+		for (int from = 0; from < pending.size(); from += inListChunkSize) {
+			List<Long> chunk = pending.subList(from, Math.min(pending.size(), from + inListChunkSize));
+			for (T entity : entities(type).in(PersistentObject_.id, chunk).list()) found.put(entity.getId(), entity);
+		}
+		List<T> results = new ArrayList<>(ids.size());
+		for (Long id : ids) {
+			T entity = found.get(id);
+			if (entity != null) results.add(entity);
+		}
+		return results;
+	}
+
 	/**
 	 * Gets an entity. May return a proxy. Never returns null, but proxy may throw an exception if object
 	 * is non-existent. Best used when object is known to exist.
@@ -142,7 +755,9 @@ public abstract class BaseDao {
 	 */
 	protected final <T extends PersistentObject> T refresh(T entity) {
 		assert(entity != null);
-		em.refresh(entity);
+		long started = System.nanoTime();
+		try { em.refresh(entity); } catch(RuntimeException re) { failed(Operation.REFRESH, entity.getClass()); throw re; }
+		record(Operation.REFRESH, entity.getClass(), started, 1);
 		return entity;
 	}
 	
@@ -151,7 +766,24 @@ public abstract class BaseDao {
 	 */
 	protected final <T extends PersistentObject> void persist(T entity) {
 		assert(entity != null);
-		em.persist(entity);
+		long started = System.nanoTime();
+		try { em.persist(entity); } catch(RuntimeException re) { failed(Operation.PERSIST, entity.getClass()); throw re; }
+		record(Operation.PERSIST, entity.getClass(), started, 1);
+	}
+
+	/**
+	 * Writes pending changes to the database, without committing them
+	 */
+	protected final void flush() {
+		em.flush();
+	}
+
+	/**
+	 * Detaches every entity in the persistence context, changes not yet flushed are lost.
+	 * Keeps the context small during bulk operations, but callers' entities get detached too.
+	 */
+	protected final void clear() {
+		em.clear();
 	}
 
 	/**
@@ -167,7 +799,9 @@ public abstract class BaseDao {
 	 */
 	protected final <T extends PersistentObject> void remove(T entity) {
 		assert(entity != null);
-		em.remove(entity);
+		long started = System.nanoTime();
+		try { em.remove(entity); } catch(RuntimeException re) { failed(Operation.REMOVE, entity.getClass()); throw re; }
+		record(Operation.REMOVE, entity.getClass(), started, 1);
 	}
 
 	/*
@@ -175,11 +809,40 @@ public abstract class BaseDao {
 	 */
 
 	/**
-	 * Lists all objects of type
+	 * Lists all objects of type. Loads the whole table into the persistence context, use stream() for big tables.
 	 */
 	protected final <T extends PersistentObject> List<T> allOf(Class<T> type) {
 		TypedQuery<T> q = em.createQuery(em.getCriteriaBuilder().createQuery(type));
-		return q.getResultList();
+		long started = System.nanoTime();
+		List<T> results;
+		try { results = q.getResultList(); } catch(RuntimeException re) { failed(Operation.QUERY, type); throw re; }
+		record(Operation.QUERY, type, started, results.size());
+		return results;
+	}
+
+	/**
+	 * Streams all objects of type, ordered by id, in bounded memory. Meant for exports and batch jobs over big tables.
+	 * Needs an active transaction and the stream must be closed, entities get detached as the stream advances.
+	 */
+	protected final <T extends PersistentObject> Stream<T> stream(Class<T> type) {
+		return entities(type).stream();
+	}
+
+	/**
+	 * Runs the action on all objects of type, ordered by id, in bounded memory. Returns the count of objects visited.
+	 * Same constraints as stream().
+	 */
+	protected final <T extends PersistentObject> long forEach(Class<T> type, Consumer<? super T> action) {
+		assert(action != null);
+		long visited = 0;
+		try (Stream<T> entities = stream(type)) {
+			Iterator<T> it = entities.iterator();
+			while (it.hasNext()) {
+				action.accept(it.next());
+				visited++;
+			}
+		}
+		return visited;
 	}
 
 	/**
@@ -192,7 +855,11 @@ public abstract class BaseDao {
 		criteria.orderBy(builder.asc(r.get(PersistentObject_.id)));
 		TypedQuery<T> q = em.createQuery(criteria);
 		q.setMaxResults(1);
-		return q.getSingleResult();
+		long started = System.nanoTime();
+		T entity;
+		try { entity = q.getSingleResult(); } catch(RuntimeException re) { failed(Operation.FIND, type); throw re; }
+		record(Operation.FIND, type, started, 1);
+		return entity;
 	}
 
 	/*
@@ -202,18 +869,21 @@ public abstract class BaseDao {
 	/**
 	 * Lists entities of type T having it's properties matched with values from params. Params can't be null.
 	 * Property names and values arrays must be of the same size and have the same internal order.
+	 * Untyped shortcut for entities(type).with(...).list(), ordered by id.
+	 * 
+	 * @throws IllegalArgumentException if a property doesn't exist
 	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
 	protected final <T extends PersistentObject> List<T> entitiesWith(Class<T> type, String[] properties, Object[] values) {
 		assert(type != null && properties != null && values != null);
 		assert(properties.length == values.length);
-		CriteriaBuilder builder = em.getCriteriaBuilder();
-		CriteriaQuery<T> q = builder.createQuery(type);
-		Root<T> r = q.from(type);
+		EntityType<T> entityType = em.getMetamodel().entity(type);
+		EntityLister<T> lister = entities(type);
 		for (int i = 0; i < properties.length; i++) {
-			//q.where(builder.)
+			assert(values[i] != null);
+			lister.with((SingularAttribute)entityType.getSingularAttribute(properties[i]), values[i]);
 		}
-		List<T> results = em.createQuery(q).getResultList();
-		return results;
+		return lister.list();
 	}
 
 	/*
@@ -224,12 +894,85 @@ public abstract class BaseDao {
 		return em.createEntityGraph(type);
 	}
 
+	/**
+	 * Recorded in the DAO metrics when it runs
+	 */
+	@SuppressWarnings("unchecked")
 	protected final <T extends PersistentObject> TypedQuery<T> jpqlQueryFor(Class<T> type, String query) {
-		return em.createQuery(query, type);
+		return (TypedQuery<T>)recording(em.createQuery(query, type), TypedQuery.class, type);
 	}
 
+	/**
+	 * Recorded in the DAO metrics when it runs, as NativeSql
+	 */
 	protected final Query nativeQueryFor(String query) {
-		return em.createNativeQuery(query);
+		return (Query)recording(em.createNativeQuery(query), Query.class, NativeSql.class);
+	}
+
+	/**
+	 * Runs a native statement once per row of parameters, as a single JDBC batch on the transaction's connection.
+	 * Bypasses the persistence context and the shared cache, so callers must evict whatever the statement changes.
+	 * Returns the total count of updated rows.
+	 * 
+	 * @throws PersistenceException
+	 */
+	protected final int batchUpdate(String statement, List<Object[]> rows) {
+		int total = 0;
+		for (int count : batchUpdateCounts(statement, rows)) {
+			if (count > 0) total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * Same as batchUpdate, returning the count of each row instead of the total.
+	 * Drivers that can't tell report Statement.SUCCESS_NO_INFO for a row.
+	 */
+	protected final int[] batchUpdateCounts(String statement, List<Object[]> rows) {
+		assert(statement != null && rows != null);
+		if (rows.isEmpty()) return new int[0];
+		Connection connection = em.unwrap(Connection.class);
+		if (connection == null) throw new TransactionRequiredException("Batch updates need an active transaction");
+		try (PreparedStatement ps = connection.prepareStatement(statement)) {
+			for (Object[] row : rows) {
+				for (int i = 0; i < row.length; i++) ps.setObject(i + 1, row[i]);
+				ps.addBatch();
+			}
+			long started = System.nanoTime();
+			int[] counts;
+			try { counts = ps.executeBatch(); } catch(SQLException | RuntimeException e) { failed(Operation.UPDATE, NativeSql.class); throw e; }
+			int total = 0;
+			for (int count : counts) {
+				if (count > 0) total += count;
+			}
+			record(Operation.UPDATE, NativeSql.class, started, total);
+			return counts;
+		} catch(SQLException sqle) {
+			throw new PersistenceException("Batch update failed: " + statement, sqle);
+		}
+	}
+
+	/**
+	 * Removes every instance of type from the shared cache
+	 */
+	protected final void evictFromSharedCache(Class<? extends PersistentObject> type) {
+		em.getEntityManagerFactory().getCache().evict(type);
+	}
+
+	/**
+	 * Removes the instances of type with the given ids from the shared cache
+	 */
+	protected final void evictFromSharedCache(Class<? extends PersistentObject> type, Collection<Long> ids) {
+		assert(type != null && ids != null);
+		Cache cache = em.getEntityManagerFactory().getCache();
+		for (Long id : ids) cache.evict(type, id);
+	}
+
+	/**
+	 * Values per IN list, queries with longer lists should be split in chunks this size
+	 */
+	protected final int getInListChunkSize() {
+		return inListChunkSize;
 	}
 
 	protected final CriteriaBuilder criteriaBuilder() {
@@ -238,7 +981,12 @@ public abstract class BaseDao {
 
 	protected final <T> List<T> query(CriteriaQuery<T> q) {
 		assert(q != null);
-		return em.createQuery(q).getResultList();
+		TypedQuery<T> typed = em.createQuery(q);
+		long started = System.nanoTime();
+		List<T> results;
+		try { results = typed.getResultList(); } catch(RuntimeException re) { failed(Operation.QUERY, q.getResultType()); throw re; }
+		record(Operation.QUERY, q.getResultType(), started, results.size());
+		return results;
 	}
 
 	/**
@@ -247,7 +995,81 @@ public abstract class BaseDao {
 	 */
 	protected final <T> T singleResult(CriteriaQuery<T> q) {
 		assert(q != null);
-		return em.createQuery(q).getSingleResult();
+		TypedQuery<T> typed = em.createQuery(q);
+		long started = System.nanoTime();
+		T result;
+		try { result = typed.getSingleResult(); } catch(RuntimeException re) { failed(Operation.FIND, q.getResultType()); throw re; }
+		record(Operation.FIND, q.getResultType(), started, 1);
+		return result;
+	}
+
+	private void record(Operation operation, Class<?> type, long started, int rows) {
+		if (daoMetrics != null) daoMetrics.record(operation, type, System.nanoTime() - started, rows);
+	}
+
+	private void failed(Operation operation, Class<?> type) {
+		if (daoMetrics != null) daoMetrics.recordFailure(operation, type);
+	}
+
+	private Object recording(Query query, Class<? extends Query> queryInterface, Class<?> type) {
+		if (daoMetrics == null) return query;
+		return Proxy.newProxyInstance(BaseDao.class.getClassLoader(), new Class<?>[] { queryInterface }, new RecordingQueryHandler(query, type));
+	}
+
+	// the type native statements are recorded as
+	private static final class NativeSql {
+	}
+
+	/**
+	 * Records the query when it runs, the rest is forwarded
+	 */
+	private final class RecordingQueryHandler implements InvocationHandler {
+
+		private final Query target;
+		private final Class<?> type;
+
+		private RecordingQueryHandler(Query target, Class<?> type) {
+			this.target = target;
+			this.type = type;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Operation operation;
+			switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "getResultList":
+				operation = Operation.QUERY;
+				break;
+			case "getSingleResult":
+				operation = Operation.FIND;
+				break;
+			case "executeUpdate":
+				operation = Operation.UPDATE;
+				break;
+			default:
+				operation = null;
+			}
+			long started = System.nanoTime();
+			Object result;
+			try {
+				result = method.invoke(target, args);
+			} catch(InvocationTargetException ite) {
+				Throwable failure = ite.getTargetException();
+				if (operation == Operation.FIND && failure instanceof NoResultException) record(operation, type, started, 0);
+				else if (operation != null) failed(operation, type);
+				throw failure;
+			}
+			if (operation == Operation.QUERY) record(operation, type, started, ((List<?>)result).size());
+			else if (operation == Operation.FIND) record(operation, type, started, 1);
+			else if (operation == Operation.UPDATE) record(operation, type, started, (Integer)result);
+			// setters return the query, calls must keep going through the proxy
+			return result == target ? proxy : result;
+		}
+
 	}
 
 }
@@ -0,0 +1,45 @@
+package basearch.dao.impl;
+
+import java.util.List;
+
+import javax.persistence.Query;
+
+import org.springframework.stereotype.Repository;
+
+import basearch.dao.JobCheckpointDao;
+
+@Repository
+public class JobCheckpointDaoImpl extends BaseDao implements JobCheckpointDao {
+
+	@Override
+	public Long getCheckpoint(String job) {
+		if (job == null || job.isEmpty()) throw new IllegalArgumentException("Job can't be null or empty.");
+		Query q = nativeQueryFor("select last_id from job_checkpoints where job = ?");
+		q.setParameter(1, job);
+		List<?> results = q.getResultList();
+		if (results.isEmpty()) return null;
+		return ((Number)results.get(0)).longValue();
+	}
+
+	@Override
+	public void saveCheckpoint(String job, long lastId) {
+		if (job == null || job.isEmpty()) throw new IllegalArgumentException("Job can't be null or empty.");
+		Query update = nativeQueryFor("update job_checkpoints set last_id = ? where job = ?");
+		update.setParameter(1, lastId);
+		update.setParameter(2, job);
+		if (update.executeUpdate() > 0) return;
+		Query insert = nativeQueryFor("insert into job_checkpoints (job, last_id) values (?, ?)");
+		insert.setParameter(1, job);
+		insert.setParameter(2, lastId);
+		insert.executeUpdate();
+	}
+
+	@Override
+	public void clearCheckpoint(String job) {
+		if (job == null || job.isEmpty()) throw new IllegalArgumentException("Job can't be null or empty.");
+		Query q = nativeQueryFor("delete from job_checkpoints where job = ?");
+		q.setParameter(1, job);
+		q.executeUpdate();
+	}
+
+}
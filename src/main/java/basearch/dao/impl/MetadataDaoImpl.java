@@ -3,10 +3,14 @@ package basearch.dao.impl;
 import java.util.Collections;
 import java.util.List;
 
+import javax.inject.Inject;
 import javax.persistence.NonUniqueResultException;
 
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
+import basearch.cache.NaturalKeyIndex;
 import basearch.dao.MetadataDao;
 import basearch.model.Language;
 import basearch.model.Language_;
@@ -14,16 +18,25 @@ import basearch.model.Language_;
 @Repository
 public class MetadataDaoImpl extends BaseDao implements MetadataDao {
 
+	private NaturalKeyIndex naturalKeyIndex;
+
+	@Inject
+	public MetadataDaoImpl(NaturalKeyIndex naturalKeyIndex) {
+		this.naturalKeyIndex = naturalKeyIndex;
+	}
+
 	@Override
+	@Transactional(readOnly=true, propagation=Propagation.SUPPORTS)
 	public List<Language> findAllLanguages() {
-		List<Language> results = query(Language.class).named(Language.QUERY_ALL).list();
+		List<Language> results = query(Language.class).readOnly().named(Language.QUERY_ALL).list();
 		if (results == null || results.size() == 0) return Collections.emptyList();
 		return results;
 	}
 
 	@Override
+	@Transactional(readOnly=true, propagation=Propagation.SUPPORTS)
 	public Language getDefaultLanguage() {
-		Language l = entity(Language.class).by(Language.DEFAULT_LANGUAGE_ID);
+		Language l = entity(Language.class).readOnly().by(Language.DEFAULT_LANGUAGE_ID);
 		return l;
 	}
 	
@@ -31,11 +44,28 @@ public class MetadataDaoImpl extends BaseDao implements MetadataDao {
 	public Language getLanguageBy(String langCode, String region, String variant) throws NonUniqueResultException {
 		if (langCode == null || langCode.isEmpty()) throw new IllegalArgumentException("Language code can't be null or empty.");
 		if (variant != null && region == null) throw new IllegalArgumentException("Region can't be null if variant is not null.");
-		
-		PropertyBoundEntityAccessor<Language> accessor = entity(Language.class).with(Language_.langCode, langCode);
+
+		// by id once the codes have been seen, straight from the cache
+		Long id = naturalKeyIndex.getLanguageId(langCode, region, variant);
+		if (id != null) {
+			Language l = entity(Language.class).readOnly().by(id);
+			if (l != null && matches(l, langCode, region, variant)) return l;
+			naturalKeyIndex.evictLanguages();
+		}
+		PropertyBoundEntityAccessor<Language> accessor = entity(Language.class).readOnly().with(Language_.langCode, langCode);
 		if (region != null) accessor.and(Language_.regionCode, region);
 		if (variant != null) accessor.and(Language_.variantCode, variant);
-		return accessor.find();
+		Language l = accessor.find();
+		if (l != null) naturalKeyIndex.putLanguageId(langCode, region, variant, l.getId());
+		return l;
+	}
+
+	/*
+	 * Utility methods
+	 */
+
+	private static boolean matches(Language l, String langCode, String region, String variant) {
+		return langCode.equals(l.getLangCode()) && (region == null || region.equals(l.getRegionCode())) && (variant == null || variant.equals(l.getVariantCode()));
 	}
 
 }
@@ -1,47 +1,166 @@
 package basearch.dao.impl;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.stream.Stream;
 
+import javax.inject.Inject;
 import javax.persistence.NoResultException;
 import javax.persistence.TypedQuery;
 
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
+import basearch.cache.NaturalKeyIndex;
 import basearch.dao.UserDao;
+import basearch.model.Language;
 import basearch.model.User;
+import basearch.model.User_;
+import basearch.model.auth.Principal;
 
 @Repository
 public class UserDaoImpl extends BaseDao implements UserDao {
 
 	private static final Logger logger = LoggerFactory.getLogger(UserDaoImpl.class);
-	
+
+	private NaturalKeyIndex naturalKeyIndex;
+
+	@Inject
+	public UserDaoImpl(NaturalKeyIndex naturalKeyIndex) {
+		this.naturalKeyIndex = naturalKeyIndex;
+	}
+
 	@Override
+	@Transactional(readOnly=true, propagation=Propagation.SUPPORTS)
 	public List<User> findAllUsers() {
 		List<User> results = allOf(User.class);
 		if (results == null || results.size() == 0) return Collections.emptyList();
 		return results;
 	}
 
+	@Override
+	public Stream<User> streamUsers() {
+		return stream(User.class);
+	}
+
+	@Override
+	@Transactional(readOnly=true, propagation=Propagation.SUPPORTS)
+	public List<User> findUsersAfter(long lastId, int maxResults) {
+		if (maxResults < 1) throw new IllegalArgumentException("maxResults must be greater than zero");
+		return entities(User.class).after(lastId).limit(maxResults).list();
+	}
+
+	@Override
+	@Transactional(readOnly=true, propagation=Propagation.SUPPORTS)
+	public List<User> findUsersByLanguage(Collection<Language> languages, int firstResult, int maxResults) {
+		if (languages == null) throw new IllegalArgumentException("languages can't be null");
+		if (firstResult < 0) throw new IllegalArgumentException("firstResult can't be negative");
+		if (maxResults < 1) throw new IllegalArgumentException("maxResults must be greater than zero");
+		return entities(User.class).in(User_.language, languages).orderBy(User_.username, true).offset(firstResult).limit(maxResults).list();
+	}
+
 	@Override
 	public User getByUsername(String username) {
 		if (username == null || username.isEmpty()) throw new IllegalArgumentException("username can't be null");
+		// by id once the username has been seen, from the persistence context or the shared cache
+		Long id = naturalKeyIndex.getUserId(username);
+		if (id != null) {
+			User u = entity(User.class).readOnly().by(id);
+			if (u != null && username.equals(u.getUsername())) return u;
+			naturalKeyIndex.evictUsername(username);
+		}
 		// @CacheIndex doesn't seem to work with Criteria queries, so this needs to be a jpql
 		TypedQuery<User> q = jpqlQueryFor(User.class, "select u from User u where u.username = :name");
 		q.setParameter("name", username);
+		q.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
 		try {
-			return q.getSingleResult();
+			User u = q.getSingleResult();
+			naturalKeyIndex.putUserId(username, u.getId());
+			return u;
 		} catch(NoResultException nre) {
 			return null;
 		}
 	}
 
+	@Override
+	public User getByUsernameWithLanguage(String username) {
+		if (username == null || username.isEmpty()) throw new IllegalArgumentException("username can't be null");
+		User u = entity(User.class).readOnly().fetching(User_.language).with(User_.username, username).find();
+		if (u != null) naturalKeyIndex.putUserId(username, u.getId());
+		return u;
+	}
+
+	// not read-only, so it reads from the primary, the locale it leads to is cached
+	@Override
+	@Transactional(propagation=Propagation.SUPPORTS)
+	public Long getLanguageId(String username) {
+		if (username == null || username.isEmpty()) throw new IllegalArgumentException("username can't be null");
+		return select(Long.class).from(User.class).column(User_.languageId).with(User_.username, username).find();
+	}
+
 	@Override
 	public void setLocaleFromLocaleResolver(String username, Locale locale) {
 		logger.debug("setLocaleFromLocaleResolver() - {} - {}", username, locale);
+		if (username == null || username.isEmpty()) throw new IllegalArgumentException("username can't be null");
+		if (locale == null) throw new IllegalArgumentException("locale can't be null");
+		setLocalesFromLocaleResolver(Collections.singletonMap(username, locale));
+	}
+
+	@Override
+	public int setLocalesFromLocaleResolver(Map<String,Locale> localesByUsername) {
+		if (localesByUsername == null) throw new IllegalArgumentException("localesByUsername can't be null");
+		if (localesByUsername.isEmpty()) return 0;
+		// the language list is tiny and query-cached
+		Map<Locale,Long> languageIds = new HashMap<>();
+		for (Language l : query(Language.class).readOnly().named(Language.QUERY_ALL).list()) {
+			languageIds.put(l.toLocale(), l.getId());
+		}
+		List<Object[]> rows = new ArrayList<>(localesByUsername.size());
+		for (Entry<String,Locale> entry : localesByUsername.entrySet()) {
+			Long languageId = languageIds.get(entry.getValue());
+			if (languageId == null) {
+				logger.warn("Ignoring locale '{}' for user {}, it doesn't match any app language", entry.getValue(), entry.getKey());
+				continue;
+			}
+			rows.add(new Object[] { languageId, entry.getKey() });
+		}
+		int updated = batchUpdate("update users set language_id = ? where username = ?", rows);
+		// only the updated rows leave the shared cache, users and principals map the same table
+		List<Long> ids = userIds(localesByUsername.keySet());
+		evictFromSharedCache(User.class, ids);
+		evictFromSharedCache(Principal.class, ids);
+		return updated;
+	}
+
+	/*
+	 * Utility methods
+	 */
+
+	// from the index if seen before, else read in chunks, which leaves nothing in the persistence context
+	private List<Long> userIds(Collection<String> usernames) {
+		List<Long> ids = new ArrayList<>(usernames.size());
+		List<String> unknown = new ArrayList<>();
+		for (String username : usernames) {
+			Long id = naturalKeyIndex.getUserId(username);
+			if (id != null) ids.add(id);
+			else unknown.add(username);
+		}
+		for (int from = 0; from < unknown.size(); from += getInListChunkSize()) {
+			List<String> chunk = unknown.subList(from, Math.min(unknown.size(), from + getInListChunkSize()));
+			ids.addAll(select(Long.class).from(User.class).column(User_.id).in(User_.username, chunk).list());
+		}
+		return ids;
 	}
 
 }
@@ -0,0 +1,41 @@
+package basearch.management;
+
+import java.util.Collections;
+
+import javax.inject.Inject;
+
+import org.springframework.boot.actuate.endpoint.mvc.AbstractNamedMvcEndpoint;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import basearch.CustomLocaleResolver;
+
+/**
+ * Management endpoint for the app languages, which are read once at startup and then served from memory.
+ * <ul>
+ * <li>POST /management/languages/reload reads the languages table again, call it after every change to the table</li>
+ * </ul>
+ */
+@Component
+@ConfigurationProperties(prefix="endpoints.languages")
+public class LanguagesEndpoint extends AbstractNamedMvcEndpoint {
+
+	private CustomLocaleResolver localeResolver;
+
+	@Inject
+	public LanguagesEndpoint(CustomLocaleResolver localeResolver) {
+		super("languages", "/languages", true);
+		this.localeResolver = localeResolver;
+	}
+
+	@PostMapping(path="/reload", produces=MediaType.APPLICATION_JSON_VALUE)
+	@ResponseBody
+	public Object reload() {
+		if (!isEnabled()) return DISABLED_RESPONSE;
+		return Collections.singletonMap("languages", localeResolver.reloadLanguages());
+	}
+
+}
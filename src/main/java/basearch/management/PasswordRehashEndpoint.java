@@ -0,0 +1,75 @@
+package basearch.management;
+
+import java.util.Collections;
+
+import javax.inject.Inject;
+
+import org.springframework.boot.actuate.endpoint.mvc.AbstractNamedMvcEndpoint;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import basearch.service.PasswordMigrationService;
+import basearch.service.PasswordMigrationService.RehashReport;
+
+/**
+ * Management endpoint for the password maintenance jobs. Both operations are CPU heavy, so they're started with POST.
+ * <ul>
+ * <li>POST /management/rehash starts the re-hash job in the background, resuming from the last checkpoint unless resume=false</li>
+ * <li>GET /management/rehash returns the report of the running re-hash, or of the last one</li>
+ * <li>POST /management/rehash/calibrate measures BCrypt costs on this machine</li>
+ * </ul>
+ */
+@Component
+@ConfigurationProperties(prefix="endpoints.rehash")
+public class PasswordRehashEndpoint extends AbstractNamedMvcEndpoint {
+
+	private PasswordMigrationService passwordMigrationService;
+
+	@Inject
+	public PasswordRehashEndpoint(PasswordMigrationService passwordMigrationService) {
+		super("rehash", "/rehash", true);
+		this.passwordMigrationService = passwordMigrationService;
+	}
+
+	@PostMapping(produces=MediaType.APPLICATION_JSON_VALUE)
+	@ResponseBody
+	public Object rehash(@RequestParam(name="resume", defaultValue="true") boolean resume) {
+		if (!isEnabled()) return DISABLED_RESPONSE;
+		try {
+			passwordMigrationService.startRehash(resume);
+		} catch(IllegalStateException ise) {
+			return new ResponseEntity<>(Collections.singletonMap("message", ise.getMessage()), HttpStatus.CONFLICT);
+		}
+		// a chunk takes seconds, the job is followed with GET
+		return new ResponseEntity<>(passwordMigrationService.getRehashReport(), HttpStatus.ACCEPTED);
+	}
+
+	@GetMapping(produces=MediaType.APPLICATION_JSON_VALUE)
+	@ResponseBody
+	public Object report() {
+		if (!isEnabled()) return DISABLED_RESPONSE;
+		RehashReport report = passwordMigrationService.getRehashReport();
+		if (report == null) return new ResponseEntity<>(Collections.singletonMap("message", "No password re-hash has run since startup"), HttpStatus.NOT_FOUND);
+		return report;
+	}
+
+	@PostMapping(path="/calibrate", produces=MediaType.APPLICATION_JSON_VALUE)
+	@ResponseBody
+	public Object calibrate(@RequestParam(name="minCost", defaultValue="8") int minCost, @RequestParam(name="maxCost", defaultValue="14") int maxCost,
+			@RequestParam(name="samples", defaultValue="5") int samples, @RequestParam(name="targetMillis", defaultValue="250") long targetMillis) {
+		if (!isEnabled()) return DISABLED_RESPONSE;
+		try {
+			return passwordMigrationService.calibrate(minCost, maxCost, samples, targetMillis);
+		} catch(IllegalArgumentException iae) {
+			return new ResponseEntity<>(Collections.singletonMap("message", iae.getMessage()), HttpStatus.BAD_REQUEST);
+		}
+	}
+
+}
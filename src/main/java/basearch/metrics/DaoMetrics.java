@@ -0,0 +1,129 @@
+package basearch.metrics;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Latency of every DAO method, and count, latency and rows of the persistence operations each one runs, by entity type.
+ * DAO methods are timed by DaoMetricsInterceptor, which also marks the method running on the thread so BaseDao can
+ * tag its operations with it. Operations run outside a DAO method are not recorded, failed ones are only counted.
+ * Recording takes a couple of map lookups and never allocates once a method and entity type have been seen.
+ * Published through the metrics endpoint as dao.[class].[method].* and dao.[class].[method].[operation].[entity].*,
+ * native statements under the NativeSql entity
+ */
+@Component
+public class DaoMetrics implements PublicMetrics {
+
+	public enum Operation {
+		FIND, QUERY, PERSIST, REMOVE, REFRESH, UPDATE;
+		private final String metricName = name().toLowerCase(Locale.ROOT);
+	}
+
+	// DAO method running on each thread, restored when nested calls return
+	private static final ThreadLocal<MethodStats> current = new ThreadLocal<>();
+
+	private final ConcurrentMap<Method,MethodStats> methods = new ConcurrentHashMap<>();
+
+	/**
+	 * Stats of the DAO method, created the first time it's seen
+	 */
+	public MethodStats statsFor(Method method, Class<?> daoClass) {
+		MethodStats stats = methods.get(method);
+		if (stats != null) return stats;
+		return methods.computeIfAbsent(method, m -> new MethodStats(daoClass.getSimpleName() + "." + m.getName()));
+	}
+
+	/**
+	 * Marks the DAO method as running on this thread, returns the method it interrupts, to be passed to exit()
+	 */
+	public MethodStats enter(MethodStats stats) {
+		MethodStats previous = current.get();
+		current.set(stats);
+		return previous;
+	}
+
+	public void exit(MethodStats previous, MethodStats stats, long elapsedNanos) {
+		stats.latency.recordNanos(elapsedNanos);
+		if (previous == null) current.remove();
+		else current.set(previous);
+	}
+
+	/**
+	 * Records an operation of the DAO method running on this thread, does nothing if there is none
+	 */
+	public void record(Operation operation, Class<?> type, long elapsedNanos, int rows) {
+		MethodStats caller = current.get();
+		if (caller == null) return;
+		OperationStats stats = caller.statsFor(operation, type);
+		stats.latency.recordNanos(elapsedNanos);
+		stats.rows.add(rows);
+	}
+
+	/**
+	 * Counts a failed operation of the DAO method running on this thread, does nothing if there is none
+	 */
+	public void recordFailure(Operation operation, Class<?> type) {
+		MethodStats caller = current.get();
+		if (caller == null) return;
+		caller.statsFor(operation, type).failures.increment();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>(methods.size() * 16);
+		for (MethodStats method : methods.values()) {
+			String prefix = "dao." + method.name;
+			method.latency.addMetrics(prefix, metrics);
+			for (Entry<Class<?>,OperationStats[]> entry : method.operations.entrySet()) {
+				for (Operation operation : Operation.values()) {
+					OperationStats stats = entry.getValue()[operation.ordinal()];
+					if (stats == null) continue;
+					String operationPrefix = prefix + "." + operation.metricName + "." + entry.getKey().getSimpleName();
+					stats.latency.addMetrics(operationPrefix, metrics);
+					metrics.add(new Metric<Long>(operationPrefix + ".rows", stats.rows.sum()));
+					metrics.add(new Metric<Long>(operationPrefix + ".failures", stats.failures.sum()));
+				}
+			}
+		}
+		return metrics;
+	}
+
+	// holders
+
+	public static final class MethodStats {
+		private final String name;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final ConcurrentMap<Class<?>,OperationStats[]> operations = new ConcurrentHashMap<>();
+		private MethodStats(String name) {
+			this.name = name;
+		}
+		private OperationStats statsFor(Operation operation, Class<?> type) {
+			OperationStats[] byOperation = operations.get(type);
+			if (byOperation == null) byOperation = operations.computeIfAbsent(type, t -> new OperationStats[Operation.values().length]);
+			OperationStats stats = byOperation[operation.ordinal()];
+			if (stats != null) return stats;
+			// rare, racing threads must end up with the same instance
+			synchronized (byOperation) {
+				if (byOperation[operation.ordinal()] == null) byOperation[operation.ordinal()] = new OperationStats();
+				return byOperation[operation.ordinal()];
+			}
+		}
+	}
+
+	private static final class OperationStats {
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LongAdder rows = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+	}
+
+}
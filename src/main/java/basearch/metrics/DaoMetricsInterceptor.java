@@ -0,0 +1,33 @@
+package basearch.metrics;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.support.AopUtils;
+
+import basearch.metrics.DaoMetrics.MethodStats;
+
+/**
+ * Times DAO methods and marks them as running, so the operations they run get tagged with them. See DaoMetrics.
+ */
+public class DaoMetricsInterceptor implements MethodInterceptor {
+
+	private final DaoMetrics daoMetrics;
+
+	public DaoMetricsInterceptor(DaoMetrics daoMetrics) {
+		this.daoMetrics = daoMetrics;
+	}
+
+	@Override
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		if (invocation.getMethod().getDeclaringClass() == Object.class) return invocation.proceed();
+		MethodStats stats = daoMetrics.statsFor(invocation.getMethod(), AopUtils.getTargetClass(invocation.getThis()));
+		MethodStats previous = daoMetrics.enter(stats);
+		long started = System.nanoTime();
+		try {
+			return invocation.proceed();
+		} finally {
+			daoMetrics.exit(previous, stats, System.nanoTime() - started);
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package basearch.metrics;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Lock-free latency recorder with log-linear buckets over microseconds, in the spirit of HdrHistogram.
+ * Values below 16us are exact, larger ones land in one of 8 sub-buckets per power of two, so reported
+ * percentiles are upper bounds at most 12.5% above the real value. Recording never allocates.
+ */
+public final class LatencyHistogram {
+
+	private static final int EXACT_VALUES = 16;
+	private static final int SUB_BUCKETS = 8;
+	// enough for about 2^40us, anything above is clamped into the last bucket
+	private static final int BUCKETS = EXACT_VALUES + 37 * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalMicros = new LongAdder();
+	private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+	public void recordNanos(long nanos) {
+		long micros = nanos < 0 ? 0 : nanos / 1000;
+		buckets.incrementAndGet(bucketFor(micros));
+		count.increment();
+		totalMicros.add(micros);
+		maxMicros.accumulate(micros);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getMeanMillis() {
+		long c = count.sum();
+		return c == 0 ? 0 : totalMicros.sum() / (c * 1000d);
+	}
+
+	public double getMaxMillis() {
+		return maxMicros.get() / 1000d;
+	}
+
+	/**
+	 * Upper bound of the bucket holding the given percentile (0-100), in milliseconds
+	 */
+	public double getPercentileMillis(double percentile) {
+		long c = count.sum();
+		if (c == 0) return 0;
+		long target = (long)Math.ceil(c * percentile / 100d);
+		if (target < 1) target = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= target) return Math.min(upperBoundOf(i), maxMicros.get()) / 1000d;
+		}
+		return getMaxMillis();
+	}
+
+	/**
+	 * Adds count, mean, p50, p90, p99 and max (all times in ms) to the metrics, named prefix.*
+	 */
+	public void addMetrics(String prefix, Collection<Metric<?>> metrics) {
+		metrics.add(new Metric<Long>(prefix + ".count", getCount()));
+		metrics.add(new Metric<Double>(prefix + ".mean", getMeanMillis()));
+		metrics.add(new Metric<Double>(prefix + ".p50", getPercentileMillis(50)));
+		metrics.add(new Metric<Double>(prefix + ".p90", getPercentileMillis(90)));
+		metrics.add(new Metric<Double>(prefix + ".p99", getPercentileMillis(99)));
+		metrics.add(new Metric<Double>(prefix + ".max", getMaxMillis()));
+	}
+
+	// bucket math
+
+	private static int bucketFor(long micros) {
+		if (micros < EXACT_VALUES) return (int)micros;
+		int msb = 63 - Long.numberOfLeadingZeros(micros);
+		int shift = msb - 3;
+		int top = (int)(micros >>> shift);
+		int bucket = EXACT_VALUES + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+		return bucket < BUCKETS ? bucket : BUCKETS - 1;
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if (bucket < EXACT_VALUES) return bucket;
+		int shift = (bucket - EXACT_VALUES) / SUB_BUCKETS + 1;
+		int top = (bucket - EXACT_VALUES) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((long)(top + 1) << shift) - 1;
+	}
+
+}
@@ -0,0 +1,147 @@
+package basearch.metrics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.jpa.JpaEntityManagerFactory;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.SessionProfiler;
+import org.eclipse.persistence.sessions.SessionProfilerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Counts the SQL statements each thread sends to the database while a scope is open, a request or a unit of work.
+ * Read queries are also grouped by SQL, so a scope running the same query over and over (the N+1 pattern, usually
+ * a lazy relationship walked in a loop) is reported with a warning when it closes, and can be failed on in tests.
+ * Installed as the EclipseLink session profiler, statements are counted when they're prepared, there is no
+ * statement cache. Plain JDBC work, like BaseDao.batchUpdate(), is not seen. Unless enabled the profiler isn't
+ * installed, and scopes count nothing.
+ */
+@Component
+public class SqlStatementCounter {
+
+	private static final Logger logger = LoggerFactory.getLogger(SqlStatementCounter.class);
+
+	private final EntityManagerFactory entityManagerFactory;
+	private final int repeatedQueryThreshold;
+	private final boolean enabled;
+
+	private final ThreadLocal<Scope> current = new ThreadLocal<>();
+
+	/**
+	 * A threshold of zero never reports repeated queries
+	 */
+	@Inject
+	public SqlStatementCounter(EntityManagerFactory entityManagerFactory, @Value("${basearch.persistence.sql.repeated-query-threshold:5}") int repeatedQueryThreshold, @Value("${basearch.persistence.sql.count-statements:false}") boolean enabled) {
+		if (repeatedQueryThreshold < 0) throw new IllegalArgumentException("Parameter repeatedQueryThreshold can't be negative");
+		this.entityManagerFactory = entityManagerFactory;
+		this.repeatedQueryThreshold = repeatedQueryThreshold;
+		this.enabled = enabled;
+	}
+
+	@PostConstruct
+	public void install() {
+		if (!enabled) return;
+		// client sessions pick the profiler up from the server session when they're acquired
+		entityManagerFactory.unwrap(JpaEntityManagerFactory.class).getServerSession().setProfiler(new SessionProfilerAdapter() {
+			@Override
+			public void startOperationProfile(String operationName, DatabaseQuery query, int weight) {
+				if (!SessionProfiler.SqlPrepare.equals(operationName)) return;
+				Scope scope = current.get();
+				if (scope != null) scope.statementPrepared(query);
+			}
+			@Override
+			public int getProfileWeight() {
+				return SessionProfiler.ALL;
+			}
+		});
+	}
+
+	/**
+	 * Starts counting the statements of this thread, until the scope is closed. Scopes may be nested,
+	 * an inner scope's statements count towards the outer one as well.
+	 */
+	public Scope open(String name) {
+		Scope scope = new Scope(name, current.get());
+		current.set(scope);
+		return scope;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public int getRepeatedQueryThreshold() {
+		return repeatedQueryThreshold;
+	}
+
+	public final class Scope implements AutoCloseable {
+
+		private final String name;
+		private final Scope parent;
+		private int statements;
+		private Map<String,Integer> queries;
+		private boolean closed;
+
+		private Scope(String name, Scope parent) {
+			this.name = name;
+			this.parent = parent;
+		}
+
+		private void statementPrepared(DatabaseQuery query) {
+			for (Scope scope = this; scope != null; scope = scope.parent) {
+				scope.statements++;
+				if (query == null || !query.isReadQuery() || query.getSQLString() == null) continue;
+				if (scope.queries == null) scope.queries = new HashMap<>();
+				scope.queries.merge(query.getSQLString(), 1, Integer::sum);
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getStatements() {
+			return statements;
+		}
+
+		/**
+		 * Read queries run at least as many times as the threshold, with their counts
+		 */
+		public Map<String,Integer> getRepeatedQueries() {
+			if (queries == null || repeatedQueryThreshold == 0) return Collections.emptyMap();
+			Map<String,Integer> repeated = new LinkedHashMap<>();
+			for (Entry<String,Integer> entry : queries.entrySet()) {
+				if (entry.getValue() >= repeatedQueryThreshold) repeated.put(entry.getKey(), entry.getValue());
+			}
+			return repeated;
+		}
+
+		/**
+		 * Stops counting and warns about repeated queries. Must be called on the thread that opened the scope.
+		 */
+		@Override
+		public void close() {
+			if (closed) return;
+			closed = true;
+			current.set(parent);
+			if (parent == null) current.remove();
+			for (Entry<String,Integer> entry : getRepeatedQueries().entrySet()) {
+				logger.warn("{} ran the same query {} times, possible N+1: {}", name, entry.getValue(), entry.getKey());
+			}
+			logger.debug("{} sent {} statements", name, statements);
+		}
+
+	}
+
+}
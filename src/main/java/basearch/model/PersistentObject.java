@@ -10,7 +10,8 @@ import javax.persistence.SequenceGenerator;
 
 @MappedSuperclass
 @Access(AccessType.FIELD)
-@SequenceGenerator(name="jpa_seq")
+// allocation size must match the sequence increment in schema.sql, ids are handed out in blocks
+@SequenceGenerator(name="jpa_seq",sequenceName="jpa_seq",allocationSize=50)
 public abstract class PersistentObject {
 
 	@Id
@@ -23,6 +23,11 @@ public class User extends PersistentObject {
 	@JoinColumn(name="language_id",nullable=false,insertable=false,updatable=false)
 	private Language language;
 
+	// same column as language, read by projections that only need the id
+	@Basic(optional=false)
+	@Column(name="language_id",nullable=false,insertable=false,updatable=false)
+	private Long languageId;
+
 	// getters & setters
 	
 	public String getUsername() {
@@ -33,6 +38,10 @@ public class User extends PersistentObject {
 		return language;
 	}
 
+	public Long getLanguageId() {
+		return languageId;
+	}
+
 	// overrides for immutability
 	
 	@Override
@@ -11,5 +11,6 @@ public class User_ extends PersistentObject_ {
 
     public static volatile SingularAttribute<User, Language> language;
     public static volatile SingularAttribute<User, String> username;
+    public static volatile SingularAttribute<User, Long> languageId;
 
 }
\ No newline at end of file
@@ -15,6 +15,8 @@ import javax.persistence.OneToMany;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 
+import org.eclipse.persistence.annotations.BatchFetch;
+import org.eclipse.persistence.annotations.BatchFetchType;
 import org.eclipse.persistence.annotations.CacheIndex;
 import org.springframework.security.core.userdetails.UserDetails;
 
@@ -40,11 +42,14 @@ public class Principal extends PersistentObject implements UserDetails {
 	@Column(name="enabled",length=50,nullable=false)
 	private boolean enabled;
 
+	// principals read together load their languages and authorities with one IN query per relationship
 	@ManyToOne(fetch=FetchType.LAZY,optional=false)
 	@JoinColumn(name="language_id",nullable=false)
+	@BatchFetch(BatchFetchType.IN)
 	private Language language;
 
 	@OneToMany(fetch=FetchType.EAGER,mappedBy="principal",cascade=CascadeType.REMOVE,orphanRemoval=true)
+	@BatchFetch(BatchFetchType.IN)
 	private Set<Authority> authorities;
 	
 	// getters & setters
@@ -0,0 +1,51 @@
+package basearch.model.auth;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Everything needed to create a principal, for bulk provisioning. The language goes by id, so specs
+ * can be built without loading entities. The password is stored as given, so it must come encoded.
+ */
+public final class PrincipalSpec {
+
+	private final String username;
+	private final String password;
+	private final boolean enabled;
+	private final Long languageId;
+	private final Set<String> authorities;
+
+	public PrincipalSpec(String username, String password, boolean enabled, Long languageId, Collection<String> authorities) {
+		if (username == null || username.isEmpty()) throw new IllegalArgumentException("Parameter username can't be null or empty");
+		if (password == null || password.isEmpty()) throw new IllegalArgumentException("Parameter password can't be null or empty");
+		if (languageId == null) throw new IllegalArgumentException("Parameter languageId can't be null");
+		this.username = username;
+		this.password = password;
+		this.enabled = enabled;
+		this.languageId = languageId;
+		this.authorities = authorities == null || authorities.isEmpty() ? Collections.<String>emptySet() : Collections.unmodifiableSet(new LinkedHashSet<>(authorities));
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public Long getLanguageId() {
+		return languageId;
+	}
+
+	public Set<String> getAuthorities() {
+		return authorities;
+	}
+
+}
@@ -0,0 +1,30 @@
+package basearch.model.auth;
+
+/**
+ * Id, username and enabled flag of a user, as shown by admin listings. Read through a projection, never managed.
+ */
+public final class PrincipalSummary {
+
+	private final Long id;
+	private final String username;
+	private final boolean enabled;
+
+	public PrincipalSummary(Long id, String username, boolean enabled) {
+		this.id = id;
+		this.username = username;
+		this.enabled = enabled;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+}
@@ -0,0 +1,51 @@
+package basearch.model.auth;
+
+/**
+ * Id, username and stored password of a user, as read by maintenance jobs that don't need the whole entity
+ */
+public final class StoredCredentials {
+
+	private final Long id;
+	private final String username;
+	private final String password;
+	// value read from the database, a new password is only written over it
+	private final String readPassword;
+
+	public StoredCredentials(Long id, String username, String password) {
+		this(id, username, password, password);
+	}
+
+	private StoredCredentials(Long id, String username, String password, String readPassword) {
+		this.id = id;
+		this.username = username;
+		this.password = password;
+		this.readPassword = readPassword;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 * Stored password this instance was read with, the one an update expects to replace
+	 */
+	public String getReadPassword() {
+		return readPassword;
+	}
+
+	/**
+	 * Same user, with a new stored password that replaces the one it was read with
+	 */
+	public StoredCredentials withPassword(String password) {
+		return new StoredCredentials(id, username, password, readPassword);
+	}
+
+}
@@ -0,0 +1,261 @@
+package basearch.persistence;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.boot.bind.RelaxedDataBinder;
+import org.springframework.boot.bind.RelaxedPropertyResolver;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * Read replicas of the primary database. The data source returned by route() sends read-only transactions to them,
+ * round robin, and everything else to the primary. A replica is left out while it can't hand out connections or lags
+ * behind the primary more than allowed, and reads fall back to the primary when no replica is left, so they may be
+ * a little stale but never fail because of a replica. Replicas are checked in the background and put back once healthy,
+ * they start out of the rotation until their first check. Reads whose results get cached, authentication among them,
+ * must not run read-only, a lagging replica would keep its rows in the caches long after the primary moved on.
+ * Transactions only know they're read-only once they've begun, so the connection has to be fetched lazily, which
+ * EclipseLink does for read-only transactions. Without replicas configured route() returns the primary as is.
+ */
+@Component
+public class ReadReplicas implements PublicMetrics {
+
+	private static final Logger logger = LoggerFactory.getLogger(ReadReplicas.class);
+
+	private final List<Replica> replicas;
+	private final String lagQuery;
+	private final long maxLagSeconds;
+	private final long checkMillis;
+
+	private final AtomicInteger next = new AtomicInteger();
+	private final LongAdder replicaConnections = new LongAdder();
+	private final LongAdder primaryFallbacks = new LongAdder();
+	private ScheduledExecutorService checker;
+
+	/**
+	 * Replicas share the credentials and the basearch.datasource.replicas.pool.* settings of their connection pools,
+	 * named after the pool's own properties. The lag query returns how many seconds a replica is behind, and is required
+	 * when there are replicas, a replica that can't tell its lag can't be told apart from one that stopped replicating.
+	 * A check interval of zero turns background checks off, replicas left out then stay out until checkReplicas() is called.
+	 */
+	@Inject
+	public ReadReplicas(Environment environment, @Value("${basearch.datasource.replicas.urls:}") String[] urls, @Value("${basearch.datasource.replicas.username:}") String username, @Value("${basearch.datasource.replicas.password:}") String password,
+			@Value("${basearch.datasource.replicas.lag-query:}") String lagQuery, @Value("${basearch.datasource.replicas.max-lag-seconds:30}") long maxLagSeconds, @Value("${basearch.datasource.replicas.check-millis:5000}") long checkMillis) {
+		this(replicaDataSources(urls, username, password, new RelaxedPropertyResolver(environment, "basearch.datasource.replicas.pool.").getSubProperties("")), lagQuery, maxLagSeconds, checkMillis);
+	}
+
+	public ReadReplicas(List<DataSource> dataSources, String lagQuery, long maxLagSeconds, long checkMillis) {
+		if (dataSources == null) throw new IllegalArgumentException("Parameter dataSources can't be null");
+		if (maxLagSeconds < 0) throw new IllegalArgumentException("Parameter maxLagSeconds can't be negative");
+		if (checkMillis < 0) throw new IllegalArgumentException("Parameter checkMillis can't be negative");
+		if (!dataSources.isEmpty() && !StringUtils.hasText(lagQuery)) throw new IllegalArgumentException("Read replicas need a lag query");
+		List<Replica> replicas = new ArrayList<>(dataSources.size());
+		for (DataSource dataSource : dataSources) replicas.add(new Replica(dataSource, replicas.size()));
+		this.replicas = Collections.unmodifiableList(replicas);
+		this.lagQuery = lagQuery;
+		this.maxLagSeconds = maxLagSeconds;
+		this.checkMillis = checkMillis;
+	}
+
+	private static List<DataSource> replicaDataSources(String[] urls, String username, String password, Map<String,Object> poolSettings) {
+		if (urls == null) return Collections.emptyList();
+		List<DataSource> dataSources = new ArrayList<>(urls.length);
+		for (String url : urls) {
+			if (!StringUtils.hasText(url)) continue;
+			DataSource dataSource = DataSourceBuilder.create().url(url.trim()).username(StringUtils.hasText(username) ? username : null).password(password).build();
+			new RelaxedDataBinder(dataSource).bind(new MutablePropertyValues(poolSettings));
+			dataSources.add(dataSource);
+		}
+		return dataSources;
+	}
+
+	@PostConstruct
+	public void startChecker() {
+		if (replicas.isEmpty()) return;
+		checkReplicas();
+		if (checkMillis == 0) return;
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("read-replica-checker-");
+		threadFactory.setDaemon(true);
+		checker = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		checker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkReplicas();
+				} catch(RuntimeException re) {
+					logger.error("Could not check read replicas: " + re.getMessage());
+				}
+			}
+		}, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (checker != null) checker.shutdownNow();
+		for (Replica replica : replicas) {
+			// pools are closed the way spring closes data source beans
+			Method close = ReflectionUtils.findMethod(replica.dataSource.getClass(), "close");
+			if (close != null && close.getParameterCount() == 0) ReflectionUtils.invokeMethod(close, replica.dataSource);
+		}
+	}
+
+	/**
+	 * Wraps the primary so read-only transactions are sent to the replicas, returns the primary itself if there are none
+	 */
+	public DataSource route(DataSource primary) {
+		if (primary == null) throw new IllegalArgumentException("Parameter primary can't be null");
+		if (replicas.isEmpty()) return primary;
+		return new RoutingDataSource(primary);
+	}
+
+	/**
+	 * Checks every replica now, one is healthy if it hands out a valid connection and isn't lagging too much
+	 */
+	public void checkReplicas() {
+		for (Replica replica : replicas) {
+			boolean healthy;
+			try (Connection c = replica.dataSource.getConnection()) {
+				healthy = c.isValid(5) && lagSeconds(c) <= maxLagSeconds;
+			} catch(SQLException sqle) {
+				logger.debug("Read replica check failed: {}", sqle.getMessage());
+				healthy = false;
+			}
+			if (healthy != replica.healthy) logger.warn("Read replica {} is {}", replica.index, healthy ? "healthy, putting it in" : "down or stale, leaving it out");
+			replica.healthy = healthy;
+		}
+	}
+
+	private long lagSeconds(Connection c) throws SQLException {
+		try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery(lagQuery)) {
+			// no row, or a null lag, means the replica doesn't know how far behind it is
+			if (!rs.next()) return Long.MAX_VALUE;
+			long lag = rs.getLong(1);
+			return rs.wasNull() ? Long.MAX_VALUE : lag;
+		}
+	}
+
+	/**
+	 * Whether there are replicas to route to at all
+	 */
+	public boolean isEnabled() {
+		return !replicas.isEmpty();
+	}
+
+	public int getHealthyReplicas() {
+		int healthy = 0;
+		for (Replica replica : replicas) if (replica.healthy) healthy++;
+		return healthy;
+	}
+
+	public long getReplicaConnections() {
+		return replicaConnections.sum();
+	}
+
+	/**
+	 * Read-only connections served by the primary because no replica was healthy
+	 */
+	public long getPrimaryFallbacks() {
+		return primaryFallbacks.sum();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		if (replicas.isEmpty()) return Collections.emptyList();
+		Collection<Metric<?>> metrics = new ArrayList<>(4);
+		metrics.add(new Metric<Integer>("datasource.replicas.size", replicas.size()));
+		metrics.add(new Metric<Integer>("datasource.replicas.healthy", getHealthyReplicas()));
+		metrics.add(new Metric<Long>("datasource.replicas.connections", getReplicaConnections()));
+		metrics.add(new Metric<Long>("datasource.replicas.primary-fallbacks", getPrimaryFallbacks()));
+		return metrics;
+	}
+
+	// next healthy replica, round robin, or null if there is none
+	private Replica nextReplica() {
+		int size = replicas.size();
+		int start = next.getAndIncrement();
+		for (int i = 0; i < size; i++) {
+			Replica replica = replicas.get(Math.floorMod(start + i, size));
+			if (replica.healthy) return replica;
+		}
+		return null;
+	}
+
+	// holders
+
+	private static final class Replica {
+		private final DataSource dataSource;
+		private final int index;
+		// out until the first check finds it healthy
+		private volatile boolean healthy;
+		private Replica(DataSource dataSource, int index) {
+			this.dataSource = dataSource;
+			this.index = index;
+		}
+	}
+
+	private final class RoutingDataSource extends AbstractDataSource {
+
+		private final DataSource primary;
+
+		private RoutingDataSource(DataSource primary) {
+			this.primary = primary;
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			return getConnection(null, null);
+		}
+
+		@Override
+		public Connection getConnection(String username, String password) throws SQLException {
+			if (TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+				for (Replica replica = nextReplica(); replica != null; replica = nextReplica()) {
+					try {
+						Connection c = username == null ? replica.dataSource.getConnection() : replica.dataSource.getConnection(username, password);
+						replicaConnections.increment();
+						return c;
+					} catch(SQLException sqle) {
+						// out until the checker finds it healthy again
+						ReadReplicas.logger.warn("Read replica {} failed to hand out a connection, leaving it out: {}", replica.index, sqle.getMessage());
+						replica.healthy = false;
+					}
+				}
+				primaryFallbacks.increment();
+			}
+			return username == null ? primary.getConnection() : primary.getConnection(username, password);
+		}
+
+	}
+
+}
@@ -0,0 +1,130 @@
+package basearch.persistence;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.ConnectionProxy;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.orm.jpa.vendor.EclipseLinkJpaDialect;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.DelegatingTransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Applies the isolation level of the current transaction, if it has one, to each connection it takes, and puts the
+ * connection's own level back when it's closed, before it returns to the pool. EclipseLink can only set isolation on
+ * the login shared by every session, where it would stay for every later transaction, so the JpaDialect below keeps
+ * it from doing so and leaves isolation to this data source.
+ */
+public class TransactionIsolationDataSource extends DelegatingDataSource {
+
+	public TransactionIsolationDataSource(DataSource targetDataSource) {
+		super(targetDataSource);
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return isolated(super.getConnection());
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return isolated(super.getConnection(username, password));
+	}
+
+	private static Connection isolated(Connection connection) throws SQLException {
+		Integer isolation = TransactionSynchronizationManager.getCurrentTransactionIsolationLevel();
+		if (isolation == null) return connection;
+		int previous = connection.getTransactionIsolation();
+		if (previous == isolation) return connection;
+		try {
+			connection.setTransactionIsolation(isolation);
+		} catch(SQLException | RuntimeException e) {
+			connection.close();
+			throw e;
+		}
+		return (Connection)Proxy.newProxyInstance(ConnectionProxy.class.getClassLoader(), new Class<?>[] { ConnectionProxy.class }, new IsolationRestoringHandler(connection, previous));
+	}
+
+	private static final class IsolationRestoringHandler implements InvocationHandler {
+
+		private final Connection target;
+		private final int isolation;
+		private boolean closed;
+
+		private IsolationRestoringHandler(Connection target, int isolation) {
+			this.target = target;
+			this.isolation = isolation;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "getTargetConnection":
+				return target;
+			case "isClosed":
+				if (closed) return true;
+				break;
+			case "close":
+				if (closed) return null;
+				closed = true;
+				try {
+					target.setTransactionIsolation(isolation);
+				} finally {
+					target.close();
+				}
+				return null;
+			}
+			try {
+				return method.invoke(target, args);
+			} catch(InvocationTargetException ite) {
+				throw ite.getTargetException();
+			}
+		}
+
+	}
+
+	/**
+	 * EclipseLinkJpaDialect leaving isolation levels to the TransactionIsolationDataSource
+	 */
+	public static class JpaDialect extends EclipseLinkJpaDialect {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Object beginTransaction(EntityManager entityManager, TransactionDefinition definition) throws PersistenceException, SQLException {
+			if (definition.getIsolationLevel() == TransactionDefinition.ISOLATION_DEFAULT) return super.beginTransaction(entityManager, definition);
+			// the transaction manager publishes it once begun, too late for a connection taken right away
+			TransactionSynchronizationManager.setCurrentTransactionIsolationLevel(definition.getIsolationLevel());
+			boolean begun = false;
+			try {
+				Object transactionData = super.beginTransaction(entityManager, new DelegatingTransactionDefinition(definition) {
+					private static final long serialVersionUID = 1L;
+					@Override
+					public int getIsolationLevel() {
+						return TransactionDefinition.ISOLATION_DEFAULT;
+					}
+				});
+				begun = true;
+				return transactionData;
+			} finally {
+				// not begun, nothing will clear it for the next transaction of this thread
+				if (!begun) TransactionSynchronizationManager.setCurrentTransactionIsolationLevel(null);
+			}
+		}
+
+	}
+
+}
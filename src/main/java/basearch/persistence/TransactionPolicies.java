@@ -0,0 +1,400 @@
+package basearch.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.orm.jpa.EntityManagerHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionTimedOutException;
+import org.springframework.transaction.interceptor.DefaultTransactionAttribute;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+
+import basearch.metrics.LatencyHistogram;
+
+/**
+ * Transaction policy of each route, isolation, read-only flag and time budget, compiled once from basearch.transactions.*
+ * Routes are matched in order by ant-style path patterns, and http methods if given, the first match wins and requests
+ * matching none get the default route. Requests run read-write unless the route sets read-only, or read-only-gets
+ * for its GET and HEAD requests only. Transactional methods those requests call join the read-only transaction,
+ * writes included, which then go to a read replica if there are any, so routes whose GETs write must not opt in.
+ * A route's budget becomes the deadline of its transaction, which the shared entity manager turns into the timeout
+ * of every query created in it, so a slow query gets cancelled by the driver instead of holding its connection past
+ * the budget, and once the deadline has passed new queries fail right away. Lookups by id (find) have
+ * no timeout. Transactions are timed from begin to completion into a histogram per route, the ones over budget are
+ * counted and so are rollbacks, by cause, all published through the metrics endpoint as transactions.route.[name].*
+ * Open transactions are watched by the TransactionWatchdog.
+ */
+@Component
+@ConfigurationProperties(prefix="basearch.transactions")
+public class TransactionPolicies implements PublicMetrics {
+
+	private static final Logger logger = LoggerFactory.getLogger(TransactionPolicies.class);
+
+	/**
+	 * Why a transaction was rolled back instead of committed
+	 */
+	public enum RollbackCause {
+		// the work threw
+		FAILED,
+		// its deadline passed, or the async request it belongs to timed out
+		TIMED_OUT,
+		// the work marked it rollback-only, some inner transactional method failed
+		ROLLBACK_ONLY,
+		// committing failed, flushing pending changes most likely
+		COMMIT_FAILED;
+
+		private final String metricName = name().toLowerCase(Locale.ROOT).replace('_', '-');
+
+		/**
+		 * Cause of rolling back because of the given failure
+		 */
+		public static RollbackCause of(Throwable failure) {
+			for (Throwable t = failure; t != null; t = t.getCause()) {
+				if (t instanceof TransactionTimedOutException || t instanceof javax.persistence.QueryTimeoutException) return TIMED_OUT;
+			}
+			return FAILED;
+		}
+	}
+
+	private final EntityManagerFactory entityManagerFactory;
+	private final TransactionWatchdog watchdog;
+	private final PathMatcher pathMatcher = new AntPathMatcher();
+
+	// settings
+	private Route defaultRoute = new Route();
+	private List<Route> routes = new ArrayList<>();
+
+	// compiled
+	private Policy defaultPolicy;
+	private List<Policy> policies;
+
+	@Inject
+	public TransactionPolicies(EntityManagerFactory entityManagerFactory, TransactionWatchdog watchdog) {
+		this.entityManagerFactory = entityManagerFactory;
+		this.watchdog = watchdog;
+	}
+
+	@PostConstruct
+	public void compile() {
+		if (defaultRoute.getName() == null) defaultRoute.setName("default");
+		if (!defaultRoute.getPatterns().isEmpty()) throw new IllegalStateException("The default route can't have patterns, it takes the requests no other route matches");
+		List<Policy> policies = new ArrayList<>(routes.size());
+		for (Route route : routes) {
+			if (route.getPatterns().isEmpty()) throw new IllegalStateException("Route " + route.getName() + " needs at least one pattern");
+			if (route.getName() == null) route.setName("route" + policies.size());
+			policies.add(new Policy(route));
+		}
+		this.defaultPolicy = new Policy(defaultRoute);
+		this.policies = Collections.unmodifiableList(policies);
+	}
+
+	/**
+	 * Policy of the first route matching the request path, within the application, and method. Not memoized, paths are
+	 * up to clients and there are few routes to match against.
+	 */
+	public Policy policyFor(HttpServletRequest request) {
+		String path = request.getRequestURI().substring(request.getContextPath().length());
+		for (Policy candidate : policies) {
+			if (candidate.matches(request.getMethod(), path)) return candidate;
+		}
+		return defaultPolicy;
+	}
+
+	public Policy getPolicy(String name) {
+		if (defaultPolicy.name.equals(name)) return defaultPolicy;
+		for (Policy policy : policies) if (policy.name.equals(name)) return policy;
+		return null;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>((policies.size() + 1) * 16);
+		addMetrics(defaultPolicy, metrics);
+		for (Policy policy : policies) addMetrics(policy, metrics);
+		return metrics;
+	}
+
+	private static void addMetrics(Policy policy, Collection<Metric<?>> metrics) {
+		String prefix = "transactions.route." + policy.name;
+		metrics.add(new Metric<Long>(prefix + ".count", policy.transactions.sum()));
+		metrics.add(new Metric<Long>(prefix + ".budget-exceeded", policy.budgetExceeded.sum()));
+		metrics.add(new Metric<Long>(prefix + ".rolled-back", policy.rolledBack.sum()));
+		for (RollbackCause cause : RollbackCause.values()) metrics.add(new Metric<Long>(prefix + ".rolled-back." + cause.metricName, policy.rollbacks[cause.ordinal()].sum()));
+		policy.duration.addMetrics(prefix + ".duration", metrics);
+	}
+
+	/*
+	 * bound settings
+	 */
+
+	public Route getDefaultRoute() {
+		return defaultRoute;
+	}
+
+	public void setDefaultRoute(Route defaultRoute) {
+		this.defaultRoute = defaultRoute;
+	}
+
+	public List<Route> getRoutes() {
+		return routes;
+	}
+
+	public void setRoutes(List<Route> routes) {
+		this.routes = routes;
+	}
+
+	public static class Route {
+
+		private String name;
+		private List<String> patterns = new ArrayList<>();
+		private List<String> methods = new ArrayList<>();
+		private String isolation = "DEFAULT";
+		private Boolean readOnly;
+		private boolean readOnlyGets;
+		// zero means no budget
+		private long timeoutMillis;
+
+		public String getName() {
+			return name;
+		}
+		public void setName(String name) {
+			this.name = name;
+		}
+		public List<String> getPatterns() {
+			return patterns;
+		}
+		public void setPatterns(List<String> patterns) {
+			this.patterns = patterns;
+		}
+		public List<String> getMethods() {
+			return methods;
+		}
+		public void setMethods(List<String> methods) {
+			this.methods = methods;
+		}
+		public String getIsolation() {
+			return isolation;
+		}
+		public void setIsolation(String isolation) {
+			this.isolation = isolation;
+		}
+		public Boolean getReadOnly() {
+			return readOnly;
+		}
+		public void setReadOnly(Boolean readOnly) {
+			this.readOnly = readOnly;
+		}
+		public boolean isReadOnlyGets() {
+			return readOnlyGets;
+		}
+		public void setReadOnlyGets(boolean readOnlyGets) {
+			this.readOnlyGets = readOnlyGets;
+		}
+		public long getTimeoutMillis() {
+			return timeoutMillis;
+		}
+		public void setTimeoutMillis(long timeoutMillis) {
+			this.timeoutMillis = timeoutMillis;
+		}
+
+	}
+
+	/**
+	 * A compiled route, its transaction definitions are built once and shared by every request
+	 */
+	public final class Policy {
+
+		private final String name;
+		private final String[] patterns;
+		private final Set<String> methods;
+		private final long timeoutMillis;
+		private final DefaultTransactionAttribute readWrite;
+		private final DefaultTransactionAttribute readOnly;
+
+		private final LongAdder transactions = new LongAdder();
+		private final LongAdder budgetExceeded = new LongAdder();
+		private final LongAdder rolledBack = new LongAdder();
+		private final LongAdder[] rollbacks = new LongAdder[RollbackCause.values().length];
+		private final LatencyHistogram duration = new LatencyHistogram();
+
+		private Policy(Route route) {
+			if (route.getTimeoutMillis() < 0) throw new IllegalStateException("Route " + route.getName() + " can't have a negative timeout");
+			this.name = route.getName();
+			this.patterns = route.getPatterns().toArray(new String[route.getPatterns().size()]);
+			Set<String> methods = new HashSet<>();
+			for (String method : route.getMethods()) methods.add(method.trim().toUpperCase(Locale.ROOT));
+			this.methods = methods;
+			this.timeoutMillis = route.getTimeoutMillis();
+			this.readWrite = definition(route, route.getReadOnly() != null && route.getReadOnly());
+			this.readOnly = definition(route, route.getReadOnly() == null ? route.isReadOnlyGets() : route.getReadOnly());
+			for (int i = 0; i < rollbacks.length; i++) rollbacks[i] = new LongAdder();
+		}
+
+		private DefaultTransactionAttribute definition(Route route, boolean readOnly) {
+			DefaultTransactionAttribute definition = new DefaultTransactionAttribute(TransactionDefinition.PROPAGATION_REQUIRED);
+			definition.setName(name);
+			definition.setIsolationLevelName(DefaultTransactionAttribute.PREFIX_ISOLATION + route.getIsolation().trim().toUpperCase(Locale.ROOT));
+			definition.setReadOnly(readOnly);
+			// whole seconds, begin() sets the exact deadline
+			if (timeoutMillis > 0) definition.setTimeout((int)((timeoutMillis + 999) / 1000));
+			return definition;
+		}
+
+		private boolean matches(String method, String path) {
+			if (!methods.isEmpty() && !methods.contains(method)) return false;
+			for (String pattern : patterns) if (pathMatcher.match(pattern, path)) return true;
+			return false;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getTimeoutMillis() {
+			return timeoutMillis;
+		}
+
+		/**
+		 * Definition of the request's transaction, read-only for GET and HEAD if the route opted in
+		 */
+		public TransactionDefinition definitionFor(HttpServletRequest request) {
+			String method = request.getMethod();
+			return "GET".equals(method) || "HEAD".equals(method) ? readOnly : readWrite;
+		}
+
+		/**
+		 * Must be called right after the transaction of the policy has begun, sets its exact deadline, times it and
+		 * hands it to the watchdog until it completes. The request is only used to tell which one it is.
+		 */
+		public Transaction begun(String request) {
+			if (timeoutMillis > 0) {
+				EntityManagerHolder holder = (EntityManagerHolder)TransactionSynchronizationManager.getResource(entityManagerFactory);
+				if (holder != null) holder.setTimeoutInMillis(timeoutMillis);
+			}
+			Transaction transaction = new Transaction(this, request);
+			TransactionSynchronizationManager.registerSynchronization(transaction);
+			watchdog.opened(transaction);
+			return transaction;
+		}
+
+		private void completed(long elapsedNanos, RollbackCause cause) {
+			transactions.increment();
+			duration.recordNanos(elapsedNanos);
+			if (cause != null) {
+				rolledBack.increment();
+				rollbacks[cause.ordinal()].increment();
+			}
+			if (timeoutMillis > 0 && elapsedNanos > timeoutMillis * 1000000) {
+				budgetExceeded.increment();
+				logger.warn("Transaction of route {} took {}ms, over its {}ms budget", name, elapsedNanos / 1000000, timeoutMillis);
+			}
+		}
+
+		public long getTransactions() {
+			return transactions.sum();
+		}
+
+		public long getBudgetExceeded() {
+			return budgetExceeded.sum();
+		}
+
+		public long getRolledBack() {
+			return rolledBack.sum();
+		}
+
+		public long getRolledBack(RollbackCause cause) {
+			return rollbacks[cause.ordinal()].sum();
+		}
+
+		public LatencyHistogram getDuration() {
+			return duration;
+		}
+
+	}
+
+	/**
+	 * A transaction begun under a policy, from begin until it completes. Whoever completes it tells why it's rolling back
+	 * beforehand, a rollback nobody explained comes from a failed commit.
+	 */
+	public final class Transaction extends TransactionSynchronizationAdapter {
+
+		private final Policy policy;
+		private final String request;
+		private final long started = System.nanoTime();
+		private final AtomicBoolean reported = new AtomicBoolean();
+		// the one running its work, none while handed off between threads
+		private volatile Thread thread = Thread.currentThread();
+		private volatile RollbackCause rollbackCause;
+
+		private Transaction(Policy policy, String request) {
+			this.policy = policy;
+			this.request = request;
+		}
+
+		/**
+		 * Must be called right before rolling it back
+		 */
+		public void rollingBack(RollbackCause cause) {
+			rollbackCause = cause;
+		}
+
+		/**
+		 * Tells the thread now holding it, or null if none does
+		 */
+		public void movedTo(Thread thread) {
+			this.thread = thread;
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			watchdog.closed(this);
+			RollbackCause cause = null;
+			if (status != STATUS_COMMITTED) cause = rollbackCause == null ? RollbackCause.COMMIT_FAILED : rollbackCause;
+			policy.completed(System.nanoTime() - started, cause);
+		}
+
+		public String getRoute() {
+			return policy.name;
+		}
+
+		public String getRequest() {
+			return request;
+		}
+
+		public Thread getThread() {
+			return thread;
+		}
+
+		public long getOpenNanos(long now) {
+			return now - started;
+		}
+
+		// true only the first time
+		boolean markReported() {
+			return reported.compareAndSet(false, true);
+		}
+
+	}
+
+}
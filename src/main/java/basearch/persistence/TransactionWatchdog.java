@@ -0,0 +1,134 @@
+package basearch.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps an eye on the request transactions open right now, each one holding a connection once it has run a statement.
+ * Those open longer than the threshold, slow or leaked, are reported once, logged with the stack of the thread holding
+ * them, which tells where the request is stuck. Published through the metrics endpoint as transactions.open,
+ * transactions.oldest-open-millis and transactions.long-running
+ */
+@Component
+public class TransactionWatchdog implements PublicMetrics {
+
+	private static final Logger logger = LoggerFactory.getLogger(TransactionWatchdog.class);
+
+	private final long thresholdMillis;
+	private final long checkMillis;
+
+	private final Set<TransactionPolicies.Transaction> open = ConcurrentHashMap.newKeySet();
+	private final LongAdder longRunning = new LongAdder();
+	private ScheduledExecutorService checker;
+
+	/**
+	 * A check interval of zero turns background checks off, transactions are then only reported when check() is called
+	 */
+	@Inject
+	public TransactionWatchdog(@Value("${basearch.transactions.watchdog.threshold-millis:30000}") long thresholdMillis, @Value("${basearch.transactions.watchdog.check-millis:5000}") long checkMillis) {
+		if (thresholdMillis <= 0) throw new IllegalArgumentException("Parameter thresholdMillis must be positive");
+		if (checkMillis < 0) throw new IllegalArgumentException("Parameter checkMillis can't be negative");
+		this.thresholdMillis = thresholdMillis;
+		this.checkMillis = checkMillis;
+	}
+
+	@PostConstruct
+	public void startChecker() {
+		if (checkMillis == 0) return;
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("transaction-watchdog-");
+		threadFactory.setDaemon(true);
+		checker = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		checker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					check();
+				} catch(RuntimeException re) {
+					logger.error("Could not check open transactions: " + re.getMessage());
+				}
+			}
+		}, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (checker != null) checker.shutdownNow();
+	}
+
+	void opened(TransactionPolicies.Transaction transaction) {
+		open.add(transaction);
+	}
+
+	void closed(TransactionPolicies.Transaction transaction) {
+		open.remove(transaction);
+	}
+
+	/**
+	 * Reports the transactions that went over the threshold since the last check, and returns them
+	 */
+	public List<TransactionPolicies.Transaction> check() {
+		long now = System.nanoTime();
+		List<TransactionPolicies.Transaction> reported = Collections.emptyList();
+		for (TransactionPolicies.Transaction transaction : open) {
+			if (transaction.getOpenNanos(now) < thresholdMillis * 1000000 || !transaction.markReported()) continue;
+			if (reported.isEmpty()) reported = new ArrayList<>();
+			reported.add(transaction);
+			longRunning.increment();
+			report(transaction, now);
+		}
+		return reported;
+	}
+
+	private static void report(TransactionPolicies.Transaction transaction, long now) {
+		Thread thread = transaction.getThread();
+		if (thread == null) {
+			logger.warn("Transaction of {} (route {}) open for {}ms, waiting for async work to take it", transaction.getRequest(), transaction.getRoute(), transaction.getOpenNanos(now) / 1000000);
+			return;
+		}
+		// not thrown, only carries the stack of the holding thread to the log
+		Throwable stack = new Throwable("Stack of thread " + thread.getName());
+		stack.setStackTrace(thread.getStackTrace());
+		logger.warn("Transaction of " + transaction.getRequest() + " (route " + transaction.getRoute() + ") open for " + transaction.getOpenNanos(now) / 1000000 + "ms", stack);
+	}
+
+	public int getOpenTransactions() {
+		return open.size();
+	}
+
+	public long getLongRunning() {
+		return longRunning.sum();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		long now = System.nanoTime();
+		long oldestNanos = 0;
+		for (TransactionPolicies.Transaction transaction : open) oldestNanos = Math.max(oldestNanos, transaction.getOpenNanos(now));
+		Collection<Metric<?>> metrics = new ArrayList<>(3);
+		metrics.add(new Metric<Integer>("transactions.open", open.size()));
+		metrics.add(new Metric<Long>("transactions.oldest-open-millis", oldestNanos / 1000000));
+		metrics.add(new Metric<Long>("transactions.long-running", longRunning.sum()));
+		return metrics;
+	}
+
+}
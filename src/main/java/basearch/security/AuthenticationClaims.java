@@ -0,0 +1,86 @@
+package basearch.security;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+
+/**
+ * What a stateless authentication token says about the user: name, authorities, locale and expiry time.
+ * Immutable, it's rebuilt whenever any of them changes.
+ */
+public final class AuthenticationClaims {
+
+	private final String username;
+	private final List<String> authorities;
+	private final Locale locale;
+	private final long expiresAt;
+
+	public AuthenticationClaims(String username, List<String> authorities, Locale locale, long expiresAt) {
+		if (username == null || username.isEmpty()) throw new IllegalArgumentException("Parameter username can't be null or empty");
+		this.username = username;
+		this.authorities = authorities == null ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<>(authorities));
+		this.locale = locale;
+		this.expiresAt = expiresAt;
+	}
+
+	/**
+	 * Claims of an authenticated user, or null for anonymous and missing authentications
+	 */
+	public static AuthenticationClaims of(Authentication authentication, long expiresAt) {
+		if (authentication == null || authentication instanceof AnonymousAuthenticationToken || !authentication.isAuthenticated()) return null;
+		List<String> authorities = new ArrayList<>(authentication.getAuthorities().size());
+		for (GrantedAuthority a : authentication.getAuthorities()) authorities.add(a.getAuthority());
+		Locale locale = authentication.getDetails() instanceof LocaleAuthenticationDetails ? ((LocaleAuthenticationDetails)authentication.getDetails()).getLocale() : null;
+		return new AuthenticationClaims(authentication.getName(), authorities, locale, expiresAt);
+	}
+
+	/**
+	 * Rebuilds an authenticated token from the claims, no user lookup involved
+	 */
+	public Authentication toAuthentication(HttpServletRequest request) {
+		List<GrantedAuthority> granted = new ArrayList<>(authorities.size());
+		for (String a : authorities) granted.add(new SimpleGrantedAuthority(a));
+		UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(username, null, granted);
+		authentication.setDetails(locale == null ? new WebAuthenticationDetails(request) : new LocaleAuthenticationDetails(request, locale));
+		return authentication;
+	}
+
+	/**
+	 * Same user, authorities and locale, regardless of the expiry time
+	 */
+	public boolean sameClaimsAs(AuthenticationClaims other) {
+		if (other == null) return false;
+		if (locale == null ? other.locale != null : !locale.equals(other.locale)) return false;
+		return username.equals(other.username) && authorities.equals(other.authorities);
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public List<String> getAuthorities() {
+		return authorities;
+	}
+
+	public Locale getLocale() {
+		return locale;
+	}
+
+	/**
+	 * Epoch seconds
+	 */
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+}
@@ -0,0 +1,139 @@
+package basearch.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import basearch.metrics.LatencyHistogram;
+
+/**
+ * Runs the hashing of a delegate encoder (meant for BCrypt) on a dedicated, bounded pool, so login bursts
+ * can only take as many cores as the pool has threads. When both the threads and the queue are busy,
+ * calls fail fast with a PasswordHashingRejectedException instead of piling up request threads.
+ * Queue wait and hashing time are recorded and published through the metrics endpoint.
+ */
+public class BoundedPasswordEncoder implements PasswordEncoder, PublicMetrics, DisposableBean {
+
+	private static final Logger logger = LoggerFactory.getLogger(BoundedPasswordEncoder.class);
+
+	private final PasswordEncoder delegate;
+	private final ThreadPoolExecutor executor;
+
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+	private final LatencyHistogram hashTime = new LatencyHistogram();
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * A threads value below 1 sizes the pool to the available cores
+	 */
+	public BoundedPasswordEncoder(PasswordEncoder delegate, int threads, int queueCapacity) {
+		if (delegate == null) throw new IllegalArgumentException("Parameter delegate can't be null");
+		if (queueCapacity < 1) throw new IllegalArgumentException("Parameter queueCapacity must be greater than zero");
+		if (threads < 1) threads = Runtime.getRuntime().availableProcessors();
+		this.delegate = delegate;
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("password-hasher-");
+		threadFactory.setDaemon(true);
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+		logger.debug("Password hashing pool started with {} threads and a queue of {}", threads, queueCapacity);
+	}
+
+	@Override
+	public String encode(final CharSequence rawPassword) {
+		return execute(new Callable<String>() {
+			@Override
+			public String call() {
+				return delegate.encode(rawPassword);
+			}
+		});
+	}
+
+	@Override
+	public boolean matches(final CharSequence rawPassword, final String encodedPassword) {
+		return execute(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return delegate.matches(rawPassword, encodedPassword);
+			}
+		});
+	}
+
+	@Override
+	public void destroy() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>(16);
+		queueWait.addMetrics("security.password-hashing.queue-wait", metrics);
+		hashTime.addMetrics("security.password-hashing.hash-time", metrics);
+		metrics.add(new Metric<Long>("security.password-hashing.rejected", rejected.sum()));
+		metrics.add(new Metric<Integer>("security.password-hashing.queued", executor.getQueue().size()));
+		metrics.add(new Metric<Integer>("security.password-hashing.active", executor.getActiveCount()));
+		return metrics;
+	}
+
+	/*
+	 * Utility methods
+	 */
+
+	private <T> T execute(final Callable<T> task) {
+		final long submitted = System.nanoTime();
+		Future<T> result;
+		try {
+			result = executor.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					long started = System.nanoTime();
+					queueWait.recordNanos(started - submitted);
+					try {
+						return task.call();
+					} finally {
+						hashTime.recordNanos(System.nanoTime() - started);
+					}
+				}
+			});
+		} catch(RejectedExecutionException ree) {
+			rejected.increment();
+			throw new PasswordHashingRejectedException("Password hashing pool is saturated");
+		}
+		try {
+			return result.get();
+		} catch(InterruptedException ie) {
+			result.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new AuthenticationServiceException("Interrupted while waiting for password hashing", ie);
+		} catch(ExecutionException ee) {
+			if (ee.getCause() instanceof RuntimeException) throw (RuntimeException)ee.getCause();
+			throw new AuthenticationServiceException("Password hashing failed", ee.getCause());
+		}
+	}
+
+	/**
+	 * Thrown when a password can't be hashed because the pool is saturated.
+	 * Maps to a 503 response on the login form.
+	 */
+	public static class PasswordHashingRejectedException extends AuthenticationServiceException {
+		private static final long serialVersionUID = 4519603297541805146L;
+		public PasswordHashingRejectedException(String msg) {
+			super(msg);
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+package basearch.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Turns authentication claims into an HMAC-SHA256 signed, cookie-safe string and back.
+ * The format is base64url(payload) + "." + base64url(signature), with the payload being
+ * a version marker, username, expiry, locale tag and authorities, one per line. Each field is
+ * base64url encoded on its own, so no value can spill into the lines that follow it.
+ */
+public final class ClaimsSigner {
+
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+	private static final String VERSION = "2";
+	private static final String SEPARATOR = "\n";
+
+	private final SecretKeySpec key;
+	// Mac instances aren't thread safe and are somewhat costly to create
+	private final ThreadLocal<Mac> macs;
+
+	public ClaimsSigner(byte[] secret) {
+		if (secret == null || secret.length < 16) throw new IllegalArgumentException("Secret must be at least 16 bytes long");
+		this.key = new SecretKeySpec(secret.clone(), HMAC_ALGORITHM);
+		this.macs = ThreadLocal.withInitial(this::newMac);
+		newMac();
+	}
+
+	public String sign(AuthenticationClaims claims) {
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		StringBuilder payload = new StringBuilder(64);
+		payload.append(VERSION).append(SEPARATOR).append(encodeField(encoder, claims.getUsername())).append(SEPARATOR).append(claims.getExpiresAt()).append(SEPARATOR);
+		if (claims.getLocale() != null) payload.append(encodeField(encoder, claims.getLocale().toLanguageTag()));
+		for (String a : claims.getAuthorities()) payload.append(SEPARATOR).append(encodeField(encoder, a));
+		byte[] payloadBytes = payload.toString().getBytes(StandardCharsets.UTF_8);
+		return encoder.encodeToString(payloadBytes) + "." + encoder.encodeToString(mac(payloadBytes));
+	}
+
+	/**
+	 * Returns the claims if the value is well formed, correctly signed and not expired at the given time
+	 * (epoch seconds), or null otherwise
+	 */
+	public AuthenticationClaims verify(String value, long now) {
+		if (value == null) return null;
+		int dot = value.indexOf('.');
+		if (dot < 1 || dot == value.length() - 1) return null;
+		byte[] payloadBytes, signature;
+		try {
+			Base64.Decoder decoder = Base64.getUrlDecoder();
+			payloadBytes = decoder.decode(value.substring(0, dot));
+			signature = decoder.decode(value.substring(dot + 1));
+		} catch(IllegalArgumentException iae) {
+			return null;
+		}
+		// constant time comparison, don't leak how much of the signature matched
+		if (!MessageDigest.isEqual(mac(payloadBytes), signature)) return null;
+		String[] fields = new String(payloadBytes, StandardCharsets.UTF_8).split(SEPARATOR, -1);
+		if (fields.length < 4 || !VERSION.equals(fields[0])) return null;
+		long expiresAt;
+		String username, localeTag;
+		List<String> authorities = new ArrayList<>(fields.length - 4);
+		try {
+			expiresAt = Long.parseLong(fields[2]);
+			Base64.Decoder decoder = Base64.getUrlDecoder();
+			username = decodeField(decoder, fields[1]);
+			localeTag = decodeField(decoder, fields[3]);
+			for (int i = 4; i < fields.length; i++) authorities.add(decodeField(decoder, fields[i]));
+		} catch(IllegalArgumentException iae) {
+			// NumberFormatException included
+			return null;
+		}
+		if (expiresAt <= now || username.isEmpty()) return null;
+		Locale locale = localeTag.isEmpty() ? null : Locale.forLanguageTag(localeTag);
+		return new AuthenticationClaims(username, authorities, locale, expiresAt);
+	}
+
+	/*
+	 * Utility methods
+	 */
+
+	private static String encodeField(Base64.Encoder encoder, String field) {
+		return encoder.encodeToString(field.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String decodeField(Base64.Decoder decoder, String field) {
+		return new String(decoder.decode(field), StandardCharsets.UTF_8);
+	}
+
+	private byte[] mac(byte[] payload) {
+		Mac mac = macs.get();
+		mac.reset();
+		return mac.doFinal(payload);
+	}
+
+	private Mac newMac() {
+		try {
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(key);
+			return mac;
+		} catch(GeneralSecurityException gse) {
+			throw new IllegalStateException("Can't create " + HMAC_ALGORITHM + " instances", gse);
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+package basearch.security;
+
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+
+/**
+ * Web authentication details that also carry the user's locale, resolved once at login
+ */
+public class LocaleAuthenticationDetails extends WebAuthenticationDetails {
+
+	private static final long serialVersionUID = 2730163512044717985L;
+
+	private final Locale locale;
+
+	public LocaleAuthenticationDetails(HttpServletRequest request, Locale locale) {
+		super(request);
+		if (locale == null) throw new IllegalArgumentException("Parameter locale can't be null");
+		this.locale = locale;
+	}
+
+	public Locale getLocale() {
+		return locale;
+	}
+
+}
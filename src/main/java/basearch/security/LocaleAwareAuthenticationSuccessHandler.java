@@ -0,0 +1,43 @@
+package basearch.security;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.web.authentication.SavedRequestAwareAuthenticationSuccessHandler;
+
+import basearch.CustomLocaleResolver;
+
+/**
+ * Resolves the user's locale right after login and keeps it in the authentication details,
+ * so the following requests don't need to look it up again
+ */
+public class LocaleAwareAuthenticationSuccessHandler extends SavedRequestAwareAuthenticationSuccessHandler {
+
+	private static final Logger logger = LoggerFactory.getLogger(LocaleAwareAuthenticationSuccessHandler.class);
+
+	private CustomLocaleResolver localeResolver;
+
+	public LocaleAwareAuthenticationSuccessHandler(CustomLocaleResolver localeResolver, String defaultTargetUrl) {
+		this.localeResolver = localeResolver;
+		setDefaultTargetUrl(defaultTargetUrl);
+	}
+
+	@Override
+	public void onAuthenticationSuccess(HttpServletRequest request, HttpServletResponse response, Authentication authentication) throws ServletException, IOException {
+		if (authentication instanceof AbstractAuthenticationToken) {
+			Locale l = localeResolver.resolveUserLocale(authentication.getName());
+			logger.debug("Storing locale '{}' in the authentication details of user {}", l, authentication.getName());
+			if (l != null) ((AbstractAuthenticationToken)authentication).setDetails(new LocaleAuthenticationDetails(request, l));
+		}
+		super.onAuthenticationSuccess(request, response, authentication);
+	}
+
+}
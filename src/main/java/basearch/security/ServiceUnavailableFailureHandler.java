@@ -0,0 +1,29 @@
+package basearch.security;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.web.authentication.AuthenticationFailureHandler;
+
+/**
+ * Answers a failed authentication with a 503, asking the client to retry after a few seconds
+ */
+public class ServiceUnavailableFailureHandler implements AuthenticationFailureHandler {
+
+	private final int retryAfterSeconds;
+
+	public ServiceUnavailableFailureHandler(int retryAfterSeconds) {
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	@Override
+	public void onAuthenticationFailure(HttpServletRequest request, HttpServletResponse response, AuthenticationException exception) throws IOException, ServletException {
+		response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, exception.getMessage());
+	}
+
+}
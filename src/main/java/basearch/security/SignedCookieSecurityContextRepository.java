@@ -0,0 +1,120 @@
+package basearch.security;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.security.web.context.SaveContextOnUpdateOrErrorResponseWrapper;
+import org.springframework.security.web.context.SecurityContextRepository;
+import org.springframework.web.util.WebUtils;
+
+/**
+ * Keeps the security context in a signed, expiring cookie instead of the http session, so any node can
+ * serve any request. Loading the context only verifies the signature, there's no session or user lookup.
+ * The cookie is reissued when the claims change (login, locale change) or past half its lifetime, and
+ * removed when the user logs out.
+ */
+public class SignedCookieSecurityContextRepository implements SecurityContextRepository {
+
+	private static final Logger logger = LoggerFactory.getLogger(SignedCookieSecurityContextRepository.class);
+
+	private static final String LOADED_CLAIMS_KEY = SignedCookieSecurityContextRepository.class.getName() + ".LOADED_CLAIMS";
+
+	private final ClaimsSigner signer;
+	private final String cookieName;
+	private final long ttlSeconds;
+
+	public SignedCookieSecurityContextRepository(ClaimsSigner signer, String cookieName, long ttlSeconds) {
+		if (signer == null) throw new IllegalArgumentException("Parameter signer can't be null");
+		if (cookieName == null || cookieName.isEmpty()) throw new IllegalArgumentException("Parameter cookieName can't be null or empty");
+		if (ttlSeconds < 1) throw new IllegalArgumentException("Parameter ttlSeconds must be greater than zero");
+		this.signer = signer;
+		this.cookieName = cookieName;
+		this.ttlSeconds = ttlSeconds;
+	}
+
+	@Override
+	public SecurityContext loadContext(HttpRequestResponseHolder requestResponseHolder) {
+		HttpServletRequest request = requestResponseHolder.getRequest();
+		SecurityContext context = SecurityContextHolder.createEmptyContext();
+		Cookie cookie = WebUtils.getCookie(request, cookieName);
+		if (cookie != null) {
+			AuthenticationClaims claims = signer.verify(cookie.getValue(), now());
+			if (claims != null) {
+				context.setAuthentication(claims.toAuthentication(request));
+				request.setAttribute(LOADED_CLAIMS_KEY, claims);
+			} else {
+				logger.debug("Ignoring invalid or expired authentication cookie");
+			}
+		}
+		requestResponseHolder.setResponse(new SaveToCookieResponseWrapper(requestResponseHolder.getResponse(), request, cookie != null));
+		return context;
+	}
+
+	@Override
+	public void saveContext(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+		SaveToCookieResponseWrapper wrapper = WebUtils.getNativeResponse(response, SaveToCookieResponseWrapper.class);
+		if (wrapper == null) throw new IllegalStateException("Response wasn't wrapped by loadContext(), can't save the security context");
+		if (!wrapper.isContextSaved()) wrapper.saveContext(context);
+	}
+
+	@Override
+	public boolean containsContext(HttpServletRequest request) {
+		return WebUtils.getCookie(request, cookieName) != null;
+	}
+
+	/*
+	 * Utility methods
+	 */
+
+	private static long now() {
+		return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+	}
+
+	private final class SaveToCookieResponseWrapper extends SaveContextOnUpdateOrErrorResponseWrapper {
+
+		private final HttpServletRequest request;
+		private final boolean cookiePresent;
+
+		private SaveToCookieResponseWrapper(HttpServletResponse response, HttpServletRequest request, boolean cookiePresent) {
+			super(response, true);
+			this.request = request;
+			this.cookiePresent = cookiePresent;
+		}
+
+		@Override
+		protected void saveContext(SecurityContext context) {
+			long now = now();
+			AuthenticationClaims claims = AuthenticationClaims.of(context.getAuthentication(), now + ttlSeconds);
+			AuthenticationClaims loaded = (AuthenticationClaims)request.getAttribute(LOADED_CLAIMS_KEY);
+			if (claims == null) {
+				// logged out, or never logged in with a stale cookie around
+				if (cookiePresent) writeCookie("", 0);
+				return;
+			}
+			if (claims.sameClaimsAs(loaded) && loaded.getExpiresAt() - now > ttlSeconds / 2) return;
+			logger.debug("Issuing authentication cookie for user {}", claims.getUsername());
+			writeCookie(signer.sign(claims), (int)ttlSeconds);
+		}
+
+		private void writeCookie(String value, int maxAge) {
+			Cookie cookie = new Cookie(cookieName, value);
+			String contextPath = request.getContextPath();
+			cookie.setPath(contextPath == null || contextPath.isEmpty() ? "/" : contextPath);
+			cookie.setMaxAge(maxAge);
+			cookie.setHttpOnly(true);
+			// logins always go through https, so the token won't travel in clear text
+			cookie.setSecure(request.isSecure());
+			addCookie(cookie);
+		}
+
+	}
+
+}
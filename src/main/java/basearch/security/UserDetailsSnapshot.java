@@ -0,0 +1,103 @@
+package basearch.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+
+/**
+ * Immutable copy of a UserDetails, detached from any entity or persistence context.
+ * Deliberately not a CredentialsContainer, so that erasing the credentials of an authentication
+ * can't wipe the password of a cached instance.
+ */
+public final class UserDetailsSnapshot implements UserDetails {
+
+	private static final long serialVersionUID = -3712287094331926735L;
+
+	private final String username;
+	private final String password;
+	private final boolean enabled;
+	private final boolean accountNonExpired;
+	private final boolean accountNonLocked;
+	private final boolean credentialsNonExpired;
+	private final List<GrantedAuthority> authorities;
+
+	private UserDetailsSnapshot(UserDetails user) {
+		this.username = user.getUsername();
+		this.password = user.getPassword();
+		this.enabled = user.isEnabled();
+		this.accountNonExpired = user.isAccountNonExpired();
+		this.accountNonLocked = user.isAccountNonLocked();
+		this.credentialsNonExpired = user.isCredentialsNonExpired();
+		List<GrantedAuthority> copy = new ArrayList<>();
+		if (user.getAuthorities() != null) {
+			for (GrantedAuthority authority : user.getAuthorities()) copy.add(new SimpleGrantedAuthority(authority.getAuthority()));
+		}
+		this.authorities = Collections.unmodifiableList(copy);
+	}
+
+	public static UserDetailsSnapshot of(UserDetails user) {
+		if (user == null) throw new IllegalArgumentException("Parameter user can't be null");
+		if (user instanceof UserDetailsSnapshot) return (UserDetailsSnapshot)user;
+		return new UserDetailsSnapshot(user);
+	}
+
+	@Override
+	public Collection<? extends GrantedAuthority> getAuthorities() {
+		return authorities;
+	}
+
+	@Override
+	public String getPassword() {
+		return password;
+	}
+
+	@Override
+	public String getUsername() {
+		return username;
+	}
+
+	@Override
+	public boolean isAccountNonExpired() {
+		return accountNonExpired;
+	}
+
+	@Override
+	public boolean isAccountNonLocked() {
+		return accountNonLocked;
+	}
+
+	@Override
+	public boolean isCredentialsNonExpired() {
+		return credentialsNonExpired;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	// equals & hashcode, by username like spring's own User
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) return true;
+		if (!(other instanceof UserDetailsSnapshot)) return false;
+		return username.equals(((UserDetailsSnapshot)other).username);
+	}
+
+	@Override
+	public int hashCode() {
+		return username.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "UserDetailsSnapshot [username=" + username + ", enabled=" + enabled + ", authorities=" + authorities + "]";
+	}
+
+}
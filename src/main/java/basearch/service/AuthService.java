@@ -1,7 +1,38 @@
 package basearch.service;
 
+import java.util.Collection;
+
 import org.springframework.security.core.userdetails.UserDetailsService;
 
+import basearch.model.auth.PrincipalSpec;
+
 public interface AuthService extends UserDetailsService {
 
+	/**
+	 * Creates all the principals in a single transaction, using batched inserts
+	 */
+	ProvisioningReport createPrincipals(Collection<PrincipalSpec> principals);
+
+	/*
+	 * Reports
+	 */
+
+	public static class ProvisioningReport {
+		private final int principals;
+		private final int rows;
+		private final long elapsedMillis;
+		public ProvisioningReport(int principals, int rows, long elapsedMillis) {
+			this.principals = principals;
+			this.rows = rows;
+			this.elapsedMillis = elapsedMillis;
+		}
+		public int getPrincipals() { return principals; }
+		/**
+		 * Inserted rows, principals plus authorities
+		 */
+		public int getRows() { return rows; }
+		public long getElapsedMillis() { return elapsedMillis; }
+		public double getRowsPerSecond() { return elapsedMillis <= 0 ? rows : rows * 1000d / elapsedMillis; }
+	}
+
 }
@@ -0,0 +1,129 @@
+package basearch.service;
+
+import java.util.List;
+
+/**
+ * Offline maintenance of the stored passwords
+ */
+public interface PasswordMigrationService {
+
+	/**
+	 * Walks the users table in id-ordered chunks, hashing with BCrypt every password still stored in plain text.
+	 * BCrypt hashes below the configured cost can't be upgraded without the plain password, so they're only counted.
+	 * Values that look like any other hash or encoding ($id$ or {id} prefixes, long hex or base64 strings) are skipped.
+	 * Each chunk is written together with its checkpoint, so an interrupted run can be resumed where it stopped.
+	 * 
+	 * @throws IllegalStateException if another run is in progress
+	 */
+	RehashReport rehash(boolean resume);
+
+	/**
+	 * Same as rehash, on a background thread. Returns as soon as the job is started, its progress is in getRehashReport.
+	 * 
+	 * @throws IllegalStateException if another run is in progress
+	 */
+	void startRehash(boolean resume);
+
+	/**
+	 * Report of the running re-hash, updated after each chunk, or of the last one if none is running.
+	 * Null if no re-hash has run since startup.
+	 */
+	RehashReport getRehashReport();
+
+	/**
+	 * Measures the time a single BCrypt hash takes on this machine for each cost between minCost and maxCost,
+	 * and recommends the highest cost whose mean time stays within targetMillis.
+	 */
+	CalibrationReport calibrate(int minCost, int maxCost, int samples, long targetMillis);
+
+	/*
+	 * Reports
+	 */
+
+	public static class RehashReport {
+		private final int targetCost;
+		private final long startedAfterId;
+		private final long lastId;
+		private final long scanned;
+		private final long rehashed;
+		private final long outdated;
+		private final long skipped;
+		private final int chunks;
+		private final long elapsedMillis;
+		private final boolean running;
+		private final String failure;
+		public RehashReport(int targetCost, long startedAfterId, long lastId, long scanned, long rehashed, long outdated, long skipped, int chunks, long elapsedMillis, boolean running, String failure) {
+			this.targetCost = targetCost;
+			this.startedAfterId = startedAfterId;
+			this.lastId = lastId;
+			this.scanned = scanned;
+			this.rehashed = rehashed;
+			this.outdated = outdated;
+			this.skipped = skipped;
+			this.chunks = chunks;
+			this.elapsedMillis = elapsedMillis;
+			this.running = running;
+			this.failure = failure;
+		}
+		public int getTargetCost() { return targetCost; }
+		public long getStartedAfterId() { return startedAfterId; }
+		public long getLastId() { return lastId; }
+		public long getScanned() { return scanned; }
+		public long getRehashed() { return rehashed; }
+		/**
+		 * BCrypt hashes with a cost lower than the target one
+		 */
+		public long getOutdated() { return outdated; }
+		/**
+		 * Passwords left as they were because they couldn't be told apart from a hash
+		 */
+		public long getSkipped() { return skipped; }
+		public int getChunks() { return chunks; }
+		public long getElapsedMillis() { return elapsedMillis; }
+		public boolean isRunning() { return running; }
+		/**
+		 * Why the run stopped before the end, null if it's running or finished
+		 */
+		public String getFailure() { return failure; }
+		public double getRowsPerSecond() { return perSecond(scanned, elapsedMillis); }
+		public double getHashesPerSecond() { return perSecond(rehashed, elapsedMillis); }
+		private static double perSecond(long count, long elapsedMillis) {
+			return elapsedMillis <= 0 ? count : count * 1000d / elapsedMillis;
+		}
+	}
+
+	public static class CalibrationReport {
+		private final long targetMillis;
+		private final int recommendedCost;
+		private final List<CostCalibration> calibrations;
+		public CalibrationReport(long targetMillis, int recommendedCost, List<CostCalibration> calibrations) {
+			this.targetMillis = targetMillis;
+			this.recommendedCost = recommendedCost;
+			this.calibrations = calibrations;
+		}
+		public long getTargetMillis() { return targetMillis; }
+		/**
+		 * Highest measured cost within the target time, or -1 if even the lowest one takes longer
+		 */
+		public int getRecommendedCost() { return recommendedCost; }
+		public List<CostCalibration> getCalibrations() { return calibrations; }
+	}
+
+	public static class CostCalibration {
+		private final int cost;
+		private final int samples;
+		private final double meanMillis;
+		private final double maxMillis;
+		public CostCalibration(int cost, int samples, double meanMillis, double maxMillis) {
+			this.cost = cost;
+			this.samples = samples;
+			this.meanMillis = meanMillis;
+			this.maxMillis = maxMillis;
+		}
+		public int getCost() { return cost; }
+		public int getSamples() { return samples; }
+		public double getMeanMillis() { return meanMillis; }
+		public double getMaxMillis() { return maxMillis; }
+	}
+
+}
@@ -1,5 +1,19 @@
 package basearch.service;
 
+import java.util.Locale;
+
 public interface UserService {
 
+	/**
+	 * Queues a language change for the user and returns right away. Changes are coalesced per user
+	 * and written in the background, so only the last one for each user reaches the database.
+	 */
+	void changeLanguage(String username, Locale locale);
+
+	/**
+	 * Writes all queued language changes now. Returns the count of updated users. Concurrent calls run one at a time,
+	 * each waiting for the one in progress.
+	 */
+	int flushLanguageChanges();
+
 }
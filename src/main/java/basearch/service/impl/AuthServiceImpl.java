@@ -1,30 +1,63 @@
 package basearch.service.impl;
 
+import java.util.Collection;
+
 import javax.inject.Inject;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import basearch.cache.UserDetailsCache;
+import basearch.cache.UserLocaleCache;
 import basearch.dao.AuthDao;
+import basearch.model.auth.Principal;
+import basearch.model.auth.PrincipalSpec;
 import basearch.service.AuthService;
 
 @Service
 @Transactional
 public class AuthServiceImpl implements AuthService {
-	
+
+	private static final Logger logger = LoggerFactory.getLogger(AuthServiceImpl.class);
+
 	private AuthDao authDao;
+	private UserDetailsCache userDetailsCache;
+	private UserLocaleCache userLocaleCache;
 
 	@Inject
-	public AuthServiceImpl(AuthDao authDao) {
+	public AuthServiceImpl(AuthDao authDao, UserDetailsCache userDetailsCache, UserLocaleCache userLocaleCache) {
 		this.authDao = authDao;
+		this.userDetailsCache = userDetailsCache;
+		this.userLocaleCache = userLocaleCache;
 	}
 
+	// not read-only, so it reads from the primary: what it loads is cached, and a lagging replica would keep old
+	// credentials authenticating for as long as they stay in the cache
 	@Override
 	public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
+		if (username != null && !username.isEmpty()) {
+			UserDetails cached = userDetailsCache.get(username);
+			if (cached != null) return cached;
+		}
 		UserDetails u = authDao.loadUserByUsername(username);
-		return u;
+		// the language came along, so the locale lookup right after login is free
+		if (u instanceof Principal && ((Principal)u).getLanguage() != null) userLocaleCache.put(u.getUsername(), ((Principal)u).getLanguage().toLocale());
+		return userDetailsCache.put(u);
+	}
+
+	@Override
+	public ProvisioningReport createPrincipals(Collection<PrincipalSpec> principals) {
+		if (principals == null) throw new IllegalArgumentException("Parameter principals can't be null");
+		long started = System.nanoTime();
+		int rows = authDao.createPrincipals(principals);
+		ProvisioningReport report = new ProvisioningReport(principals.size(), rows, (System.nanoTime() - started) / 1000000);
+		logger.info("Provisioned {} principals, {} rows at {} rows/s", report.getPrincipals(), report.getRows(), (long)report.getRowsPerSecond());
+		return report;
 	}
 
 }
@@ -0,0 +1,286 @@
+package basearch.service.impl;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import basearch.dao.AuthDao;
+import basearch.dao.JobCheckpointDao;
+import basearch.model.auth.StoredCredentials;
+import basearch.service.PasswordMigrationService;
+
+@Service
+@Transactional(propagation=Propagation.NOT_SUPPORTED)
+public class PasswordMigrationServiceImpl implements PasswordMigrationService {
+
+	private static final Logger logger = LoggerFactory.getLogger(PasswordMigrationServiceImpl.class);
+
+	static final String REHASH_JOB = "password-rehash";
+
+	// every BCrypt revision, with the cost captured
+	private static final Pattern BCRYPT_HASH = Pattern.compile("\\A\\$2[abxy]?\\$(\\d\\d)\\$[./0-9A-Za-z]{53}\\z");
+	// other schemes: $id$ crypt formats, {id} prefixed values, and hex or base64 digests
+	private static final Pattern OTHER_HASH = Pattern.compile("\\A(?:\\$.*|\\{.*|[0-9A-Fa-f]{32,}|[0-9A-Za-z+/]{27,}={0,2})\\z", Pattern.DOTALL);
+	private static final int MIN_COST = 4;
+	// every step doubles the time, anything above takes seconds per hash
+	private static final int MAX_CALIBRATION_COST = 16;
+
+	private AuthDao authDao;
+	private JobCheckpointDao jobCheckpointDao;
+	private TransactionTemplate transactionTemplate;
+	private int targetCost;
+	private int chunkSize;
+
+	private final AtomicBoolean rehashRunning = new AtomicBoolean();
+	private ExecutorService rehashExecutor;
+	private volatile RehashReport rehashReport;
+
+	@Inject
+	public PasswordMigrationServiceImpl(AuthDao authDao, JobCheckpointDao jobCheckpointDao, PlatformTransactionManager transactionManager,
+			@Value("${basearch.security.password-hashing.bcrypt-strength:10}") int targetCost,
+			@Value("${basearch.security.password-rehash.chunk-size:500}") int chunkSize) {
+		if (chunkSize < 1) throw new IllegalArgumentException("Chunk size must be greater than zero");
+		this.authDao = authDao;
+		this.jobCheckpointDao = jobCheckpointDao;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.targetCost = targetCost;
+		this.chunkSize = chunkSize;
+	}
+
+	@PostConstruct
+	public void startRehashExecutor() {
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("password-rehash-");
+		threadFactory.setDaemon(true);
+		rehashExecutor = Executors.newSingleThreadExecutor(threadFactory);
+	}
+
+	@PreDestroy
+	public void stopRehashExecutor() {
+		// a running job stops at its next chunk, and can be resumed from the checkpoint
+		rehashExecutor.shutdownNow();
+	}
+
+	@Override
+	public RehashReport rehash(boolean resume) {
+		claimRehash();
+		return runRehash(resume);
+	}
+
+	@Override
+	public void startRehash(final boolean resume) {
+		claimRehash();
+		try {
+			rehashExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						runRehash(resume);
+					} catch(RuntimeException re) {
+						// already in the report
+						logger.error("Password re-hash failed", re);
+					}
+				}
+			});
+		} catch(RejectedExecutionException ree) {
+			rehashRunning.set(false);
+			throw new IllegalStateException("A password re-hash can't be started while shutting down", ree);
+		}
+	}
+
+	@Override
+	public RehashReport getRehashReport() {
+		return rehashReport;
+	}
+
+	@Override
+	public CalibrationReport calibrate(int minCost, int maxCost, int samples, long targetMillis) {
+		if (minCost < MIN_COST || maxCost > MAX_CALIBRATION_COST || minCost > maxCost) throw new IllegalArgumentException("Costs must be between " + MIN_COST + " and " + MAX_CALIBRATION_COST + ", and minCost can't be greater than maxCost");
+		if (samples < 1) throw new IllegalArgumentException("Parameter samples must be greater than zero");
+		if (targetMillis < 1) throw new IllegalArgumentException("Parameter targetMillis must be greater than zero");
+		SecureRandom random = new SecureRandom();
+		List<CostCalibration> calibrations = new ArrayList<>(maxCost - minCost + 1);
+		int recommendedCost = -1;
+		for (int cost = minCost; cost <= maxCost; cost++) {
+			BCryptPasswordEncoder encoder = new BCryptPasswordEncoder(cost, random);
+			// warm up, so the first sample doesn't pay for class loading and jit
+			encoder.encode("calibration");
+			long total = 0, max = 0;
+			for (int i = 0; i < samples; i++) {
+				String password = Long.toHexString(random.nextLong());
+				long started = System.nanoTime();
+				encoder.encode(password);
+				long elapsed = System.nanoTime() - started;
+				total += elapsed;
+				max = Math.max(max, elapsed);
+			}
+			CostCalibration calibration = new CostCalibration(cost, samples, total / (samples * 1000000d), max / 1000000d);
+			logger.debug("BCrypt cost {} takes {}ms on average", cost, calibration.getMeanMillis());
+			calibrations.add(calibration);
+			if (calibration.getMeanMillis() <= targetMillis) recommendedCost = cost;
+			// costs double at each step, no point in measuring further
+			else break;
+		}
+		return new CalibrationReport(targetMillis, recommendedCost, calibrations);
+	}
+
+	/*
+	 * Utility methods
+	 */
+
+	private void claimRehash() {
+		if (!rehashRunning.compareAndSet(false, true)) throw new IllegalStateException("A password re-hash is already running");
+		rehashReport = new RehashReport(targetCost, 0, 0, 0, 0, 0, 0, 0, 0, true, null);
+	}
+
+	/**
+	 * Runs the job on the calling thread, publishing its progress after each chunk. Releases the claim when done.
+	 */
+	private RehashReport runRehash(boolean resume) {
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		long started = System.nanoTime();
+		final BCryptPasswordEncoder encoder = new BCryptPasswordEncoder(targetCost);
+		final LongAdder outdated = new LongAdder();
+		final LongAdder skipped = new LongAdder();
+		long startedAfterId = 0, lastId = 0, scanned = 0, rehashed = 0;
+		int chunks = 0;
+		try {
+			Long checkpoint = resume ? readCheckpoint() : null;
+			startedAfterId = checkpoint == null ? 0 : checkpoint.longValue();
+			lastId = startedAfterId;
+			while (true) {
+				final List<StoredCredentials> chunk = readChunk(lastId);
+				if (chunk.isEmpty()) break;
+				// hashing is the expensive part, spread it over every core
+				List<Callable<StoredCredentials>> hashes = new ArrayList<>(chunk.size());
+				for (final StoredCredentials c : chunk) {
+					hashes.add(new Callable<StoredCredentials>() {
+						@Override
+						public StoredCredentials call() {
+							return upgrade(c, encoder, outdated, skipped);
+						}
+					});
+				}
+				final List<StoredCredentials> upgraded = new ArrayList<>(chunk.size());
+				for (Future<StoredCredentials> hash : pool.invokeAll(hashes)) {
+					StoredCredentials c = hash.get();
+					if (c != null) upgraded.add(c);
+				}
+				final long chunkLastId = chunk.get(chunk.size() - 1).getId();
+				// passwords and checkpoint move together, a failed chunk is redone on resume
+				int updated = transactionTemplate.execute(new TransactionCallback<Integer>() {
+					@Override
+					public Integer doInTransaction(TransactionStatus status) {
+						int written = authDao.updatePasswords(upgraded);
+						jobCheckpointDao.saveCheckpoint(REHASH_JOB, chunkLastId);
+						return written;
+					}
+				});
+				lastId = chunkLastId;
+				scanned += chunk.size();
+				// passwords changed since they were read aren't overwritten, nor counted
+				rehashed += updated;
+				chunks++;
+				publish(startedAfterId, lastId, scanned, rehashed, outdated, skipped, chunks, started, true, null);
+				logger.debug("Re-hash chunk {} done, {} users scanned up to id {}, {} re-hashed", chunks, scanned, lastId, rehashed);
+			}
+			transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					jobCheckpointDao.clearCheckpoint(REHASH_JOB);
+				}
+			});
+			RehashReport report = publish(startedAfterId, lastId, scanned, rehashed, outdated, skipped, chunks, started, false, null);
+			logger.info("Password re-hash finished: {} users scanned, {} re-hashed, {} below cost {}, {} not recognised, {} rows/s", scanned, rehashed, report.getOutdated(), targetCost, report.getSkipped(), (long)report.getRowsPerSecond());
+			return report;
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			String failure = "Password re-hash interrupted, it can be resumed from the last checkpoint";
+			publish(startedAfterId, lastId, scanned, rehashed, outdated, skipped, chunks, started, false, failure);
+			throw new IllegalStateException(failure, ie);
+		} catch(ExecutionException ee) {
+			publish(startedAfterId, lastId, scanned, rehashed, outdated, skipped, chunks, started, false, String.valueOf(ee.getCause()));
+			if (ee.getCause() instanceof RuntimeException) throw (RuntimeException)ee.getCause();
+			throw new IllegalStateException("Password re-hash failed", ee.getCause());
+		} catch(RuntimeException re) {
+			publish(startedAfterId, lastId, scanned, rehashed, outdated, skipped, chunks, started, false, String.valueOf(re));
+			throw re;
+		} finally {
+			pool.shutdownNow();
+			rehashRunning.set(false);
+		}
+	}
+
+	private RehashReport publish(long startedAfterId, long lastId, long scanned, long rehashed, LongAdder outdated, LongAdder skipped, int chunks, long started, boolean running, String failure) {
+		rehashReport = new RehashReport(targetCost, startedAfterId, lastId, scanned, rehashed, outdated.sum(), skipped.sum(), chunks, (System.nanoTime() - started) / 1000000, running, failure);
+		return rehashReport;
+	}
+
+	private Long readCheckpoint() {
+		return transactionTemplate.execute(new TransactionCallback<Long>() {
+			@Override
+			public Long doInTransaction(TransactionStatus status) {
+				return jobCheckpointDao.getCheckpoint(REHASH_JOB);
+			}
+		});
+	}
+
+	private List<StoredCredentials> readChunk(final long lastId) {
+		return transactionTemplate.execute(new TransactionCallback<List<StoredCredentials>>() {
+			@Override
+			public List<StoredCredentials> doInTransaction(TransactionStatus status) {
+				return authDao.findCredentialsAfter(lastId, chunkSize);
+			}
+		});
+	}
+
+	/**
+	 * Returns the credentials with a BCrypt hash of the plain text password, or null if the password is already hashed.
+	 * Hashing a value that is itself a hash would lock its user out, so anything that isn't clearly plain text is skipped.
+	 */
+	private StoredCredentials upgrade(StoredCredentials credentials, BCryptPasswordEncoder encoder, LongAdder outdated, LongAdder skipped) {
+		String password = credentials.getPassword();
+		if (password == null || password.isEmpty()) {
+			skipped.increment();
+			return null;
+		}
+		Matcher m = BCRYPT_HASH.matcher(password);
+		if (m.matches()) {
+			if (Integer.parseInt(m.group(1)) < targetCost) outdated.increment();
+			return null;
+		}
+		if (OTHER_HASH.matcher(password).matches()) {
+			skipped.increment();
+			return null;
+		}
+		return credentials.withPassword(encoder.encode(password));
+	}
+
+}
@@ -1,9 +1,29 @@
 package basearch.service.impl;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import basearch.dao.UserDao;
 import basearch.service.UserService;
@@ -11,12 +31,96 @@ import basearch.service.UserService;
 @Service
 @Transactional
 public class UserServiceImpl implements UserService {
-	
+
+	private static final Logger logger = LoggerFactory.getLogger(UserServiceImpl.class);
+
 	private UserDao userDao;
+	private TransactionTemplate transactionTemplate;
+	private long languageFlushMillis;
+
+	// pending language changes, the last one for each user wins
+	private final ConcurrentHashMap<String,Locale> pendingLanguages = new ConcurrentHashMap<>();
+	// one flush at a time, an older change drained by one flush can't be written over a newer one drained by another
+	private final Object flushLock = new Object();
+	private ScheduledExecutorService languageWriter;
 
 	@Inject
-	public UserServiceImpl(UserDao userDao) {
+	public UserServiceImpl(UserDao userDao, PlatformTransactionManager transactionManager, @Value("${basearch.users.language-flush-millis:2000}") long languageFlushMillis) {
 		this.userDao = userDao;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.languageFlushMillis = languageFlushMillis;
+	}
+
+	@PostConstruct
+	public void startLanguageWriter() {
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("user-language-writer-");
+		threadFactory.setDaemon(true);
+		languageWriter = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		languageWriter.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushLanguageChanges();
+				} catch(RuntimeException re) {
+					// changes were put back in the queue, next run will retry them
+					logger.error("Could not write pending language changes: " + re.getMessage());
+				}
+			}
+		}, languageFlushMillis, languageFlushMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stopLanguageWriter() {
+		languageWriter.shutdown();
+		try {
+			languageWriter.awaitTermination(languageFlushMillis, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		flushLanguageChanges();
+	}
+
+	@Override
+	@Transactional(propagation=Propagation.SUPPORTS)
+	public void changeLanguage(String username, Locale locale) {
+		if (username == null || username.isEmpty()) throw new IllegalArgumentException("Parameter username can't be null or empty");
+		if (locale == null) throw new IllegalArgumentException("Parameter locale can't be null");
+		pendingLanguages.put(username, locale);
+	}
+
+	@Override
+	@Transactional(propagation=Propagation.NOT_SUPPORTED)
+	public int flushLanguageChanges() {
+		// even with nothing queued, changes drained by a flush in progress are only written once it's done
+		synchronized (flushLock) {
+			return writePendingLanguages();
+		}
+	}
+
+	private int writePendingLanguages() {
+		if (pendingLanguages.isEmpty()) return 0;
+		final Map<String,Locale> batch = new HashMap<>();
+		Iterator<String> it = pendingLanguages.keySet().iterator();
+		while (it.hasNext()) {
+			String username = it.next();
+			Locale l = pendingLanguages.remove(username);
+			if (l != null) batch.put(username, l);
+		}
+		if (batch.isEmpty()) return 0;
+		try {
+			int updated = transactionTemplate.execute(new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus status) {
+					return userDao.setLocalesFromLocaleResolver(batch);
+				}
+			});
+			logger.debug("Wrote {} pending language changes, {} users updated", batch.size(), updated);
+			return updated;
+		} catch(RuntimeException re) {
+			// requeue unless a newer change arrived meanwhile
+			for (Map.Entry<String,Locale> entry : batch.entrySet()) pendingLanguages.putIfAbsent(entry.getKey(), entry.getValue());
+			throw re;
+		}
 	}
 
 }
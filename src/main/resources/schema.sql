@@ -1,5 +1,5 @@
 -- Sequences
-create sequence jpa_seq start with 100;
+create sequence jpa_seq start with 100 increment by 50;
 
 -- Table: languages
 create table languages
@@ -32,3 +32,10 @@ create table authorities
   constraint fk_authorities_users foreign key(username) references users(username),
   constraint u_username_authority unique (username,authority)
 );
+
+-- Table: job_checkpoints
+create table job_checkpoints
+(
+  job character varying(50) not null primary key,
+  last_id integer not null
+);
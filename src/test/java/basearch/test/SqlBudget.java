@@ -0,0 +1,30 @@
+package basearch.test;
+
+import org.springframework.util.Assert;
+
+import basearch.metrics.SqlStatementCounter;
+
+/**
+ * Statement budget for a piece of work, usually a request performed through MockMvc. Fails if the work sends more
+ * statements than allowed, or runs the same read query as many times as the counter's threshold (N+1).
+ */
+public final class SqlBudget {
+
+	public interface Work {
+		void run() throws Exception;
+	}
+
+	private SqlBudget() {
+	}
+
+	public static void assertStatements(SqlStatementCounter counter, int maxStatements, Work work) throws Exception {
+		// a disabled counter sees no statements, and every budget would pass
+		Assert.isTrue(counter.isEnabled(), "SQL statement counting is off, set basearch.persistence.sql.count-statements=true");
+		try (SqlStatementCounter.Scope scope = counter.open("Statement budget")) {
+			work.run();
+			Assert.isTrue(scope.getRepeatedQueries().isEmpty(), "Same query run over and over, possible N+1: " + scope.getRepeatedQueries());
+			Assert.isTrue(scope.getStatements() <= maxStatements, "Expected at most " + maxStatements + " statements, " + scope.getStatements() + " were sent");
+		}
+	}
+
+}
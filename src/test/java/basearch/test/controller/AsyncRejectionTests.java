@@ -0,0 +1,103 @@
+package basearch.test.controller;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import basearch.Application;
+import basearch.TransactionFilter;
+import basearch.persistence.TransactionPolicies;
+import basearch.persistence.TransactionPolicies.RollbackCause;
+import basearch.test.BaseMvcTest;
+
+/**
+ * Async work rejected by a saturated executor, a single thread without a queue here, must roll the request's
+ * transaction back instead of leaving it to be committed.
+ */
+@SpringBootTest(classes={Application.class, TransactionFilterTests.AsyncController.class}, webEnvironment=WebEnvironment.MOCK)
+@TestPropertySource(properties={"basearch.web.async.threads=1", "basearch.web.async.queue-capacity=0"})
+public class AsyncRejectionTests extends BaseMvcTest {
+
+	@Autowired
+	private WebApplicationContext wac;
+
+	@Autowired
+	private TransactionPolicies transactionPolicies;
+
+	@Autowired
+	private TransactionFilterTests.AsyncController asyncController;
+
+	private MockMvc filteredMockMvc;
+	private ServletRequest rejected;
+
+	@Before
+	public void setupFilters() {
+		filteredMockMvc = MockMvcBuilders.webAppContextSetup(wac).addFilters(new RequestCapture(), new TransactionFilter()).build();
+	}
+
+	@Test
+	public void rejectedAsyncWorkRollsBack() throws Exception {
+		TransactionPolicies.Policy policy = transactionPolicies.getPolicy("default");
+		long transactions = policy.getTransactions();
+		long failed = policy.getRolledBack(RollbackCause.FAILED);
+		asyncController.gate = new CountDownLatch(1);
+		MvcResult blocking = filteredMockMvc.perform(get(TransactionFilterTests.ASYNC_PATH).param("block", "true")).andExpect(request().asyncStarted()).andReturn();
+		try {
+			// the only thread is busy
+			filteredMockMvc.perform(get(TransactionFilterTests.ASYNC_PATH));
+			Assert.fail("The executor should have rejected the work");
+		} catch(Exception e) {
+			Assert.assertTrue(NestedExceptionUtils.getRootCause(e) instanceof RejectedExecutionException);
+		}
+		// completed as the container would, the transaction must not be completed twice
+		rejected.getAsyncContext().complete();
+		Assert.assertEquals(transactions + 1, policy.getTransactions());
+		Assert.assertEquals(failed + 1, policy.getRolledBack(RollbackCause.FAILED));
+		asyncController.gate.countDown();
+		blocking.getAsyncResult();
+		Assert.assertEquals(transactions + 2, policy.getTransactions());
+		Assert.assertEquals(failed + 1, policy.getRolledBack(RollbackCause.FAILED));
+	}
+
+	private class RequestCapture implements Filter {
+
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+			rejected = request;
+			chain.doFilter(request, response);
+		}
+
+		@Override
+		public void init(FilterConfig filterConfig) {
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+	}
+
+}
@@ -8,12 +8,18 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 import java.util.Locale;
 
 import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
 
+import basearch.metrics.SqlStatementCounter;
 import basearch.test.BaseMvcTest;
+import basearch.test.SqlBudget;
 
 public class ControllerTests extends BaseMvcTest {
 
+	@Autowired
+	private SqlStatementCounter sqlStatementCounter;
+
 	@Test
 	public void testIndex() throws Exception {
 		mockMvc.perform(get("/index.page"))
@@ -21,6 +27,12 @@ public class ControllerTests extends BaseMvcTest {
 			.andExpect(content().contentTypeCompatibleWith(MediaType.TEXT_HTML));
 	}
 
+	@Test
+	public void testIndexStatementBudget() throws Exception {
+		SqlBudget.assertStatements(sqlStatementCounter, 1, () -> mockMvc.perform(get("/index.page").locale(Locale.forLanguageTag("es")))
+			.andExpect(status().isOk()));
+	}
+
 	@Test
 	public void testLogin() throws Exception {
 		mockMvc.perform(get("/login.page"))
@@ -3,19 +3,38 @@ package basearch.test.controller;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.cookie;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import java.util.Locale;
 
+import javax.persistence.EntityManagerFactory;
 import javax.servlet.http.Cookie;
 
+import org.junit.Assert;
 import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
 
 import basearch.Constants;
+import basearch.CustomLocaleResolver;
+import basearch.cache.UserLocaleCache;
 import basearch.test.BaseMvcTest;
 
 public class LocaleResolverTests extends BaseMvcTest {
 
+	@Autowired
+	private CustomLocaleResolver localeResolver;
+
+	@Autowired
+	private UserLocaleCache userLocaleCache;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+
 	@Test
 	public void testSessionLocale() throws Exception {
 		// tested in the security tests
@@ -23,8 +42,10 @@ public class LocaleResolverTests extends BaseMvcTest {
 
 	@Test
 	public void testNoLocale() throws Exception {
+		// the container's default locale is no choice of the browser, nothing to remember
 		mockMvc.perform(get("/index.page"))
-			.andExpect(status().isOk());
+			.andExpect(status().isOk())
+			.andExpect(cookie().doesNotExist(Constants.LOCALE_RESOLVER_COOKIE_NAME));
 	}
 
 	@Test
@@ -69,6 +90,20 @@ public class LocaleResolverTests extends BaseMvcTest {
 			.andExpect(content().string(containsString("Welcome")));
 	}
 
+	@Test
+	public void testAcceptHeaderLocaleFallback1() throws Exception {
+		mockMvc.perform(get("/index.page").locale(Locale.forLanguageTag("es-MX")))
+			.andExpect(status().isOk())
+			.andExpect(content().string(containsString("Bienvenido")));
+	}
+
+	@Test
+	public void testAcceptHeaderLocaleFallback2() throws Exception {
+		mockMvc.perform(get("/index.page").header("Accept-Language","pt-BR, en-AU;q=0.8"))
+			.andExpect(status().isOk())
+			.andExpect(content().string(containsString("Welcome")));
+	}
+
 	@Test
 	public void testCookieLocale1() throws Exception {
 		Cookie c = new Cookie(Constants.LOCALE_RESOLVER_COOKIE_NAME, "es-ES");
@@ -101,4 +136,59 @@ public class LocaleResolverTests extends BaseMvcTest {
 			.andExpect(content().string(containsString("Welcome")));
 	}
 
+	@Test
+	public void testCookieLocaleFallback() throws Exception {
+		Cookie c = new Cookie(Constants.LOCALE_RESOLVER_COOKIE_NAME, "es-AR");
+		mockMvc.perform(get("/index.page").cookie(c).locale(Locale.forLanguageTag("en")))
+			.andExpect(status().isOk())
+			.andExpect(content().string(containsString("Bienvenido")));
+	}
+
+	@Test
+	public void testAcceptHeaderSetsCookie() throws Exception {
+		mockMvc.perform(get("/index.page").header("Accept-Language","es-ES, en;q=0.5"))
+			.andExpect(status().isOk())
+			.andExpect(cookie().value(Constants.LOCALE_RESOLVER_COOKIE_NAME, "es-ES"));
+	}
+
+	@Test
+	public void testAcceptHeaderCache() throws Exception {
+		long hits = localeResolver.getHeaderLocaleCache().getHits();
+		mockMvc.perform(get("/index.page").header("Accept-Language","en-US, es;q=0.3"))
+			.andExpect(status().isOk())
+			.andExpect(content().string(containsString("Welcome")));
+		mockMvc.perform(get("/index.page").header("Accept-Language","en-US, es;q=0.3"))
+			.andExpect(status().isOk())
+			.andExpect(content().string(containsString("Welcome")));
+		Assert.assertTrue(localeResolver.getHeaderLocaleCache().getHits() > hits);
+	}
+
+	@Test
+	public void testUserLocaleOfALanguageAddedLater() {
+		Long languageId = jdbcTemplate.queryForObject("select language_id from users where username = 'test'", Long.class);
+		jdbcTemplate.update("insert into languages values (60,'fr','FR',null)");
+		try {
+			jdbcTemplate.update("update users set language_id = 60 where username = 'test'");
+			entityManagerFactory.getCache().evictAll();
+			userLocaleCache.evict("test");
+			// the index of app languages was built before it existed
+			Assert.assertEquals(new Locale("fr", "FR"), localeResolver.resolveUserLocale("test"));
+		} finally {
+			jdbcTemplate.update("update users set language_id = ? where username = 'test'", languageId);
+			jdbcTemplate.update("delete from languages where id = 60");
+			// changed behind the daos' back
+			entityManagerFactory.getCache().evictAll();
+			userLocaleCache.evict("test");
+			localeResolver.reloadLanguages();
+		}
+	}
+
+	@Test
+	public void testLocaleChange() throws Exception {
+		mockMvc.perform(get("/index.page").param(Constants.LOCALE_CHANGE_PARAM_NAME, "en-GB").header("Accept-Language","es-ES"))
+			.andExpect(status().isOk())
+			.andExpect(cookie().value(Constants.LOCALE_RESOLVER_COOKIE_NAME, "en-GB"))
+			.andExpect(content().string(containsString("Welcome")));
+	}
+
 }
\ No newline at end of file
@@ -4,28 +4,76 @@ import static org.hamcrest.core.StringContains.containsString;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.redirectedUrl;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.redirectedUrlPattern;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import java.util.Locale;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
 import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultMatcher;
 
+import basearch.Constants;
+import basearch.CustomLocaleResolver;
+import basearch.cache.UserLocaleCache;
+import basearch.dao.UserDao;
+import basearch.metrics.SqlStatementCounter;
+import basearch.security.BoundedPasswordEncoder;
+import basearch.security.BoundedPasswordEncoder.PasswordHashingRejectedException;
+import basearch.security.LocaleAuthenticationDetails;
+import basearch.security.ServiceUnavailableFailureHandler;
+import basearch.service.UserService;
 import basearch.test.BaseSecurityTest;
+import basearch.test.SqlBudget;
 
 public class SecurityTests extends BaseSecurityTest {
 
 	private static final Logger logger = LoggerFactory.getLogger(SecurityTests.class);
 
+	@Autowired
+	private UserLocaleCache userLocaleCache;
+
+	@Autowired
+	private CustomLocaleResolver localeResolver;
+
+	@Autowired
+	private UserService userService;
+
+	@Autowired
+	private UserDao userDao;
+
+	@Autowired
+	private BoundedPasswordEncoder passwordEncoder;
+
+	@Autowired
+	private SqlStatementCounter sqlStatementCounter;
+
 	@Test
 	@WithMockUser(username="admin",roles="ADMIN")
 	public void testSessionLocale() throws Exception {
@@ -102,6 +150,21 @@ public class SecurityTests extends BaseSecurityTest {
 		logger.debug("Result userAuthenticates(): " + result.getResponse().getStatus() + " - " + result.getResponse().getRedirectedUrl());
 	}
 
+	@Test
+	public void loginStatementBudget() throws Exception {
+		// the principal comes with its authorities and language in a single query
+		SqlBudget.assertStatements(sqlStatementCounter, 1, () -> mockMvc.perform(post("/login").param("username", "admin").param("password", "admin").secure(true))
+			.andExpect(status().is3xxRedirection())
+			.andExpect(redirectedUrl("/secured.page")));
+	}
+
+	@Test
+	@WithMockUser(username="admin",roles="ADMIN")
+	public void securedPageStatementBudget() throws Exception {
+		SqlBudget.assertStatements(sqlStatementCounter, 1, () -> mockMvc.perform(get("/secured.page").secure(true))
+			.andExpect(status().isOk()));
+	}
+
 	@Test
 	public void userAuthenticateFails() throws Exception {
 		MvcResult result = mockMvc.perform(post("/login").param("username", "notexistent").param("password", "invalid").secure(true))
@@ -118,4 +181,152 @@ public class SecurityTests extends BaseSecurityTest {
 		logger.debug("Result userAuthenticateFails(): " + result.getResponse().getStatus() + " - " + result.getResponse().getRedirectedUrl());
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void userLocaleStoredAtLogin() throws Exception {
+		mockMvc.perform(post("/login").param("username", "admin").param("password", "admin").secure(true))
+			.andExpect(status().is3xxRedirection())
+			.andExpect(new ResultMatcher() {
+				public void match(MvcResult mvcResult) throws Exception {
+					HttpSession session = mvcResult.getRequest().getSession();
+					SecurityContext securityContext = (SecurityContext) session.getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY);
+					Object details = securityContext.getAuthentication().getDetails();
+					Assert.assertTrue(details instanceof LocaleAuthenticationDetails);
+					Assert.assertEquals(new Locale("es", "ES"), ((LocaleAuthenticationDetails)details).getLocale());
+				}
+			});
+	}
+
+	@Test
+	@WithMockUser(username="user",roles="USER")
+	public void userLocaleChange() throws Exception {
+		mockMvc.perform(get("/index.page").param(Constants.LOCALE_CHANGE_PARAM_NAME, "en-GB").secure(true))
+			.andExpect(status().isOk())
+			.andExpect(content().string(containsString("Welcome")));
+		Assert.assertEquals(new Locale("en", "GB"), userLocaleCache.get("user"));
+		// put things back as they were
+		mockMvc.perform(get("/index.page").param(Constants.LOCALE_CHANGE_PARAM_NAME, "es").secure(true))
+			.andExpect(status().isOk())
+			.andExpect(content().string(containsString("Bienvenido")));
+		Assert.assertTrue(userService.flushLanguageChanges() <= 1);
+		Assert.assertEquals(new Locale("es"), userDao.getByUsername("user").getLanguage().toLocale());
+	}
+
+	@Test
+	public void evictedUserLocaleReplacesTheLoginOne() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		UsernamePasswordAuthenticationToken auth = new UsernamePasswordAuthenticationToken("user", null, AuthorityUtils.createAuthorityList("ROLE_USER"));
+		auth.setDetails(new LocaleAuthenticationDetails(request, new Locale("en", "GB")));
+		SecurityContextHolder.getContext().setAuthentication(auth);
+		try {
+			// as after a language change, the stored language wins over the one resolved at login
+			userLocaleCache.evict("user");
+			Assert.assertEquals(new Locale("es"), localeResolver.resolveLocale(request));
+		} finally {
+			SecurityContextHolder.clearContext();
+		}
+	}
+
+	@Test
+	public void loginPasswordHashingIsMetered() throws Exception {
+		long before = hashingMetric("security.password-hashing.hash-time.count").longValue();
+		mockMvc.perform(post("/login").param("username", "admin").param("password", "admin").secure(true))
+			.andExpect(status().is3xxRedirection())
+			.andExpect(redirectedUrl("/secured.page"));
+		Assert.assertEquals(before + 1, hashingMetric("security.password-hashing.hash-time.count").longValue());
+		Assert.assertTrue(hashingMetric("security.password-hashing.hash-time.max").doubleValue() > 0);
+	}
+
+	@Test
+	public void saturatedPasswordHashingIsRejected() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		PasswordEncoder blocking = new PasswordEncoder() {
+			@Override
+			public String encode(CharSequence rawPassword) {
+				return rawPassword.toString();
+			}
+			@Override
+			public boolean matches(CharSequence rawPassword, String encodedPassword) {
+				started.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				return true;
+			}
+		};
+		final BoundedPasswordEncoder encoder = new BoundedPasswordEncoder(blocking, 1, 1);
+		ExecutorService callers = Executors.newFixedThreadPool(2);
+		try {
+			Callable<Boolean> login = new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return encoder.matches("password", "password");
+				}
+			};
+			// one hashing, one queued
+			Future<Boolean> first = callers.submit(login);
+			started.await(5, TimeUnit.SECONDS);
+			Future<Boolean> second = callers.submit(login);
+			while (encoder.metrics().stream().noneMatch(m -> m.getName().equals("security.password-hashing.queued") && m.getValue().intValue() == 1)) Thread.sleep(5);
+			try {
+				encoder.matches("password", "password");
+				Assert.fail("Saturated pool should reject the hashing");
+			} catch(PasswordHashingRejectedException phre) {
+				MockHttpServletResponse response = new MockHttpServletResponse();
+				new ServiceUnavailableFailureHandler(5).onAuthenticationFailure(new MockHttpServletRequest(), response, phre);
+				Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.getStatus());
+				Assert.assertEquals("5", response.getHeader("Retry-After"));
+			}
+			release.countDown();
+			Assert.assertTrue(first.get(5, TimeUnit.SECONDS));
+			Assert.assertTrue(second.get(5, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			callers.shutdownNow();
+			encoder.destroy();
+		}
+	}
+
+	@Test
+	@WithMockUser(roles="ADMIN")
+	public void passwordCalibrationIsAvailable() throws Exception {
+		mockMvc.perform(post("/management/rehash/calibrate").param("minCost", "4").param("maxCost", "4").param("samples", "1").secure(true))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.recommendedCost").value(4))
+			.andExpect(jsonPath("$.calibrations[0].cost").value(4));
+	}
+
+	@Test
+	@WithMockUser(roles="ADMIN")
+	public void languagesCanBeReloaded() throws Exception {
+		mockMvc.perform(post("/management/languages/reload").secure(true))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.languages").value(5));
+	}
+
+	@Test
+	@WithMockUser(roles="USER")
+	public void languagesReloadRequiresAdmin() throws Exception {
+		mockMvc.perform(post("/management/languages/reload").secure(true))
+			.andExpect(status().isForbidden());
+	}
+
+	@Test
+	@WithMockUser(roles="USER")
+	public void passwordRehashRequiresAdmin() throws Exception {
+		mockMvc.perform(post("/management/rehash").secure(true))
+			.andExpect(status().isForbidden());
+		mockMvc.perform(get("/management/rehash").secure(true))
+			.andExpect(status().isForbidden());
+	}
+
+	private Number hashingMetric(String name) {
+		for (Metric<?> metric : passwordEncoder.metrics()) {
+			if (metric.getName().equals(name)) return metric.getValue();
+		}
+		throw new AssertionError("Metric " + name + " not published");
+	}
+
+}
@@ -0,0 +1,156 @@
+package basearch.test.controller;
+
+import static org.hamcrest.core.StringContains.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.cookie;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.redirectedUrl;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.redirectedUrlPattern;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MvcResult;
+
+import basearch.Application;
+import basearch.Constants;
+import basearch.security.AuthenticationClaims;
+import basearch.security.ClaimsSigner;
+import basearch.service.UserService;
+import basearch.test.BaseSecurityTest;
+
+@SpringBootTest(classes=Application.class, webEnvironment=WebEnvironment.MOCK)
+@TestPropertySource(properties={"basearch.security.stateless.enabled=true", "basearch.security.stateless.secret=" + StatelessSecurityTests.SECRET})
+public class StatelessSecurityTests extends BaseSecurityTest {
+
+	static final String SECRET = "stateless-tests-signing-secret";
+
+	@Autowired
+	private UserService userService;
+
+	@Test
+	public void loginIssuesCookieWithoutSession() throws Exception {
+		MvcResult result = mockMvc.perform(post("/login").param("username", "admin").param("password", "admin").secure(true))
+			.andExpect(status().is3xxRedirection())
+			.andExpect(redirectedUrl("/secured.page"))
+			.andExpect(cookie().exists(Constants.AUTH_TOKEN_COOKIE_NAME))
+			.andExpect(cookie().httpOnly(Constants.AUTH_TOKEN_COOKIE_NAME, true))
+			.andReturn();
+		Assert.assertNull(result.getRequest().getSession(false));
+		AuthenticationClaims claims = signer().verify(result.getResponse().getCookie(Constants.AUTH_TOKEN_COOKIE_NAME).getValue(), 0);
+		Assert.assertNotNull(claims);
+		Assert.assertEquals("admin", claims.getUsername());
+		Assert.assertEquals(Arrays.asList("ROLE_ADMIN"), claims.getAuthorities());
+		Assert.assertEquals(new Locale("es", "ES"), claims.getLocale());
+	}
+
+	@Test
+	public void cookieAuthenticatesRequests() throws Exception {
+		Cookie token = token("admin", new Locale("en", "GB"), System.currentTimeMillis() / 1000 + 1700, "ROLE_ADMIN");
+		MvcResult result = mockMvc.perform(get("/secured.page").cookie(token).secure(true))
+			.andExpect(status().isOk())
+			.andExpect(content().string(containsString("ROLE_ADMIN")))
+			.andReturn();
+		// less than half its lifetime gone, no need to reissue it
+		Assert.assertNull(result.getResponse().getCookie(Constants.AUTH_TOKEN_COOKIE_NAME));
+		Assert.assertNull(result.getRequest().getSession(false));
+	}
+
+	@Test
+	public void cookieCarriesLocale() throws Exception {
+		Cookie token = token("admin", new Locale("en", "GB"), System.currentTimeMillis() / 1000 + 600, "ROLE_ADMIN");
+		mockMvc.perform(get("/index.page").cookie(token).secure(true))
+			.andExpect(status().isOk())
+			.andExpect(content().string(containsString("Welcome")));
+	}
+
+	@Test
+	public void localeChangeReissuesCookie() throws Exception {
+		Cookie token = token("user", new Locale("es"), System.currentTimeMillis() / 1000 + 1700, "ROLE_USER");
+		MvcResult result = mockMvc.perform(get("/index.page").param(Constants.LOCALE_CHANGE_PARAM_NAME, "en-GB").cookie(token).secure(true))
+			.andExpect(status().isOk())
+			.andExpect(content().string(containsString("Welcome")))
+			.andReturn();
+		Cookie reissued = result.getResponse().getCookie(Constants.AUTH_TOKEN_COOKIE_NAME);
+		Assert.assertNotNull(reissued);
+		Assert.assertEquals(new Locale("en", "GB"), signer().verify(reissued.getValue(), 0).getLocale());
+		// put things back as they were
+		mockMvc.perform(get("/index.page").param(Constants.LOCALE_CHANGE_PARAM_NAME, "es").cookie(reissued).secure(true))
+			.andExpect(status().isOk())
+			.andExpect(content().string(containsString("Bienvenido")));
+		userService.flushLanguageChanges();
+	}
+
+	@Test
+	public void tamperedCookieIsIgnored() throws Exception {
+		Cookie token = token("user", null, System.currentTimeMillis() / 1000 + 600, "ROLE_USER");
+		String[] parts = token.getValue().split("\\.");
+		String forged = new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8).replace(base64("ROLE_USER"), base64("ROLE_ADMIN"));
+		Cookie tampered = new Cookie(Constants.AUTH_TOKEN_COOKIE_NAME, Base64.getUrlEncoder().withoutPadding().encodeToString(forged.getBytes(StandardCharsets.UTF_8)) + "." + parts[1]);
+		mockMvc.perform(get("/secured.page").cookie(tampered).secure(true))
+			.andExpect(status().is3xxRedirection())
+			.andExpect(redirectedUrlPattern("**/login.page*"));
+	}
+
+	@Test
+	public void fieldsCantBeInjectedThroughTheUsername() throws Exception {
+		String injected = "user\n" + (System.currentTimeMillis() / 1000 + 600) + "\n\nROLE_ADMIN";
+		String value = signer().sign(new AuthenticationClaims(injected, Arrays.asList("ROLE_USER"), null, System.currentTimeMillis() / 1000 + 600));
+		AuthenticationClaims claims = signer().verify(value, System.currentTimeMillis() / 1000);
+		Assert.assertEquals(injected, claims.getUsername());
+		Assert.assertEquals(Arrays.asList("ROLE_USER"), claims.getAuthorities());
+		Assert.assertNull(claims.getLocale());
+	}
+
+	@Test
+	public void expiredCookieIsIgnored() throws Exception {
+		Cookie token = token("admin", null, System.currentTimeMillis() / 1000 - 1, "ROLE_ADMIN");
+		mockMvc.perform(get("/secured.page").cookie(token).secure(true))
+			.andExpect(status().is3xxRedirection())
+			.andExpect(redirectedUrlPattern("**/login.page*"))
+			.andExpect(cookie().maxAge(Constants.AUTH_TOKEN_COOKIE_NAME, 0));
+	}
+
+	@Test
+	public void agingCookieIsReissued() throws Exception {
+		Cookie token = token("admin", null, System.currentTimeMillis() / 1000 + 60, "ROLE_ADMIN");
+		mockMvc.perform(get("/secured.page").cookie(token).secure(true))
+			.andExpect(status().isOk())
+			.andExpect(cookie().maxAge(Constants.AUTH_TOKEN_COOKIE_NAME, 1800));
+	}
+
+	@Test
+	public void logoutRemovesCookie() throws Exception {
+		Cookie token = token("admin", null, System.currentTimeMillis() / 1000 + 600, "ROLE_ADMIN");
+		mockMvc.perform(post("/logout").cookie(token).secure(true))
+			.andExpect(status().is3xxRedirection())
+			.andExpect(cookie().maxAge(Constants.AUTH_TOKEN_COOKIE_NAME, 0));
+	}
+
+	// utility methods
+
+	private ClaimsSigner signer() {
+		return new ClaimsSigner(SECRET.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String base64(String value) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private Cookie token(String username, Locale locale, long expiresAt, String... authorities) {
+		return new Cookie(Constants.AUTH_TOKEN_COOKIE_NAME, signer().sign(new AuthenticationClaims(username, Arrays.asList(authorities), locale, expiresAt)));
+	}
+
+}
@@ -0,0 +1,537 @@
+package basearch.test.controller;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.JdbcInterceptor;
+import org.apache.tomcat.jdbc.pool.PooledConnection;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.stereotype.Controller;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.TransactionTimedOutException;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.servlet.View;
+
+import basearch.Application;
+import basearch.TransactionFilter;
+import basearch.model.Language;
+import basearch.model.auth.Principal;
+import basearch.persistence.TransactionPolicies;
+import basearch.persistence.TransactionPolicies.RollbackCause;
+import basearch.persistence.TransactionWatchdog;
+import basearch.test.BaseMvcTest;
+
+/**
+ * Runs pages behind the TransactionFilter, with a probe filter inside it looking at the request transaction.
+ * Requests matching no route get a short budget here, so the probe can go over it. The watchdog reports transactions
+ * open for more than a millisecond, and only checks when told to. GETs matching no route run read-only, like pages. Two more routes run at isolation levels of their
+ * own, and read-write. A controller of its own answers asynchronously, another one renders a view of its own. The
+ * pool times how long connections are held. The servlet container is mocked, this context can't listen on the ports
+ * the shared one does.
+ */
+@SpringBootTest(classes={Application.class, TransactionFilterTests.AsyncController.class, TransactionFilterTests.ViewController.class}, webEnvironment=WebEnvironment.MOCK)
+@TestPropertySource(properties={"basearch.transactions.default-route.timeout-millis=" + TransactionFilterTests.DEFAULT_BUDGET_MILLIS, "basearch.transactions.default-route.read-only-gets=true",
+		"basearch.transactions.watchdog.threshold-millis=" + TransactionFilterTests.WATCHDOG_THRESHOLD_MILLIS, "basearch.transactions.watchdog.check-millis=0",
+		"spring.datasource.tomcat.jdbc-interceptors=basearch.test.controller.TransactionFilterTests$ConnectionHoldTimer",
+		// lists are replaced as a whole, the application's routes come first
+		"basearch.transactions.routes[0].name=login", "basearch.transactions.routes[0].patterns=/login", "basearch.transactions.routes[0].methods=POST", "basearch.transactions.routes[0].timeout-millis=5000",
+		"basearch.transactions.routes[1].name=pages", "basearch.transactions.routes[1].patterns=/**/*.page", "basearch.transactions.routes[1].timeout-millis=2000", "basearch.transactions.routes[1].read-only-gets=true",
+		"basearch.transactions.routes[2].name=serializable", "basearch.transactions.routes[2].patterns=" + TransactionFilterTests.SERIALIZABLE_PATH, "basearch.transactions.routes[2].isolation=SERIALIZABLE",
+		"basearch.transactions.routes[3].name=readCommitted", "basearch.transactions.routes[3].patterns=" + TransactionFilterTests.READ_COMMITTED_PATH, "basearch.transactions.routes[3].isolation=READ_COMMITTED"})
+public class TransactionFilterTests extends BaseMvcTest {
+
+	static final long DEFAULT_BUDGET_MILLIS = 200;
+	static final long WATCHDOG_THRESHOLD_MILLIS = 1;
+	// no route matches it, nor any handler
+	private static final String UNROUTED_PATH = "/unrouted.action";
+	static final String ASYNC_PATH = "/asyncProbe.action";
+	static final String VIEW_PATH = "/viewProbe.action";
+	static final String SERIALIZABLE_PATH = "/serializable.action";
+	static final String READ_COMMITTED_PATH = "/readCommitted.action";
+	// hsqldb's own default
+	private static final String DEFAULT_ISOLATION = "READ COMMITTED";
+
+	@Autowired
+	private WebApplicationContext wac;
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private TransactionPolicies transactionPolicies;
+
+	@Autowired
+	private TransactionWatchdog transactionWatchdog;
+
+	@Autowired
+	private EntityManagerFactory emf;
+
+	@Autowired
+	private AsyncController asyncController;
+
+	@Autowired
+	private ViewController viewController;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	private TransactionProbe probe;
+	private MockMvc filteredMockMvc;
+
+	@Before
+	public void setupFilters() {
+		probe = new TransactionProbe();
+		filteredMockMvc = MockMvcBuilders.webAppContextSetup(wac).addFilters(new TransactionFilter(), probe).build();
+	}
+
+	@Test
+	public void getRunsReadOnlyWithoutAConnection() throws Exception {
+		// the first request may load what the application caches
+		filteredMockMvc.perform(get("/index.page")).andExpect(status().isOk());
+		long borrowed = ConnectionHoldTimer.borrowed.get();
+		filteredMockMvc.perform(get("/index.page")).andExpect(status().isOk());
+		Assert.assertTrue(probe.readOnly);
+		Assert.assertEquals(0, probe.activeConnections);
+		// not taken at any point, not even while rendering
+		Assert.assertEquals(borrowed, ConnectionHoldTimer.borrowed.get());
+	}
+
+	@Test
+	public void getsRunReadWriteUnlessTheRouteOptsIn() throws Exception {
+		filteredMockMvc.perform(get(SERIALIZABLE_PATH)).andExpect(status().isNotFound());
+		Assert.assertFalse(probe.readOnly);
+	}
+
+	@Test
+	public void writesCalledFromAReadOnlyGetJoinItReadOnly() throws Exception {
+		// why routes whose GETs write must not opt in, with read replicas their writes would go to one
+		filteredMockMvc.perform(get("/index.page").param("nestedWrite", "true")).andExpect(status().isOk());
+		Assert.assertEquals(Boolean.TRUE, probe.nestedWriteReadOnly);
+		filteredMockMvc.perform(post("/index.page").param("nestedWrite", "true")).andExpect(status().isOk());
+		Assert.assertEquals(Boolean.FALSE, probe.nestedWriteReadOnly);
+	}
+
+	@Test
+	public void postRunsReadWriteWithoutAConnection() throws Exception {
+		filteredMockMvc.perform(post("/index.page")).andExpect(status().isOk());
+		Assert.assertFalse(probe.readOnly);
+		Assert.assertEquals(0, probe.activeConnections);
+	}
+
+	@Test
+	public void transactionCompletesBeforeTheViewIsRendered() throws Exception {
+		filteredMockMvc.perform(get(VIEW_PATH)).andExpect(status().isOk()).andExpect(content().string("rendered"));
+		// the handler's query took a connection
+		Assert.assertTrue(viewController.activeWhileHandling);
+		Assert.assertEquals(1, viewController.connectionsWhileHandling);
+		// the view renders with the transaction completed and the connection back in the pool
+		Assert.assertFalse(viewController.activeWhileRendering);
+		Assert.assertEquals(0, viewController.connectionsWhileRendering);
+		// held from the handler's first statement until before rendering
+		long returnedAt = ConnectionHoldTimer.lastReturnedAt;
+		Assert.assertTrue(returnedAt - ConnectionHoldTimer.lastBorrowedAt > 0);
+		Assert.assertTrue(viewController.renderingStartedAt - returnedAt > 0);
+	}
+
+	@Test
+	public void routeDeadlineCarriesDownToQueryTimeouts() throws Exception {
+		filteredMockMvc.perform(get(UNROUTED_PATH)).andExpect(status().isNotFound());
+		Assert.assertNotNull(probe.queryTimeout);
+		Assert.assertTrue(probe.queryTimeout.longValue() > 0 && probe.queryTimeout.longValue() <= DEFAULT_BUDGET_MILLIS);
+		Assert.assertNull(probe.queryFailure);
+	}
+
+	@Test
+	public void transactionsOverBudgetAreCountedPerRoute() throws Exception {
+		long defaultExceeded = transactionPolicies.getPolicy("default").getBudgetExceeded();
+		long pagesExceeded = transactionPolicies.getPolicy("pages").getBudgetExceeded();
+		filteredMockMvc.perform(get(UNROUTED_PATH).param("sleep", String.valueOf(DEFAULT_BUDGET_MILLIS + 100))).andExpect(status().isNotFound());
+		// past the deadline, queries fail instead of taking a connection
+		Assert.assertTrue(probe.queryFailure instanceof TransactionTimedOutException);
+		Assert.assertEquals(defaultExceeded + 1, transactionPolicies.getPolicy("default").getBudgetExceeded());
+		Assert.assertEquals(pagesExceeded, transactionPolicies.getPolicy("pages").getBudgetExceeded());
+	}
+
+	@Test
+	public void eachRouteRunsAtItsOwnIsolationLevel() throws Exception {
+		Assert.assertEquals("SERIALIZABLE", isolationOf(SERIALIZABLE_PATH));
+		// nothing lingers for later transactions
+		Assert.assertEquals(DEFAULT_ISOLATION, isolationOf(UNROUTED_PATH));
+		Assert.assertEquals("READ COMMITTED", isolationOf(READ_COMMITTED_PATH));
+		Assert.assertEquals("SERIALIZABLE", isolationOf(SERIALIZABLE_PATH));
+		Assert.assertEquals(DEFAULT_ISOLATION, isolationOf(UNROUTED_PATH));
+		Assert.assertEquals(DEFAULT_ISOLATION, isolationOf(UNROUTED_PATH, post(UNROUTED_PATH)));
+	}
+
+	private String isolationOf(String path) throws Exception {
+		return isolationOf(path, get(path));
+	}
+
+	private String isolationOf(String path, MockHttpServletRequestBuilder request) throws Exception {
+		probe.isolation = null;
+		filteredMockMvc.perform(request.param("isolation", "true")).andExpect(status().isNotFound());
+		return probe.isolation;
+	}
+
+	@Test
+	public void transactionDurationsAreRecordedPerRoute() throws Exception {
+		long pages = transactionPolicies.getPolicy("pages").getDuration().getCount();
+		long unrouted = transactionPolicies.getPolicy("default").getDuration().getCount();
+		filteredMockMvc.perform(get("/index.page")).andExpect(status().isOk());
+		Assert.assertEquals(pages + 1, transactionPolicies.getPolicy("pages").getDuration().getCount());
+		Assert.assertEquals(unrouted, transactionPolicies.getPolicy("default").getDuration().getCount());
+		Assert.assertTrue(transactionPolicies.getPolicy("pages").getDuration().getMaxMillis() > 0);
+	}
+
+	@Test
+	public void longRunningTransactionsAreReportedWithTheirStack() throws Exception {
+		long longRunning = transactionWatchdog.getLongRunning();
+		probe.blocked = new CountDownLatch(1);
+		probe.gate = new CountDownLatch(1);
+		FutureTask<MvcResult> blockedRequest = new FutureTask<>(new Callable<MvcResult>() {
+			@Override
+			public MvcResult call() throws Exception {
+				return filteredMockMvc.perform(get(UNROUTED_PATH).param("block", "true")).andReturn();
+			}
+		});
+		new Thread(blockedRequest, "blocked-request").start();
+		try {
+			Assert.assertTrue(probe.blocked.await(10, TimeUnit.SECONDS));
+			// open at least since the probe was reached
+			Thread.sleep(WATCHDOG_THRESHOLD_MILLIS + 1);
+			List<TransactionPolicies.Transaction> reported = transactionWatchdog.check();
+			Assert.assertEquals(1, reported.size());
+			TransactionPolicies.Transaction transaction = reported.get(0);
+			Assert.assertEquals("default", transaction.getRoute());
+			Assert.assertEquals("GET " + UNROUTED_PATH, transaction.getRequest());
+			// caught waiting in the probe
+			Assert.assertTrue(Arrays.toString(transaction.getThread().getStackTrace()).contains(TransactionProbe.class.getName()));
+			// once
+			Assert.assertTrue(transactionWatchdog.check().isEmpty());
+			Assert.assertEquals(longRunning + 1, transactionWatchdog.getLongRunning());
+		} finally {
+			probe.gate.countDown();
+		}
+		blockedRequest.get();
+		Assert.assertEquals(0, transactionWatchdog.getOpenTransactions());
+	}
+
+	@Test
+	public void rollbacksAreCountedByCause() throws Exception {
+		TransactionPolicies.Policy policy = transactionPolicies.getPolicy("default");
+		long rolledBack = policy.getRolledBack();
+		long failed = policy.getRolledBack(RollbackCause.FAILED);
+		long timedOut = policy.getRolledBack(RollbackCause.TIMED_OUT);
+		long rollbackOnly = policy.getRolledBack(RollbackCause.ROLLBACK_ONLY);
+		long commitFailed = policy.getRolledBack(RollbackCause.COMMIT_FAILED);
+		// the probe throws
+		performFailing(post(UNROUTED_PATH).param("fail", "true"));
+		Assert.assertEquals(failed + 1, policy.getRolledBack(RollbackCause.FAILED));
+		// its query fails past the deadline, which the probe throws
+		performFailing(post(UNROUTED_PATH).param("sleep", String.valueOf(DEFAULT_BUDGET_MILLIS + 100)).param("fail", "true"));
+		Assert.assertTrue(probe.queryFailure instanceof TransactionTimedOutException);
+		Assert.assertEquals(timedOut + 1, policy.getRolledBack(RollbackCause.TIMED_OUT));
+		// an inner transactional method fails, the probe goes on
+		performFailing(post(UNROUTED_PATH).param("innerFailure", "true"));
+		Assert.assertEquals(rollbackOnly + 1, policy.getRolledBack(RollbackCause.ROLLBACK_ONLY));
+		// flushing a principal taking the username of another one fails
+		performFailing(post(UNROUTED_PATH).param("duplicate", "admin"));
+		Assert.assertEquals(commitFailed + 1, policy.getRolledBack(RollbackCause.COMMIT_FAILED));
+		Assert.assertEquals(rolledBack + 4, policy.getRolledBack());
+		Assert.assertEquals(failed + 1, policy.getRolledBack(RollbackCause.FAILED));
+		Assert.assertEquals(timedOut + 1, policy.getRolledBack(RollbackCause.TIMED_OUT));
+		Assert.assertEquals(rollbackOnly + 1, policy.getRolledBack(RollbackCause.ROLLBACK_ONLY));
+	}
+
+	private void performFailing(MockHttpServletRequestBuilder request) throws Exception {
+		try {
+			filteredMockMvc.perform(request);
+		} catch(Exception expected) {
+			return;
+		}
+		Assert.fail("The request should have failed");
+	}
+
+	@Test
+	public void asyncWorkTakesTheRequestTransactionAlong() throws Exception {
+		long committed = transactionPolicies.getPolicy("default").getTransactions() - transactionPolicies.getPolicy("default").getRolledBack();
+		MvcResult result = filteredMockMvc.perform(get(ASYNC_PATH)).andExpect(request().asyncStarted()).andReturn();
+		// the request thread gave it up
+		Assert.assertFalse(probe.activeAfterHandling);
+		filteredMockMvc.perform(asyncDispatch(result)).andExpect(status().isOk()).andExpect(content().string(asyncController.languages));
+		Assert.assertNotEquals(probe.thread, asyncController.thread);
+		Assert.assertTrue(asyncController.thread.getName().startsWith("async-request-"));
+		Assert.assertTrue(asyncController.transactionActive);
+		Assert.assertTrue(asyncController.readOnly);
+		Assert.assertSame(probe.entityManagerHolder, asyncController.entityManagerHolder);
+		// committed by the executor thread, once the work was done
+		Assert.assertEquals(Integer.valueOf(TransactionSynchronizationAdapter.STATUS_COMMITTED), asyncController.completionStatus);
+		Assert.assertSame(asyncController.thread, asyncController.completionThread);
+		Assert.assertEquals(committed + 1, transactionPolicies.getPolicy("default").getTransactions() - transactionPolicies.getPolicy("default").getRolledBack());
+	}
+
+	@Test
+	public void failedAsyncWorkRollsBack() throws Exception {
+		long rolledBack = transactionPolicies.getPolicy("default").getRolledBack();
+		long failed = transactionPolicies.getPolicy("default").getRolledBack(RollbackCause.FAILED);
+		MvcResult result = filteredMockMvc.perform(get(ASYNC_PATH).param("fail", "true")).andExpect(request().asyncStarted()).andReturn();
+		result.getAsyncResult();
+		Assert.assertEquals(Integer.valueOf(TransactionSynchronizationAdapter.STATUS_ROLLED_BACK), asyncController.completionStatus);
+		Assert.assertEquals(rolledBack + 1, transactionPolicies.getPolicy("default").getRolledBack());
+		Assert.assertEquals(failed + 1, transactionPolicies.getPolicy("default").getRolledBack(RollbackCause.FAILED));
+	}
+
+	private static int activeConnections(DataSource dataSource) {
+		return ((org.apache.tomcat.jdbc.pool.DataSource)dataSource).getNumActive();
+	}
+
+	private class TransactionProbe implements Filter {
+
+		private boolean readOnly;
+		private int activeConnections = -1;
+		private boolean activeAfterHandling;
+		private Number queryTimeout;
+		private RuntimeException queryFailure;
+		private Thread thread;
+		private Object entityManagerHolder;
+		private String isolation;
+		private Boolean nestedWriteReadOnly;
+		// requests asked to block tell they got here, then wait for the gate to open
+		private volatile CountDownLatch blocked;
+		private volatile CountDownLatch gate;
+
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+			// only the request, not the dispatch rendering what async work produced
+			if (request.getDispatcherType() == DispatcherType.ASYNC) {
+				chain.doFilter(request, response);
+				return;
+			}
+			thread = Thread.currentThread();
+			readOnly = TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+			activeConnections = activeConnections(dataSource);
+			if (request.getParameter("block") != null) {
+				blocked.countDown();
+				try {
+					gate.await();
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (request.getParameter("sleep") != null) {
+				try {
+					Thread.sleep(Long.parseLong(request.getParameter("sleep")));
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			queryFailure = null;
+			try {
+				entityManagerHolder = TransactionSynchronizationManager.getResource(emf);
+				queryTimeout = (Number)em.createQuery("select l from Language l").getHints().get("javax.persistence.query.timeout");
+			} catch(RuntimeException re) {
+				queryFailure = re;
+			}
+			if (request.getParameter("fail") != null) throw queryFailure != null ? queryFailure : new IllegalStateException("Failing on purpose");
+			if (request.getParameter("isolation") != null) isolation = (String)em.createNativeQuery("values session_isolation_level()").getSingleResult();
+			nestedWriteReadOnly = null;
+			if (request.getParameter("nestedWrite") != null) {
+				// a read-write transactional method, joining the request's transaction
+				nestedWriteReadOnly = new TransactionTemplate(transactionManager).execute(new TransactionCallback<Boolean>() {
+					@Override
+					public Boolean doInTransaction(TransactionStatus status) {
+						return TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+					}
+				});
+			}
+			if (request.getParameter("innerFailure") != null) {
+				try {
+					new TransactionTemplate(transactionManager).execute(new TransactionCallback<Void>() {
+						@Override
+						public Void doInTransaction(TransactionStatus status) {
+							throw new IllegalStateException("Failing on purpose");
+						}
+					});
+				} catch(IllegalStateException expected) {
+					// the request's transaction was marked rollback-only
+				}
+			}
+			if (request.getParameter("duplicate") != null) {
+				// only flushed on commit
+				Principal duplicate = new Principal();
+				duplicate.setUsername(request.getParameter("duplicate"));
+				duplicate.setPassword("none");
+				duplicate.setEnabled(true);
+				duplicate.setLanguage(em.getReference(Language.class, Language.DEFAULT_LANGUAGE_ID));
+				em.persist(duplicate);
+			}
+			chain.doFilter(request, response);
+			activeAfterHandling = TransactionSynchronizationManager.isActualTransactionActive();
+		}
+
+		@Override
+		public void init(FilterConfig filterConfig) {
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+	}
+
+	@Controller
+	static class AsyncController {
+
+		@PersistenceContext
+		private EntityManager em;
+
+		private volatile Thread thread;
+		private volatile boolean transactionActive;
+		private volatile boolean readOnly;
+		private volatile Object entityManagerHolder;
+		private volatile String languages;
+		private volatile Thread completionThread;
+		private volatile Integer completionStatus;
+		// work asked to block waits for it to open
+		volatile CountDownLatch gate = new CountDownLatch(0);
+
+		@RequestMapping(ASYNC_PATH)
+		@ResponseBody
+		public Callable<String> work(@RequestParam(name="fail", defaultValue="false") final boolean fail, @RequestParam(name="block", defaultValue="false") final boolean block) {
+			completionThread = null;
+			completionStatus = null;
+			return () -> {
+				if (block) gate.await();
+				thread = Thread.currentThread();
+				transactionActive = TransactionSynchronizationManager.isActualTransactionActive();
+				readOnly = TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+					@Override
+					public void afterCompletion(int status) {
+						completionThread = Thread.currentThread();
+						completionStatus = status;
+					}
+				});
+				languages = em.createQuery("select count(l) from Language l").getSingleResult().toString();
+				entityManagerHolder = TransactionSynchronizationManager.getResource(em.getEntityManagerFactory());
+				if (fail) throw new IllegalStateException("Failing on purpose");
+				return languages;
+			};
+		}
+
+	}
+
+	@Controller
+	static class ViewController {
+
+		@PersistenceContext
+		private EntityManager em;
+
+		@Autowired
+		private DataSource dataSource;
+
+		private volatile boolean activeWhileHandling;
+		private volatile int connectionsWhileHandling = -1;
+		private volatile boolean activeWhileRendering;
+		private volatile int connectionsWhileRendering = -1;
+		private volatile long renderingStartedAt;
+
+		@RequestMapping(VIEW_PATH)
+		public View handle() {
+			em.createQuery("select count(l) from Language l").getSingleResult();
+			activeWhileHandling = TransactionSynchronizationManager.isActualTransactionActive();
+			connectionsWhileHandling = activeConnections(dataSource);
+			return new View() {
+				@Override
+				public String getContentType() {
+					return "text/plain";
+				}
+				@Override
+				public void render(Map<String,?> model, HttpServletRequest request, HttpServletResponse response) throws IOException {
+					renderingStartedAt = System.nanoTime();
+					activeWhileRendering = TransactionSynchronizationManager.isActualTransactionActive();
+					connectionsWhileRendering = activeConnections(dataSource);
+					response.getWriter().write("rendered");
+				}
+			};
+		}
+
+	}
+
+	/**
+	 * Installed in the pool, times connections from the moment they're borrowed until they're closed, given back
+	 */
+	public static class ConnectionHoldTimer extends JdbcInterceptor {
+
+		static final AtomicLong borrowed = new AtomicLong();
+		static volatile long lastBorrowedAt;
+		static volatile long lastReturnedAt;
+
+		@Override
+		public void reset(ConnectionPool parent, PooledConnection con) {
+			// called with nulls when the connection is closed for good
+			if (con == null) return;
+			borrowed.incrementAndGet();
+			lastBorrowedAt = System.nanoTime();
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (compareMethod(method, CLOSE_VAL)) lastReturnedAt = System.nanoTime();
+			return super.invoke(proxy, method, args);
+		}
+
+	}
+
+}
@@ -0,0 +1,114 @@
+package basearch.test.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.embedded.EmbeddedServletContainer;
+import org.springframework.boot.context.embedded.undertow.UndertowEmbeddedServletContainerFactory;
+import org.springframework.boot.web.servlet.ServletContextInitializer;
+
+import basearch.UndertowSettings;
+
+/**
+ * Serves a request that blocks for a few milliseconds, as one waiting on the database does, with the default and
+ * the production presets of the Undertow settings, and compares their throughput under many concurrent clients.
+ * Throughput is only logged, it depends too much on the machine to assert on. The load test takes a while and
+ * only runs with -Dbasearch.load-test=true
+ */
+public class UndertowLoadTests {
+
+	private static final Logger logger = LoggerFactory.getLogger(UndertowLoadTests.class);
+
+	private static final int CLIENTS = 64;
+	private static final long WORK_MILLIS = 5;
+	private static final long WARMUP_MILLIS = 2000;
+	private static final long MEASURE_MILLIS = 5000;
+
+	@Test
+	public void tunedPresetAgainstDefaults() throws Exception {
+		Assume.assumeTrue("Load test, run with -Dbasearch.load-test=true", Boolean.getBoolean("basearch.load-test"));
+		double defaults = throughput(UndertowSettingsTests.preset());
+		double tuned = throughput(UndertowSettingsTests.preset("application-production.properties"));
+		logger.info("Requests per second blocking {}ms each, {} clients: default preset {}, production preset {} ({}x)", WORK_MILLIS, CLIENTS, (long)defaults, (long)tuned, String.format("%.2f", tuned / defaults));
+	}
+
+	private static double throughput(UndertowSettings settings) throws Exception {
+		// a single plain listener on a free port
+		settings.setHttpPort(-1);
+		UndertowEmbeddedServletContainerFactory factory = new UndertowEmbeddedServletContainerFactory(0);
+		settings.applyTo(factory);
+		EmbeddedServletContainer container = factory.getEmbeddedServletContainer(new ServletContextInitializer() {
+			@Override
+			public void onStartup(ServletContext servletContext) {
+				servletContext.addServlet("work", new BlockingServlet()).addMapping("/work");
+			}
+		});
+		container.start();
+		ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+		try {
+			final URL url = new URL("http://localhost:" + container.getPort() + "/work");
+			final LongAdder requests = new LongAdder();
+			final long warmupEnd = System.currentTimeMillis() + WARMUP_MILLIS;
+			final long end = warmupEnd + MEASURE_MILLIS;
+			List<Future<Void>> running = new ArrayList<>(CLIENTS);
+			for (int i = 0; i < CLIENTS; i++) {
+				running.add(clients.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						while (System.currentTimeMillis() < end) {
+							HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+							Assert.assertEquals(200, connection.getResponseCode());
+							// read to the end, so the connection is kept alive
+							try (InputStream in = connection.getInputStream()) {
+								while (in.read() != -1);
+							}
+							if (System.currentTimeMillis() > warmupEnd) requests.increment();
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> client : running) client.get();
+			return requests.sum() * 1000d / MEASURE_MILLIS;
+		} finally {
+			clients.shutdownNow();
+			clients.awaitTermination(10, TimeUnit.SECONDS);
+			container.stop();
+		}
+	}
+
+	private static class BlockingServlet extends HttpServlet {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			try {
+				Thread.sleep(WORK_MILLIS);
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			response.setContentType("text/plain");
+			response.getWriter().write("ok");
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+package basearch.test.controller;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Properties;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.servlet.ServletContext;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.boot.bind.RelaxedDataBinder;
+import org.springframework.boot.context.embedded.EmbeddedServletContainer;
+import org.springframework.boot.context.embedded.LocalServerPort;
+import org.springframework.boot.context.embedded.Ssl;
+import org.springframework.boot.context.embedded.undertow.UndertowEmbeddedServletContainerFactory;
+import org.springframework.boot.web.servlet.ServletContextInitializer;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+
+import basearch.UndertowSettings;
+import basearch.test.BaseMvcTest;
+
+/**
+ * The presets of the Undertow settings, and HTTP/2 on the TLS listener, negotiated through ALPN. ALPN is in the JDK's
+ * TLS since Java 9 and 8u252, Undertow 1.4 looks for it by reflection. The HTTP/2 tests need one of those JDKs and
+ * are skipped on older ones, the build targets Java 8 so the ALPN methods are called by reflection here too.
+ */
+public class UndertowSettingsTests extends BaseMvcTest {
+
+	private static final String H2 = "h2";
+	private static final String HTTP_1_1 = "http/1.1";
+	// client connection preface, then an empty SETTINGS frame
+	private static final byte[] H2_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] EMPTY_SETTINGS_FRAME = { 0, 0, 0, 0x4, 0, 0, 0, 0, 0 };
+	private static final int SETTINGS_FRAME_TYPE = 0x4;
+	// null before Java 9 and 8u252
+	private static final Method SET_APPLICATION_PROTOCOLS = method(SSLParameters.class, "setApplicationProtocols", String[].class);
+	private static final Method GET_APPLICATION_PROTOCOL = method(SSLSocket.class, "getApplicationProtocol");
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	public void presetsBindToTheSettings() throws IOException {
+		UndertowSettings defaults = preset();
+		Assert.assertEquals(8080, defaults.getHttpPort());
+		Assert.assertEquals(0, defaults.getWorkerThreads());
+		Assert.assertNull(defaults.getDirectBuffers());
+		Assert.assertTrue(defaults.isHttp2());
+		UndertowSettings production = preset("application-production.properties");
+		Assert.assertEquals(8080, production.getHttpPort());
+		Assert.assertEquals(200, production.getWorkerThreads());
+		Assert.assertEquals(16384, production.getBufferSize());
+		Assert.assertEquals(Boolean.TRUE, production.getDirectBuffers());
+		Assert.assertEquals(100, production.getMaxConcurrentRequestsPerConnection());
+		Assert.assertEquals(60000, production.getKeepAliveTimeoutMillis());
+		Assert.assertEquals(2048, production.getBacklog());
+	}
+
+	@Test
+	public void http2IsNegotiatedOnTheTlsListener() throws Exception {
+		assumeAlpn();
+		try (SSLSocket socket = connect(port, H2, HTTP_1_1)) {
+			Assert.assertEquals(H2, applicationProtocol(socket));
+			// the server opens its side of the connection with its settings
+			OutputStream out = socket.getOutputStream();
+			out.write(H2_PREFACE);
+			out.write(EMPTY_SETTINGS_FRAME);
+			out.flush();
+			byte[] header = new byte[9];
+			new DataInputStream(socket.getInputStream()).readFully(header);
+			Assert.assertEquals(SETTINGS_FRAME_TYPE, header[3]);
+		}
+	}
+
+	@Test
+	public void http2CanBeTurnedOff() throws Exception {
+		assumeAlpn();
+		UndertowSettings settings = preset();
+		settings.setHttp2(false);
+		EmbeddedServletContainer container = start(settings, new ServletContextInitializer() {
+			@Override
+			public void onStartup(ServletContext servletContext) {
+			}
+		});
+		try (SSLSocket socket = connect(container.getPort(), H2, HTTP_1_1)) {
+			Assert.assertNotEquals(H2, applicationProtocol(socket));
+		} finally {
+			container.stop();
+		}
+	}
+
+	// application.properties, overridden by the given profile files
+	static UndertowSettings preset(String... profiles) throws IOException {
+		Properties properties = PropertiesLoaderUtils.loadProperties(new ClassPathResource("application.properties"));
+		for (String profile : profiles) properties.putAll(PropertiesLoaderUtils.loadProperties(new ClassPathResource(profile)));
+		UndertowSettings settings = new UndertowSettings();
+		new RelaxedDataBinder(settings, "basearch.undertow").bind(new MutablePropertyValues(properties));
+		return settings;
+	}
+
+	/**
+	 * Starts a container with the settings and the development key store on a free port, without the plain listener
+	 */
+	private static EmbeddedServletContainer start(UndertowSettings settings, ServletContextInitializer initializer) {
+		settings.setHttpPort(-1);
+		UndertowEmbeddedServletContainerFactory factory = new UndertowEmbeddedServletContainerFactory(0);
+		Ssl ssl = new Ssl();
+		ssl.setKeyStore("classpath:keystore-dev.jks");
+		ssl.setKeyStorePassword("secret");
+		ssl.setKeyPassword("secret");
+		factory.setSsl(ssl);
+		settings.applyTo(factory);
+		EmbeddedServletContainer container = factory.getEmbeddedServletContainer(initializer);
+		container.start();
+		return container;
+	}
+
+	/**
+	 * Trusts any certificate, the development one is self-signed with MD5. An extended trust manager, a plain one gets
+	 * wrapped in the JDK's algorithm checks.
+	 */
+	private static SSLContext trustingSslContext() throws GeneralSecurityException {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { new X509ExtendedTrustManager() {
+			@Override public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+			@Override public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {}
+			@Override public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {}
+			@Override public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+			@Override public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {}
+			@Override public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {}
+			@Override public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+		} }, null);
+		return context;
+	}
+
+	// handshakes offering the protocols through ALPN
+	private static SSLSocket connect(int port, String... protocols) throws IOException, GeneralSecurityException {
+		SSLSocket socket = (SSLSocket)trustingSslContext().getSocketFactory().createSocket("localhost", port);
+		SSLParameters parameters = socket.getSSLParameters();
+		invoke(SET_APPLICATION_PROTOCOLS, parameters, (Object)protocols);
+		socket.setSSLParameters(parameters);
+		socket.setSoTimeout(10000);
+		socket.startHandshake();
+		return socket;
+	}
+
+	private static void assumeAlpn() {
+		Assume.assumeTrue("ALPN needs Java 9 or later, or 8u252 or later", SET_APPLICATION_PROTOCOLS != null && GET_APPLICATION_PROTOCOL != null);
+	}
+
+	// protocol agreed on in the handshake, empty if none was
+	private static String applicationProtocol(SSLSocket socket) {
+		return (String)invoke(GET_APPLICATION_PROTOCOL, socket);
+	}
+
+	private static Method method(Class<?> type, String name, Class<?>... parameterTypes) {
+		try {
+			return type.getMethod(name, parameterTypes);
+		} catch(NoSuchMethodException nsme) {
+			return null;
+		}
+	}
+
+	private static Object invoke(Method method, Object target, Object... args) {
+		try {
+			return method.invoke(target, args);
+		} catch(IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("Can't call " + method.getName(), e);
+		}
+	}
+
+}
@@ -1,31 +1,64 @@
 package basearch.test.dao;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
 
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 
+import basearch.cache.UserLocaleCache;
 import basearch.dao.AuthDao;
 import basearch.dao.MetadataDao;
+import basearch.dao.UserDao;
+import basearch.metrics.SqlStatementCounter;
 import basearch.model.Language;
 import basearch.model.auth.Authority;
 import basearch.model.auth.Principal;
+import basearch.model.auth.PrincipalSpec;
+import basearch.model.auth.PrincipalSummary;
 import basearch.test.BaseTest;
 
 @Transactional
 public class AuthenticationDaoTests extends BaseTest {
 
+	// the users of data.sql, other tests may leave theirs behind
+	private static final Set<String> FIXTURE_USERNAMES = new HashSet<String>(Arrays.asList("admin", "user", "disabled", "test"));
+
 	@Autowired
 	private MetadataDao metadataDao;
 
 	@Autowired
 	private AuthDao authDao;
 
+	@Autowired
+	private UserDao userDao;
+
+	@Autowired
+	private UserLocaleCache userLocaleCache;
+
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private SqlStatementCounter sqlStatementCounter;
+
 	@Test
 	public void testPrincipalCreation() {
 		Language l = metadataDao.getDefaultLanguage();
@@ -36,6 +69,24 @@ public class AuthenticationDaoTests extends BaseTest {
 		Assert.notNull(p);
 		Assert.notNull(authDao.getByUsername("newlycreateduser"));
 		Assert.notEmpty(authDao.getByUsername("newlycreateduser").getAuthorities());
+		// the shared read-only instance stays out of the write
+		Assert.isTrue(p.getLanguage() != l);
+		Assert.isTrue(p.getLanguage().getId().equals(l.getId()));
+	}
+
+	@Test
+	public void testBulkPrincipalCreation() {
+		List<PrincipalSpec> specs = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			specs.add(new PrincipalSpec("bulkcreateduser" + i, "none", true, Language.DEFAULT_LANGUAGE_ID, Arrays.asList("basicuser", "otheruser")));
+		}
+		Assert.isTrue(authDao.createPrincipals(specs) == 9);
+		for (int i = 0; i < 3; i++) {
+			Principal p = authDao.getByUsername("bulkcreateduser" + i);
+			Assert.notNull(p);
+			Assert.isTrue(p.getAuthorities().size() == 2);
+			Assert.isTrue(p.getLanguage().getId().equals(Language.DEFAULT_LANGUAGE_ID));
+		}
 	}
 
 	@Test
@@ -50,6 +101,27 @@ public class AuthenticationDaoTests extends BaseTest {
 		Assert.isNull(authDao.getByUsername("newlycreateduser"));
 	}
 
+	@Test
+	public void testPrincipalDeletionEvictsLocale() {
+		Language l = metadataDao.getDefaultLanguage();
+		Principal p = authDao.createPrincipal("newlycreateduser", "none", true, l, null);
+		userLocaleCache.put("newlycreateduser", l.toLocale());
+		authDao.deletePrincipal(p);
+		Assert.isNull(userLocaleCache.get("newlycreateduser"));
+	}
+
+	@Test
+	public void testLanguageChange() {
+		Principal p = authDao.getByUsername("test");
+		Assert.notNull(p);
+		userLocaleCache.put("test", p.getLanguage().toLocale());
+		Language l = metadataDao.getLanguageBy("en", "GB", null);
+		authDao.setLanguage(p, l);
+		Assert.isTrue(p.getLanguage() != l);
+		Assert.isNull(userLocaleCache.get("test"));
+		Assert.isTrue(authDao.getByUsername("test").getLanguage().toLocale().equals(new Locale("en", "GB")));
+	}
+
 	@Test
 	public void testAuthorityCreation() {
 		Principal p = (Principal)authDao.getByUsername("test");
@@ -115,11 +187,111 @@ public class AuthenticationDaoTests extends BaseTest {
 		Assert.isTrue(!found);
 	}
 
+	@Test
+	@Transactional(propagation=Propagation.NOT_SUPPORTED)
+	public void testGetPrincipalsInBatches() {
+		inTransaction(() -> {
+			try (SqlStatementCounter.Scope sql = sqlStatementCounter.open("Cold principals")) {
+				List<Principal> principals = authDao.getPrincipals(Arrays.asList(4L, 1L, 999L, 2L, 1L));
+				Assert.isTrue(principals.size() == 4);
+				Assert.isTrue(principals.get(0).getUsername().equals("test"));
+				Assert.isTrue(principals.get(1).getUsername().equals("admin"));
+				Assert.isTrue(principals.get(2).getUsername().equals("user"));
+				Assert.isTrue(principals.get(3) == principals.get(1));
+				Assert.notEmpty(principals.get(1).getAuthorities());
+				Assert.notEmpty(principals.get(2).getAuthorities());
+				// principals, then one batch for their authorities and one for their languages
+				Assert.isTrue(sql.getStatements() <= 3, "Authorities and languages should be batch read");
+			}
+			try (SqlStatementCounter.Scope sql = sqlStatementCounter.open("Warm principals")) {
+				Assert.isTrue(authDao.getPrincipals(Arrays.asList(2L, 4L)).size() == 2);
+				Assert.isTrue(sql.getStatements() == 0, "Principals in the persistence context should be served from memory");
+			}
+		});
+	}
+
+	@Test
+	@Transactional(propagation=Propagation.NOT_SUPPORTED)
+	public void testWarmNaturalKeyLookupsSkipTheDatabase() {
+		inTransaction(() -> {
+			Principal p = authDao.getByUsername("test");
+			userDao.getByUsername("test");
+			Language l = metadataDao.getLanguageBy("es", "ES", null);
+			try (SqlStatementCounter.Scope sql = sqlStatementCounter.open("Warm lookups")) {
+				Assert.isTrue(authDao.getByUsername("test") == p);
+				Assert.isTrue(metadataDao.getLanguageBy("es", "ES", null).getId().equals(l.getId()));
+				Assert.isTrue(sql.getStatements() == 0, "Warm lookups should be served by id from the persistence context");
+			}
+		});
+		// languages and users are shared, so they're served from memory in later transactions too
+		inTransaction(() -> {
+			try (SqlStatementCounter.Scope sql = sqlStatementCounter.open("Warm lookups in a new transaction")) {
+				Assert.isTrue(metadataDao.getLanguageBy("es", "ES", null).toLocale().equals(new Locale("es", "ES")));
+				Assert.isTrue(authDao.getByUsername("test").getUsername().equals("test"));
+				Assert.isTrue(userDao.getByUsername("test").getUsername().equals("test"));
+				Assert.isTrue(sql.getStatements() == 0, "Warm lookups should be served from the shared cache");
+			}
+		});
+	}
+
+	private void inTransaction(Runnable work) {
+		new TransactionTemplate(transactionManager).execute(status -> {
+			work.run();
+			return null;
+		});
+	}
+
+	@Test
+	public void testFindPrincipalSummaries() {
+		// page through all of them, other tests may leave users behind, only the users of data.sql are known
+		List<PrincipalSummary> fixtures = new ArrayList<PrincipalSummary>(4);
+		long lastId = 0;
+		List<PrincipalSummary> page;
+		do {
+			page = authDao.findPrincipalSummaries(lastId, 3);
+			for (PrincipalSummary summary : page) {
+				Assert.isTrue(summary.getId() > lastId);
+				lastId = summary.getId();
+				if (FIXTURE_USERNAMES.contains(summary.getUsername())) fixtures.add(summary);
+			}
+		} while (page.size() == 3);
+		Assert.isTrue(fixtures.size() == 4);
+		// in the order of their ids
+		Assert.isTrue(fixtures.get(0).getUsername().equals("admin") && fixtures.get(0).isEnabled());
+		Assert.isTrue(fixtures.get(2).getUsername().equals("disabled") && !fixtures.get(2).isEnabled());
+		Assert.isTrue(fixtures.get(3).getUsername().equals("test"));
+	}
+
+	@Test
+	public void testFindAuthorities() {
+		List<Authority> admins = authDao.findAuthorities("ROLE_ADMIN", 0, 10);
+		// other tests may grant it too, only the grants of data.sql are known
+		List<String> fixtures = new ArrayList<String>(2);
+		for (Authority a : admins) if (FIXTURE_USERNAMES.contains(a.getUsername())) fixtures.add(a.getUsername());
+		Assert.isTrue(fixtures.equals(Arrays.asList("admin", "disabled")));
+		// the page after the first grant starts at the second
+		List<Authority> nextPage = authDao.findAuthorities("ROLE_ADMIN", admins.get(0).getId(), 1);
+		Assert.isTrue(nextPage.size() == 1);
+		Assert.isTrue(nextPage.get(0).getId().equals(admins.get(1).getId()));
+	}
+
 	@Test
 	public void testUserDetailsService1() {
 		Assert.notNull(authDao.loadUserByUsername("test"));
 	}
 
+	@Test
+	public void testUserDetailsServiceFetchesRelationships() {
+		authDao.assignAuthority(authDao.getByUsername("admin"), "fetcheduser");
+		Principal p = (Principal)authDao.loadUserByUsername("admin");
+		PersistenceUnitUtil util = entityManagerFactory.getPersistenceUnitUtil();
+		Assert.isTrue(util.isLoaded(p, "authorities"));
+		Assert.isTrue(util.isLoaded(p, "language"));
+		// the authorities join must not duplicate the principal
+		Assert.isTrue(p.getAuthorities().size() == 2);
+		Assert.isTrue(p.getLanguage().toLocale().equals(new Locale("es", "ES")));
+	}
+
 	@Test(expected=UsernameNotFoundException.class)
 	public void testUserDetailsService2() {
 		authDao.loadUserByUsername("nonexistentuser");
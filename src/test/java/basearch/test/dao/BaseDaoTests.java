@@ -0,0 +1,132 @@
+package basearch.test.dao;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.eclipse.persistence.jpa.JpaEntityManagerFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.Assert;
+
+import basearch.dao.impl.BaseDao;
+import basearch.model.PersistentObject_;
+import basearch.model.auth.Principal;
+import basearch.model.auth.Principal_;
+import basearch.test.BaseTest;
+
+public class BaseDaoTests extends BaseTest {
+
+	// the users of data.sql, other tests may leave theirs behind
+	private static final Set<String> FIXTURE_USERNAMES = new HashSet<String>(Arrays.asList("admin", "user", "disabled", "test"));
+
+	@PersistenceContext
+	private EntityManager em;
+
+	private ListingDao dao;
+
+	@Before
+	public void setup() {
+		dao = new ListingDao();
+		dao.setEm(em);
+	}
+
+	@Test
+	public void testEntitiesWith() {
+		List<Principal> principals = dao.withProperties(new String[] { "enabled" }, new Object[] { Boolean.TRUE });
+		int fixtures = 0;
+		for (Principal p : principals) {
+			Assert.isTrue(p.isEnabled());
+			if (FIXTURE_USERNAMES.contains(p.getUsername())) fixtures++;
+		}
+		Assert.isTrue(fixtures == 3);
+		principals = dao.withProperties(new String[] { "enabled", "username" }, new Object[] { Boolean.TRUE, "admin" });
+		Assert.isTrue(principals.size() == 1);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testEntitiesWithUnknownProperty() {
+		dao.withProperties(new String[] { "nonexistent" }, new Object[] { "value" });
+	}
+
+	@Test
+	public void testRangeAndOrder() {
+		List<Principal> principals = dao.inRange(2L, 4L);
+		Assert.isTrue(principals.size() == 3);
+		Assert.isTrue(principals.get(0).getUsername().equals("disabled"));
+		Assert.isTrue(principals.get(2).getUsername().equals("user"));
+		Assert.isTrue(dao.inRange(null, 1L).size() == 1);
+	}
+
+	@Test
+	public void testInAndOffset() {
+		List<Principal> principals = dao.named(Arrays.asList("user", "admin", "nonexistent"), 0);
+		Assert.isTrue(principals.size() == 2);
+		Assert.isTrue(principals.get(0).getUsername().equals("user"));
+		principals = dao.named(Arrays.asList("user", "admin", "nonexistent"), 1);
+		Assert.isTrue(principals.size() == 1);
+		Assert.isTrue(principals.get(0).getUsername().equals("admin"));
+	}
+
+	@Test
+	public void testTemplatesAreShared() {
+		Assert.notNull(dao.byUsernameAndEnabled("admin", Boolean.TRUE));
+		int templates = registeredQueries();
+		// same restrictions in another order, from another dao
+		ListingDao other = new ListingDao();
+		other.setEm(em);
+		Assert.notNull(other.byEnabledAndUsername(Boolean.TRUE, "admin"));
+		Assert.isNull(other.byEnabledAndUsername(Boolean.FALSE, "admin"));
+		Assert.isTrue(registeredQueries() == templates, "The same query shape should compile into a single template");
+	}
+
+	@Test
+	public void testListTemplatesAreShared() {
+		List<String> usernames = Arrays.asList("admin", "disabled");
+		Assert.isTrue(dao.enabledAmong(Boolean.TRUE, usernames).size() == 1);
+		int templates = registeredQueries();
+		Assert.isTrue(dao.amongEnabled(usernames, Boolean.FALSE).get(0).getUsername().equals("disabled"));
+		Assert.isTrue(registeredQueries() == templates, "The same restrictions in another order should compile into a single template");
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testKeysetCantBeOrdered() {
+		dao.orderedAfter(1L);
+	}
+
+	private int registeredQueries() {
+		return em.getEntityManagerFactory().unwrap(JpaEntityManagerFactory.class).getServerSession().getQueries().size();
+	}
+
+	private static class ListingDao extends BaseDao {
+		public List<Principal> withProperties(String[] properties, Object[] values) {
+			return entitiesWith(Principal.class, properties, values);
+		}
+		public List<Principal> inRange(Long fromId, Long toId) {
+			return entities(Principal.class).between(PersistentObject_.id, fromId, toId).orderBy(Principal_.username, true).list();
+		}
+		public List<Principal> named(List<String> usernames, int firstResult) {
+			return entities(Principal.class).in(Principal_.username, usernames).orderBy(Principal_.username, false).offset(firstResult).limit(10).list();
+		}
+		public Principal byUsernameAndEnabled(String username, Boolean enabled) {
+			return entity(Principal.class).with(Principal_.username, username).and(Principal_.enabled, enabled).find();
+		}
+		public Principal byEnabledAndUsername(Boolean enabled, String username) {
+			return entity(Principal.class).with(Principal_.enabled, enabled).and(Principal_.username, username).find();
+		}
+		public List<Principal> enabledAmong(Boolean enabled, List<String> usernames) {
+			return entities(Principal.class).with(Principal_.enabled, enabled).in(Principal_.username, usernames).list();
+		}
+		public List<Principal> amongEnabled(List<String> usernames, Boolean enabled) {
+			return entities(Principal.class).in(Principal_.username, usernames).with(Principal_.enabled, enabled).list();
+		}
+		public List<Principal> orderedAfter(Long lastId) {
+			return entities(Principal.class).after(lastId).orderBy(Principal_.username, true).list();
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+package basearch.test.dao;
+
+import java.lang.management.ManagementFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.Assert;
+
+import basearch.dao.impl.BaseDao;
+import basearch.model.auth.Principal;
+import basearch.model.auth.Principal_;
+import basearch.test.BaseTest;
+
+/**
+ * Compares the compiled query templates of the fluent entity accessor with building a criteria query
+ * with literal values on every call, as the accessor used to do. Allocation and cpu time per call are
+ * only logged, they depend too much on the machine and the JVM to assert on. Reads them through the
+ * HotSpot thread bean, and only runs with -Dbasearch.benchmark=true
+ */
+@Transactional
+public class EntityAccessorBenchmarkTests extends BaseTest {
+
+	private static final Logger logger = LoggerFactory.getLogger(EntityAccessorBenchmarkTests.class);
+
+	private static final int WARMUP = 500;
+	private static final int ITERATIONS = 2000;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	private BenchmarkDao dao;
+
+	@Before
+	public void setup() {
+		dao = new BenchmarkDao();
+		dao.setEm(em);
+	}
+
+	@Test
+	public void testTemplatesAgainstCriteria() {
+		Assume.assumeTrue("Benchmark, run with -Dbasearch.benchmark=true", Boolean.getBoolean("basearch.benchmark"));
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		final long thread = Thread.currentThread().getId();
+		for (int i = 0; i < WARMUP; i++) {
+			Assert.notNull(dao.findWithTemplate("admin"));
+			Assert.notNull(dao.findWithCriteria("admin"));
+		}
+		long cpu = threads.getCurrentThreadCpuTime();
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < ITERATIONS; i++) dao.findWithCriteria("admin");
+		long criteriaCpu = (threads.getCurrentThreadCpuTime() - cpu) / ITERATIONS;
+		long criteriaAllocated = (threads.getThreadAllocatedBytes(thread) - allocated) / ITERATIONS;
+		cpu = threads.getCurrentThreadCpuTime();
+		allocated = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < ITERATIONS; i++) dao.findWithTemplate("admin");
+		long templateCpu = (threads.getCurrentThreadCpuTime() - cpu) / ITERATIONS;
+		long templateAllocated = (threads.getThreadAllocatedBytes(thread) - allocated) / ITERATIONS;
+		logger.info("Per find(): criteria {}ns cpu, {} bytes allocated; template {}ns cpu, {} bytes allocated", criteriaCpu, criteriaAllocated, templateCpu, templateAllocated);
+	}
+
+	private static class BenchmarkDao extends BaseDao {
+		public Principal findWithTemplate(String username) {
+			return entity(Principal.class).with(Principal_.username, username).find();
+		}
+		public Principal findWithCriteria(String username) {
+			CriteriaBuilder builder = criteriaBuilder();
+			CriteriaQuery<Principal> q = builder.createQuery(Principal.class);
+			Root<Principal> r = q.from(Principal.class);
+			q.where(builder.equal(r.get(Principal_.username), username));
+			try { return singleResult(q); } catch(NoResultException nre) { return null; }
+		}
+	}
+
+}
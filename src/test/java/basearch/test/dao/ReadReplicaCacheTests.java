@@ -0,0 +1,78 @@
+package basearch.test.dao;
+
+import java.sql.SQLException;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import basearch.cache.UserDetailsCache;
+import basearch.dao.AuthDao;
+import basearch.persistence.ReadReplicas;
+import basearch.service.AuthService;
+import basearch.test.BaseTest;
+
+/**
+ * With the production profile, where the shared cache is on, a replica lagging behind the primary must not hand its
+ * rows to read-write transactions through the cache, nor to authentication through the user details cache. The
+ * replica knows an old password of a user.
+ */
+@ActiveProfiles("production")
+@TestPropertySource(properties={"basearch.datasource.replicas.urls=" + ReadReplicaTests.REPLICA_URL + ";ifexists=true", "basearch.datasource.replicas.check-millis=0", "basearch.datasource.replicas.lag-query=values 0",
+		"basearch.datasource.replicas.pool.validation-query=values 1", "basearch.datasource.replicas.pool.validation-interval=0"})
+public class ReadReplicaCacheTests extends BaseTest {
+
+	private static final String USERNAME = "test";
+	private static final String STALE_PASSWORD = "stale";
+
+	@Autowired
+	private ReadReplicas readReplicas;
+
+	@Autowired
+	private AuthService authService;
+
+	@Autowired
+	private AuthDao authDao;
+
+	@Autowired
+	private UserDetailsCache userDetailsCache;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Before
+	public void createReplica() throws SQLException {
+		ReadReplicaTests.createReplica("update users set password='" + STALE_PASSWORD + "' where username='" + USERNAME + "'");
+		readReplicas.checkReplicas();
+		Assert.assertEquals(1, readReplicas.getHealthyReplicas());
+		userDetailsCache.evict(USERNAME);
+	}
+
+	@Test
+	public void replicaReadsDontReachReadWriteTransactions() {
+		TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+		readOnly.setReadOnly(true);
+		String stale = readOnly.execute(status -> authDao.getByUsername(USERNAME).getPassword());
+		Assert.assertEquals(STALE_PASSWORD, stale);
+		String password = new TransactionTemplate(transactionManager).execute(status -> authDao.getByUsername(USERNAME).getPassword());
+		Assert.assertNotEquals(STALE_PASSWORD, password);
+		Long id = new TransactionTemplate(transactionManager).execute(status -> authDao.getByUsername(USERNAME).getId());
+		password = new TransactionTemplate(transactionManager).execute(status -> authDao.getPrincipals(Collections.singletonList(id)).get(0).getPassword());
+		Assert.assertNotEquals(STALE_PASSWORD, password);
+	}
+
+	@Test
+	public void authenticationIgnoresTheReplica() {
+		UserDetails u = authService.loadUserByUsername(USERNAME);
+		Assert.assertNotEquals(STALE_PASSWORD, u.getPassword());
+		Assert.assertNotEquals(STALE_PASSWORD, userDetailsCache.get(USERNAME).getPassword());
+	}
+
+}
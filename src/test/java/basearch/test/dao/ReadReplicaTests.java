@@ -0,0 +1,142 @@
+package basearch.test.dao;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+
+import javax.sql.DataSource;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import basearch.cache.UserDetailsCache;
+import basearch.dao.UserDao;
+import basearch.model.User;
+import basearch.persistence.ReadReplicas;
+import basearch.service.AuthService;
+import basearch.test.BaseTest;
+
+/**
+ * A second in-memory database stands in for the replica, holding the same data as the primary plus a user
+ * only it knows about, so every read tells which database served it.
+ */
+@TestPropertySource(properties={"basearch.datasource.replicas.urls=" + ReadReplicaTests.REPLICA_URL + ";ifexists=true", "basearch.datasource.replicas.check-millis=0", "basearch.datasource.replicas.lag-query=values 0",
+		"basearch.datasource.replicas.pool.validation-query=values 1", "basearch.datasource.replicas.pool.validation-interval=0"})
+public class ReadReplicaTests extends BaseTest {
+
+	static final String REPLICA_URL = "jdbc:hsqldb:mem:replica";
+	private static final String REPLICA_ONLY_USER = "replicauser";
+
+	@Autowired
+	private ReadReplicas readReplicas;
+
+	@Autowired
+	private AuthService authService;
+
+	@Autowired
+	private UserDao userDao;
+
+	@Autowired
+	private UserDetailsCache userDetailsCache;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Before
+	public void createReplica() throws SQLException {
+		createReplica("insert into users values (90,'" + REPLICA_ONLY_USER + "','password', true, 2)", "insert into authorities values (90,'" + REPLICA_ONLY_USER + "','ROLE_USER')");
+		readReplicas.checkReplicas();
+		Assert.assertEquals(1, readReplicas.getHealthyReplicas());
+		userDetailsCache.evict(REPLICA_ONLY_USER);
+	}
+
+	/**
+	 * Creates the replica again with the primary's data, then runs the statements on it
+	 */
+	static void createReplica(String... statements) throws SQLException {
+		try (Connection c = DriverManager.getConnection(REPLICA_URL, "SA", "")) {
+			try (Statement s = c.createStatement()) {
+				s.execute("drop schema public cascade");
+			}
+			ScriptUtils.executeSqlScript(c, new ClassPathResource("schema.sql"));
+			ScriptUtils.executeSqlScript(c, new ClassPathResource("data.sql"));
+			try (Statement s = c.createStatement()) {
+				for (String statement : statements) s.execute(statement);
+			}
+		}
+	}
+
+	@Test
+	public void readOnlyTransactionsGoToTheReplica() {
+		long connections = readReplicas.getReplicaConnections();
+		TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+		readOnly.setReadOnly(true);
+		User u = readOnly.execute(status -> userDao.getByUsername(REPLICA_ONLY_USER));
+		Assert.assertNotNull(u);
+		// read-only outside a transaction too
+		Assert.assertEquals(REPLICA_ONLY_USER, userDao.findUsersAfter(u.getId() - 1, 1).get(0).getUsername());
+		Assert.assertTrue(readReplicas.getReplicaConnections() > connections);
+	}
+
+	@Test
+	public void cachedReadsGoToThePrimary() {
+		Assert.assertNull(userDao.getLanguageId(REPLICA_ONLY_USER));
+		try {
+			authService.loadUserByUsername(REPLICA_ONLY_USER);
+			Assert.fail("Authentication read from the replica");
+		} catch(UsernameNotFoundException unfe) {
+			// the primary doesn't know the user
+		}
+	}
+
+	@Test
+	public void replicasStartOutAndNeedALagQuery() throws SQLException {
+		DataSource replica = new DriverManagerDataSource(REPLICA_URL, "SA", "");
+		ReadReplicas unchecked = new ReadReplicas(Collections.singletonList(replica), "values 0", 30, 0);
+		Assert.assertEquals(0, unchecked.getHealthyReplicas());
+		unchecked.checkReplicas();
+		Assert.assertEquals(1, unchecked.getHealthyReplicas());
+		// a replica that can't tell its lag is left out
+		ReadReplicas unknownLag = new ReadReplicas(Collections.singletonList(replica), "values (cast(null as bigint))", 30, 0);
+		unknownLag.checkReplicas();
+		Assert.assertEquals(0, unknownLag.getHealthyReplicas());
+		try {
+			new ReadReplicas(Collections.singletonList(replica), "", 30, 0);
+			Assert.fail("Replicas without a lag query");
+		} catch(IllegalArgumentException iae) {
+			// expected
+		}
+	}
+
+	@Test
+	public void readWriteTransactionsStayOnThePrimary() {
+		Long languageId = new TransactionTemplate(transactionManager).execute(status -> userDao.getLanguageId(REPLICA_ONLY_USER));
+		Assert.assertNull(languageId);
+		Assert.assertNotNull(new TransactionTemplate(transactionManager).execute(status -> userDao.getLanguageId("test")));
+	}
+
+	@Test(expected=UsernameNotFoundException.class)
+	public void unavailableReplicaFallsBackToThePrimary() throws SQLException {
+		try (Connection c = DriverManager.getConnection(REPLICA_URL, "SA", ""); Statement s = c.createStatement()) {
+			s.execute("shutdown");
+		}
+		long fallbacks = readReplicas.getPrimaryFallbacks();
+		// no check has run, the failed connection alone takes the replica out
+		Assert.assertFalse(userDao.findUsersAfter(0, 1).isEmpty());
+		Assert.assertEquals(0, readReplicas.getHealthyReplicas());
+		Assert.assertTrue(readReplicas.getPrimaryFallbacks() > fallbacks);
+		authService.loadUserByUsername(REPLICA_ONLY_USER);
+	}
+
+}
@@ -0,0 +1,82 @@
+package basearch.test.dao;
+
+import java.util.Collections;
+import java.util.Locale;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import basearch.dao.AuthDao;
+import basearch.dao.UserDao;
+import basearch.model.User;
+import basearch.model.auth.Principal;
+import basearch.model.auth.StoredCredentials;
+import basearch.test.BaseTest;
+
+/**
+ * With the production profile, where the shared cache is on, batch updates of users evict only the rows they change.
+ * The updates write the values already stored, so the data other tests rely on stays the same.
+ */
+@ActiveProfiles("production")
+public class SharedCacheEvictionTests extends BaseTest {
+
+	private static final long ADMIN_ID = 1;
+	private static final long DISABLED_ID = 3;
+	private static final long TEST_ID = 4;
+
+	@Autowired
+	private UserDao userDao;
+
+	@Autowired
+	private AuthDao authDao;
+
+	@Autowired
+	private EntityManagerFactory emf;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private Cache cache;
+
+	@Before
+	public void loadUsers() {
+		cache = emf.getCache();
+		cache.evictAll();
+		new TransactionTemplate(transactionManager).execute(status -> {
+			userDao.findUsersAfter(0, 10);
+			return authDao.getPrincipals(Collections.singletonList(ADMIN_ID));
+		});
+		Assert.assertTrue(cache.contains(User.class, ADMIN_ID));
+		Assert.assertTrue(cache.contains(User.class, DISABLED_ID));
+		Assert.assertTrue(cache.contains(User.class, TEST_ID));
+		Assert.assertTrue(cache.contains(Principal.class, ADMIN_ID));
+	}
+
+	@Test
+	public void localeUpdatesEvictOnlyTheirUsers() {
+		// 'disabled' was never looked up by username, so its id is read from the database
+		new TransactionTemplate(transactionManager).execute(status -> userDao.setLocalesFromLocaleResolver(Collections.singletonMap("disabled", new Locale("en", "GB"))));
+		Assert.assertFalse(cache.contains(User.class, DISABLED_ID));
+		Assert.assertTrue(cache.contains(User.class, ADMIN_ID));
+		Assert.assertTrue(cache.contains(User.class, TEST_ID));
+		Assert.assertTrue(cache.contains(Principal.class, ADMIN_ID));
+	}
+
+	@Test
+	public void passwordUpdatesEvictOnlyTheirUsers() {
+		new TransactionTemplate(transactionManager).execute(status -> authDao.updatePasswords(Collections.singletonList(new StoredCredentials(ADMIN_ID, "admin", authDao.getPrincipals(Collections.singletonList(ADMIN_ID)).get(0).getPassword()))));
+		Assert.assertFalse(cache.contains(Principal.class, ADMIN_ID));
+		Assert.assertFalse(cache.contains(User.class, ADMIN_ID));
+		Assert.assertTrue(cache.contains(User.class, DISABLED_ID));
+		Assert.assertTrue(cache.contains(User.class, TEST_ID));
+	}
+
+}
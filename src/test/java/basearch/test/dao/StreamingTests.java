@@ -0,0 +1,116 @@
+package basearch.test.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+import basearch.cache.NaturalKeyIndex;
+import basearch.dao.AuthDao;
+import basearch.dao.UserDao;
+import basearch.model.User;
+import basearch.model.auth.Authority;
+import basearch.test.BaseTest;
+
+/**
+ * Walks a synthetic users table several times bigger than the persistence context should ever hold,
+ * counting the entities it manages along the way.
+ */
+public class StreamingTests extends BaseTest {
+
+	private static final long FIRST_SYNTHETIC_ID = 1000000;
+	private static final int SYNTHETIC_USERS = 5000;
+	// basearch.persistence.stream-clear-interval, plus room for the languages and whatever else is around
+	private static final int MAX_MANAGED = 1000 + 100;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	@Autowired
+	private UserDao userDao;
+
+	@Autowired
+	private AuthDao authDao;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private NaturalKeyIndex naturalKeyIndex;
+
+	@After
+	public void deleteUsers() {
+		jdbcTemplate.update("delete from users where id >= ?", FIRST_SYNTHETIC_ID);
+		// deleted behind the daos' back
+		em.getEntityManagerFactory().getCache().evictAll();
+		naturalKeyIndex.evictUsernames();
+	}
+
+	@Test
+	public void testStreamUsersInBoundedMemory() {
+		List<Object[]> rows = new ArrayList<>(SYNTHETIC_USERS);
+		for (int i = 0; i < SYNTHETIC_USERS; i++) rows.add(new Object[] { FIRST_SYNTHETIC_ID + i, "streamuser" + i });
+		jdbcTemplate.batchUpdate("insert into users values (?, ?, 'password', true, 2)", rows);
+		new TransactionTemplate(transactionManager).execute(status -> {
+			// held by the caller before the walk, and streamed again along it
+			User held = em.find(User.class, 1L);
+			long visited = 0;
+			long lastId = 0;
+			int maxManaged = 0;
+			try (Stream<User> users = userDao.streamUsers()) {
+				Iterator<User> it = users.iterator();
+				while (it.hasNext()) {
+					User u = it.next();
+					Assert.isTrue(u.getId() > lastId);
+					lastId = u.getId();
+					maxManaged = Math.max(maxManaged, managedEntities());
+					visited++;
+				}
+			}
+			Assert.isTrue(visited >= SYNTHETIC_USERS);
+			Assert.isTrue(maxManaged <= MAX_MANAGED, "Persistence context grew to " + maxManaged + " entities while streaming");
+			Assert.isTrue(em.contains(held), "Streaming detached an entity the caller held");
+			return null;
+		});
+	}
+
+	@Test
+	public void testStreamAuthorities() {
+		List<String> usernames = new TransactionTemplate(transactionManager).execute(status -> {
+			try (Stream<Authority> authorities = authDao.streamAuthorities("ROLE_ADMIN")) {
+				return authorities.map(Authority::getUsername).collect(Collectors.toList());
+			}
+		});
+		// other tests may grant it too, only the grants of data.sql are known
+		usernames.retainAll(Arrays.asList("admin", "user", "disabled", "test"));
+		Assert.isTrue(usernames.equals(Arrays.asList("admin", "disabled")));
+	}
+
+	@Test(expected=InvalidDataAccessApiUsageException.class)
+	public void testStreamingNeedsTransaction() {
+		userDao.streamUsers();
+	}
+
+	private int managedEntities() {
+		return em.unwrap(UnitOfWorkImpl.class).getCloneMapping().size();
+	}
+
+}
@@ -1,11 +1,24 @@
 package basearch.test.dao;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
 
+import basearch.dao.MetadataDao;
 import basearch.dao.UserDao;
+import basearch.metrics.DaoMetrics;
+import basearch.model.User;
 import basearch.test.BaseTest;
 
 public class UserDaoTests extends BaseTest {
@@ -13,6 +26,15 @@ public class UserDaoTests extends BaseTest {
 	@Autowired
 	private UserDao userDao;
 
+	@Autowired
+	private MetadataDao metadataDao;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	@Autowired
+	private DaoMetrics daoMetrics;
+
 	@Test
 	public void testFindAllUsers() {
 		Assert.notEmpty(userDao.findAllUsers());
@@ -24,9 +46,92 @@ public class UserDaoTests extends BaseTest {
 		Assert.isNull(userDao.getByUsername("nonexistentuser"));
 	}
 	
+	@Test
+	public void testGetUserWithLanguage() {
+		User u = userDao.getByUsernameWithLanguage("user");
+		Assert.notNull(u);
+		Assert.isTrue(u.getLanguage().toLocale().equals(new Locale("es")));
+		Assert.isNull(userDao.getByUsernameWithLanguage("nonexistentuser"));
+	}
+
+	@Test
+	@Transactional
+	public void testReadOnlyLookupsStayOutOfThePersistenceContext() {
+		Assert.isTrue(!em.contains(userDao.getByUsername("test")));
+		User u = userDao.getByUsernameWithLanguage("user");
+		Assert.isTrue(!em.contains(u));
+		Assert.isTrue(!em.contains(u.getLanguage()));
+		Assert.isTrue(!em.contains(metadataDao.getDefaultLanguage()));
+		Assert.isTrue(!em.contains(metadataDao.getLanguageBy("es", "ES", null)));
+		Assert.isTrue(!em.contains(metadataDao.findAllLanguages().get(0)));
+		// regular reads are still managed
+		Assert.isTrue(em.contains(userDao.findUsersAfter(0, 1).get(0)));
+	}
+
+	@Test
+	public void testGetLanguageId() {
+		Assert.isTrue(userDao.getLanguageId("user").equals(userDao.getByUsernameWithLanguage("user").getLanguage().getId()));
+		Assert.isNull(userDao.getLanguageId("nonexistentuser"));
+	}
+
+	@Test
+	public void testFindUsersAfter() {
+		List<User> firstPage = userDao.findUsersAfter(0, 2);
+		Assert.isTrue(firstPage.size() == 2);
+		Assert.isTrue(firstPage.get(0).getId() < firstPage.get(1).getId());
+		List<User> secondPage = userDao.findUsersAfter(firstPage.get(1).getId(), 2);
+		Assert.notEmpty(secondPage);
+		Assert.isTrue(secondPage.get(0).getId() > firstPage.get(1).getId());
+	}
+
+	@Test
+	public void testFindUsersByLanguage() {
+		List<User> users = userDao.findUsersByLanguage(Collections.singleton(metadataDao.getLanguageBy("es", "ES", null)), 0, 10);
+		Assert.isTrue(users.size() == 2);
+		Assert.isTrue(users.get(0).getUsername().equals("admin"));
+		Assert.isTrue(users.get(1).getUsername().equals("test"));
+		List<User> secondPage = userDao.findUsersByLanguage(Collections.singleton(metadataDao.getLanguageBy("es", "ES", null)), 1, 1);
+		Assert.isTrue(secondPage.size() == 1);
+		Assert.isTrue(secondPage.get(0).getUsername().equals("test"));
+		Assert.isTrue(userDao.findUsersByLanguage(Collections.emptySet(), 0, 10).isEmpty());
+	}
+
+	@Test
+	public void testOperationsAreRecordedByDaoMethod() {
+		long calls = daoMetric("dao.UserDaoImpl.findUsersAfter.count");
+		long rows = daoMetric("dao.UserDaoImpl.findUsersAfter.query.User.rows");
+		Assert.isTrue(userDao.findUsersAfter(0, 2).size() == 2);
+		Assert.isTrue(daoMetric("dao.UserDaoImpl.findUsersAfter.count") == calls + 1);
+		Assert.isTrue(daoMetric("dao.UserDaoImpl.findUsersAfter.query.User.count") == calls + 1);
+		Assert.isTrue(daoMetric("dao.UserDaoImpl.findUsersAfter.query.User.rows") == rows + 2);
+	}
+
+	@Test
+	public void testJpqlQueriesAndFailuresAreRecorded() {
+		long finds = daoMetric("dao.UserDaoImpl.getByUsername.find.User.count");
+		// never indexed, looked up with a jpql query every time
+		Assert.isNull(userDao.getByUsername("nonexistentuser"));
+		Assert.isTrue(daoMetric("dao.UserDaoImpl.getByUsername.find.User.count") == finds + 1);
+		long failures = daoMetric("dao.MetadataDaoImpl.getLanguageBy.find.Language.failures");
+		try {
+			// es and es-ES
+			metadataDao.getLanguageBy("es", null, null);
+			Assert.isTrue(false, "The language code alone should match more than one language");
+		} catch(IncorrectResultSizeDataAccessException expected) {
+		}
+		Assert.isTrue(daoMetric("dao.MetadataDaoImpl.getLanguageBy.find.Language.failures") == failures + 1);
+	}
+
 	@Test(expected=InvalidDataAccessApiUsageException.class)
 	public void testIllegalArgumentException1() {
 		userDao.getByUsername(null);
 	}
 
+	private long daoMetric(String name) {
+		for (Metric<?> metric : daoMetrics.metrics()) {
+			if (metric.getName().equals(name)) return metric.getValue().longValue();
+		}
+		return 0;
+	}
+
 }
\ No newline at end of file
@@ -1,11 +1,33 @@
 package basearch.test.service;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.EntityManagerFactory;
+
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 
+import basearch.cache.NaturalKeyIndex;
+import basearch.cache.UserDetailsCache;
+import basearch.dao.AuthDao;
+import basearch.dao.MetadataDao;
+import basearch.metrics.SqlStatementCounter;
+import basearch.model.Language;
+import basearch.model.auth.PrincipalSpec;
 import basearch.service.AuthService;
+import basearch.service.AuthService.ProvisioningReport;
 import basearch.test.BaseTest;
 
 public class AuthServiceTests extends BaseTest {
@@ -13,6 +35,30 @@ public class AuthServiceTests extends BaseTest {
 	@Autowired
 	private AuthService authService;
 
+	@Autowired
+	private AuthDao authDao;
+
+	@Autowired
+	private UserDetailsCache userDetailsCache;
+
+	@Autowired
+	private MetadataDao metadataDao;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private SqlStatementCounter sqlStatementCounter;
+
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+
+	@Autowired
+	private NaturalKeyIndex naturalKeyIndex;
+
 	@Test
 	public void testLoadUserByUsername1() {
 		Assert.notNull(authService.loadUserByUsername("test"));
@@ -23,4 +69,79 @@ public class AuthServiceTests extends BaseTest {
 		authService.loadUserByUsername("doesnotexist");
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testLoadUserByUsernameIsCached() {
+		UserDetails first = authService.loadUserByUsername("admin");
+		long hits = userDetailsCache.getCache().getHits();
+		UserDetails second = authService.loadUserByUsername("admin");
+		Assert.isTrue(first == second);
+		Assert.isTrue(userDetailsCache.getCache().getHits() == hits + 1);
+		Assert.notEmpty(second.getAuthorities());
+	}
+
+	@Test
+	@Transactional
+	public void testCacheInvalidatedOnAuthorityChange() {
+		Assert.isTrue(!hasAuthority(authService.loadUserByUsername("test"), "cachedauthority"));
+		authDao.assignAuthority(authDao.getByUsername("test"), "cachedauthority");
+		Assert.isTrue(hasAuthority(authService.loadUserByUsername("test"), "cachedauthority"));
+		authDao.unassignAuthority(authDao.getByUsername("test"), "cachedauthority");
+		Assert.isTrue(!hasAuthority(authService.loadUserByUsername("test"), "cachedauthority"));
+	}
+
+	@Test
+	public void testBulkProvisioningSendsFewerStatements() {
+		final int users = 200;
+		try {
+			int singleStatements, bulkStatements;
+			try (SqlStatementCounter.Scope sql = sqlStatementCounter.open("Single inserts")) {
+				provisionOneByOne("singleuser", users);
+				singleStatements = sql.getStatements();
+			}
+			try (SqlStatementCounter.Scope sql = sqlStatementCounter.open("Bulk inserts")) {
+				provisionInBulk("bulkuser", users);
+				bulkStatements = sql.getStatements();
+			}
+			Assert.notNull(authDao.getByUsername("bulkuser" + (users - 1)));
+			// each statement is a round trip to the database, which batches save, the bound doesn't depend on the machine
+			Assert.isTrue(bulkStatements * 10 < singleStatements, "Bulk provisioning should send an order of magnitude fewer statements");
+		} finally {
+			jdbcTemplate.update("delete from authorities where username like 'singleuser%' or username like 'bulkuser%'");
+			jdbcTemplate.update("delete from users where username like 'singleuser%' or username like 'bulkuser%'");
+			// deleted behind the daos' back
+			entityManagerFactory.getCache().evictAll();
+			naturalKeyIndex.evictUsernames();
+		}
+	}
+
+	private void provisionOneByOne(String prefix, int users) {
+		for (int i = 0; i < users; i++) {
+			final String username = prefix + i;
+			new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					authDao.createPrincipal(username, "none", true, metadataDao.getDefaultLanguage(), Collections.singletonList("basicuser"));
+				}
+			});
+		}
+	}
+
+	private void provisionInBulk(String prefix, int users) {
+		List<PrincipalSpec> specs = new ArrayList<>(users);
+		for (int i = 0; i < users; i++) {
+			specs.add(new PrincipalSpec(prefix + i, "none", true, Language.DEFAULT_LANGUAGE_ID, Collections.singletonList("basicuser")));
+		}
+		ProvisioningReport report = authService.createPrincipals(specs);
+		Assert.isTrue(report.getPrincipals() == users);
+		Assert.isTrue(report.getRows() == users * 2);
+		Assert.isTrue(report.getRowsPerSecond() >= 0);
+	}
+
+	private boolean hasAuthority(UserDetails user, String authority) {
+		for (GrantedAuthority a : user.getAuthorities()) {
+			if (a.getAuthority().equals(authority)) return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,194 @@
+package basearch.test.service;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+import basearch.dao.AuthDao;
+import basearch.dao.JobCheckpointDao;
+import basearch.model.auth.StoredCredentials;
+import basearch.service.PasswordMigrationService;
+import basearch.service.PasswordMigrationService.CalibrationReport;
+import basearch.service.PasswordMigrationService.RehashReport;
+import basearch.test.BaseTest;
+
+public class PasswordMigrationServiceTests extends BaseTest {
+
+	private static final String REHASH_JOB = "password-rehash";
+
+	@Autowired
+	private PasswordMigrationService passwordMigrationService;
+
+	@Autowired
+	private AuthDao authDao;
+
+	@Autowired
+	private JobCheckpointDao jobCheckpointDao;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@After
+	public void restorePlainPassword() {
+		// the test user is stored in plain text in data.sql
+		new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				authDao.updatePasswords(Collections.singletonList(authDao.findCredentialsAfter(3L, 1).get(0).withPassword("test")));
+				jobCheckpointDao.clearCheckpoint(REHASH_JOB);
+			}
+		});
+	}
+
+	@Test
+	public void testPlainPasswordsAreRehashed() {
+		// other tests may leave users behind, count against what's there now
+		long users = countUsersAfter(0);
+		long plain = countPlainPasswordsAfter(0);
+		long lastId = jdbcTemplate.queryForObject("select max(id) from users", Long.class);
+		RehashReport report = passwordMigrationService.rehash(false);
+		Assert.isTrue(report.getScanned() == users);
+		Assert.isTrue(report.getRehashed() == plain);
+		Assert.isTrue(report.getLastId() == lastId);
+		String hash = authDao.getByUsername("test").getPassword();
+		Assert.isTrue(new BCryptPasswordEncoder().matches("test", hash));
+		// finished runs leave no checkpoint behind, and nothing is left to do
+		Assert.isNull(readCheckpoint());
+		Assert.isTrue(passwordMigrationService.rehash(true).getRehashed() == 0);
+		Assert.isTrue(hash.equals(authDao.getByUsername("test").getPassword()));
+	}
+
+	@Test
+	public void testRehashResumesFromCheckpoint() {
+		saveCheckpoint(3L);
+		long users = countUsersAfter(3);
+		long plain = countPlainPasswordsAfter(3);
+		RehashReport report = passwordMigrationService.rehash(true);
+		Assert.isTrue(report.getStartedAfterId() == 3);
+		Assert.isTrue(report.getScanned() == users);
+		Assert.isTrue(report.getRehashed() == plain);
+		Assert.isNull(readCheckpoint());
+	}
+
+	@Test
+	public void testRehashRunsInTheBackground() throws InterruptedException {
+		long users = countUsersAfter(0);
+		passwordMigrationService.startRehash(false);
+		RehashReport report = passwordMigrationService.getRehashReport();
+		long deadline = System.currentTimeMillis() + 30000;
+		while (report.isRunning() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			report = passwordMigrationService.getRehashReport();
+		}
+		Assert.isTrue(!report.isRunning());
+		Assert.isNull(report.getFailure());
+		Assert.isTrue(report.getScanned() == users);
+		Assert.isTrue(new BCryptPasswordEncoder().matches("test", authDao.getByUsername("test").getPassword()));
+	}
+
+	@Test
+	public void testOnlyPlainPasswordsAreRehashed() {
+		// other encodings are left alone and reported
+		setTestPassword("{noop}test");
+		RehashReport report = passwordMigrationService.rehash(false);
+		Assert.isTrue(report.getSkipped() == 1);
+		Assert.isTrue("{noop}test".equals(authDao.getByUsername("test").getPassword()));
+		// any BCrypt revision is a hash already
+		String hash = new BCryptPasswordEncoder().encode("test").replace("$2a$", "$2y$");
+		setTestPassword(hash);
+		report = passwordMigrationService.rehash(false);
+		Assert.isTrue(report.getSkipped() == 0);
+		Assert.isTrue(hash.equals(authDao.getByUsername("test").getPassword()));
+	}
+
+	@Test
+	public void testChangedPasswordsAreNotOverwritten() {
+		final StoredCredentials read = readTestCredentials();
+		setTestPassword("changed");
+		final int[] updated = new int[1];
+		new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				updated[0] = authDao.updatePasswords(Collections.singletonList(read.withPassword("stale")));
+			}
+		});
+		Assert.isTrue(updated[0] == 0);
+		Assert.isTrue("changed".equals(authDao.getByUsername("test").getPassword()));
+	}
+
+	@Test
+	public void testCalibration() {
+		CalibrationReport report = passwordMigrationService.calibrate(4, 5, 2, 10000);
+		Assert.isTrue(report.getCalibrations().size() == 2);
+		Assert.isTrue(report.getRecommendedCost() == 5);
+		Assert.isTrue(report.getCalibrations().get(0).getMeanMillis() > 0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testCalibrationBounds() {
+		passwordMigrationService.calibrate(4, 31, 1, 250);
+	}
+
+	// utility methods
+
+	private long countUsersAfter(long id) {
+		return jdbcTemplate.queryForObject("select count(*) from users where id > ?", Long.class, id);
+	}
+
+	private long countPlainPasswordsAfter(long id) {
+		return jdbcTemplate.queryForObject("select count(*) from users where id > ? and password not like '$2%'", Long.class, id);
+	}
+
+	private StoredCredentials readTestCredentials() {
+		final StoredCredentials[] credentials = new StoredCredentials[1];
+		new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				credentials[0] = authDao.findCredentialsAfter(3L, 1).get(0);
+			}
+		});
+		return credentials[0];
+	}
+
+	private void setTestPassword(final String password) {
+		new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				authDao.updatePasswords(Collections.singletonList(authDao.findCredentialsAfter(3L, 1).get(0).withPassword(password)));
+			}
+		});
+	}
+
+	private Long readCheckpoint() {
+		final Long[] checkpoint = new Long[1];
+		new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				checkpoint[0] = jobCheckpointDao.getCheckpoint(REHASH_JOB);
+			}
+		});
+		return checkpoint[0];
+	}
+
+	private void saveCheckpoint(final long lastId) {
+		new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				jobCheckpointDao.saveCheckpoint(REHASH_JOB, lastId);
+			}
+		});
+	}
+
+}
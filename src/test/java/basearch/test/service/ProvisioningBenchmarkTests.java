@@ -0,0 +1,117 @@
+package basearch.test.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.jpa.JpaEntityManagerFactory;
+import org.eclipse.persistence.logging.SessionLog;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import basearch.cache.NaturalKeyIndex;
+import basearch.dao.AuthDao;
+import basearch.dao.MetadataDao;
+import basearch.model.Language;
+import basearch.model.auth.PrincipalSpec;
+import basearch.service.AuthService;
+import basearch.test.BaseTest;
+
+/**
+ * Times bulk provisioning against creating the same principals one transaction at a time, after a warm-up pass and
+ * taking the best of a few runs. Times are only logged, they depend too much on the machine to assert on. The
+ * benchmark takes a while and only runs with -Dbasearch.benchmark=true
+ */
+public class ProvisioningBenchmarkTests extends BaseTest {
+
+	private static final Logger logger = LoggerFactory.getLogger(ProvisioningBenchmarkTests.class);
+
+	private static final int USERS = 500;
+	private static final int MEASURED_RUNS = 5;
+
+	@Autowired
+	private AuthService authService;
+
+	@Autowired
+	private AuthDao authDao;
+
+	@Autowired
+	private MetadataDao metadataDao;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+
+	@Autowired
+	private NaturalKeyIndex naturalKeyIndex;
+
+	@Test
+	public void bulkProvisioningAgainstSingleInserts() {
+		Assume.assumeTrue("Benchmark, run with -Dbasearch.benchmark=true", Boolean.getBoolean("basearch.benchmark"));
+		// the development profile logs every statement with its parameters, which costs the same for a row in both
+		// paths and hides how much the batches save
+		SessionLog sessionLog = entityManagerFactory.unwrap(JpaEntityManagerFactory.class).getServerSession().getSessionLog();
+		int logLevel = sessionLog.getLevel();
+		sessionLog.setLevel(SessionLog.WARNING);
+		try {
+			// a first pass warms up the jit, the connection pool and the statement caches
+			provisionOneByOne("singleuserwarmup");
+			provisionInBulk("bulkuserwarmup");
+			// the best of a few runs leaves out pauses of the gc and the rest of the machine
+			long singleNanos = Long.MAX_VALUE;
+			long bulkNanos = Long.MAX_VALUE;
+			for (int run = 0; run < MEASURED_RUNS; run++) {
+				singleNanos = Math.min(singleNanos, provisionOneByOne("singleuser" + run + "_"));
+				bulkNanos = Math.min(bulkNanos, provisionInBulk("bulkuser" + run + "_"));
+			}
+			logger.info("Provisioned {} users one by one in {}ms, in bulk in {}ms ({}x), best of {} runs", USERS, singleNanos / 1000000, bulkNanos / 1000000, String.format("%.2f", (double)singleNanos / bulkNanos), MEASURED_RUNS);
+		} finally {
+			jdbcTemplate.update("delete from authorities where username like 'singleuser%' or username like 'bulkuser%'");
+			jdbcTemplate.update("delete from users where username like 'singleuser%' or username like 'bulkuser%'");
+			// deleted behind the daos' back
+			entityManagerFactory.getCache().evictAll();
+			naturalKeyIndex.evictUsernames();
+			sessionLog.setLevel(logLevel);
+		}
+	}
+
+	private long provisionOneByOne(String prefix) {
+		long started = System.nanoTime();
+		for (int i = 0; i < USERS; i++) {
+			final String username = prefix + i;
+			new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					authDao.createPrincipal(username, "none", true, metadataDao.getDefaultLanguage(), Collections.singletonList("basicuser"));
+				}
+			});
+		}
+		return System.nanoTime() - started;
+	}
+
+	private long provisionInBulk(String prefix) {
+		List<PrincipalSpec> specs = new ArrayList<>(USERS);
+		for (int i = 0; i < USERS; i++) {
+			specs.add(new PrincipalSpec(prefix + i, "none", true, Language.DEFAULT_LANGUAGE_ID, Collections.singletonList("basicuser")));
+		}
+		long started = System.nanoTime();
+		authService.createPrincipals(specs);
+		return System.nanoTime() - started;
+	}
+
+}
@@ -0,0 +1,51 @@
+package basearch.test.service;
+
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.util.Assert;
+
+import basearch.dao.UserDao;
+import basearch.service.UserService;
+import basearch.test.BaseTest;
+
+public class UserServiceTests extends BaseTest {
+
+	@Autowired
+	private UserService userService;
+
+	@Autowired
+	private UserDao userDao;
+
+	@After
+	public void restoreLanguage() {
+		userService.changeLanguage("user", new Locale("es"));
+		userService.flushLanguageChanges();
+	}
+
+	@Test
+	public void testLanguageChangesAreCoalesced() {
+		userService.changeLanguage("user", new Locale("en", "GB"));
+		userService.changeLanguage("user", new Locale("es", "ES"));
+		userService.changeLanguage("user", new Locale("en", "US"));
+		// the background writer may have flushed already, but never more than the last change
+		Assert.isTrue(userService.flushLanguageChanges() <= 1);
+		Assert.isTrue(userDao.getByUsername("user").getLanguage().toLocale().equals(new Locale("en", "US")));
+		Assert.isTrue(userService.flushLanguageChanges() == 0);
+	}
+
+	@Test
+	public void testUnsupportedLanguageIsIgnored() {
+		userService.changeLanguage("user", new Locale("pt", "BR"));
+		Assert.isTrue(userService.flushLanguageChanges() == 0);
+		Assert.isTrue(userDao.getByUsername("user").getLanguage().toLocale().equals(new Locale("es")));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testIllegalArgumentException() {
+		userService.changeLanguage(null, Locale.ENGLISH);
+	}
+
+}